@@ -0,0 +1,79 @@
+package uk.co.yojan.nowplaying;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache lookups from as many threads as the phone pipeline and prefetcher use at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AlbumArtDiskCacheBenchmark {
+
+    private static final int ENTRIES = 64;
+    private static final int ENTRY_BYTES = 32 * 1024;
+
+    private File mDirectory;
+    private AlbumArtDiskCache mCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("albumart", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mCache = new AlbumArtDiskCache(mDirectory, ENTRIES * ENTRY_BYTES);
+        Random random = new Random(42);
+        for (int i = 0; i < ENTRIES; i++) {
+            byte[] art = new byte[ENTRY_BYTES];
+            random.nextBytes(art);
+            mCache.put("album" + i, art);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] getUnderContention() {
+        return mCache.get("album" + ThreadLocalRandom.current().nextInt(ENTRIES));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean containsUnderContention() {
+        return mCache.contains("album" + ThreadLocalRandom.current().nextInt(ENTRIES));
+    }
+
+    @Benchmark
+    public byte[] hit() {
+        return mCache.get("album0");
+    }
+
+    @Benchmark
+    public boolean miss() {
+        return mCache.get("missing") == null;
+    }
+}
@@ -0,0 +1,48 @@
+package uk.co.yojan.nowplaying;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hand positions of one frame, from the tables against computing them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HandGeometryBenchmark {
+
+    private int mHour = 10;
+    private int mMinute = 37;
+    private int mSecond = 21;
+    private int mMillis = 480;
+
+    @Benchmark
+    public void tables(Blackhole blackhole) {
+        blackhole.consume(HandGeometry.hourX(mHour, mMinute));
+        blackhole.consume(HandGeometry.hourY(mHour, mMinute));
+        blackhole.consume(HandGeometry.minuteX(mMinute));
+        blackhole.consume(HandGeometry.minuteY(mMinute));
+        blackhole.consume(HandGeometry.sweepX(mSecond, mMillis));
+        blackhole.consume(HandGeometry.sweepY(mSecond, mMillis));
+    }
+
+    @Benchmark
+    public void trigonometry(Blackhole blackhole) {
+        double hour = ((mHour % 12) + mMinute / 60.0) / 6 * Math.PI;
+        double minute = mMinute / 30.0 * Math.PI;
+        double second = (mSecond + mMillis / 1000.0) / 30 * Math.PI;
+        blackhole.consume((float) Math.sin(hour));
+        blackhole.consume((float) -Math.cos(hour));
+        blackhole.consume((float) Math.sin(minute));
+        blackhole.consume((float) -Math.cos(minute));
+        blackhole.consume((float) Math.sin(second));
+        blackhole.consume((float) -Math.cos(second));
+    }
+}
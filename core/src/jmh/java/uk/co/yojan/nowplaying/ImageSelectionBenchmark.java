@@ -0,0 +1,41 @@
+package uk.co.yojan.nowplaying;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Choosing an image from Spotify's usual three sizes up to unusually long lists.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ImageSelectionBenchmark {
+
+    @Param({"3", "100", "10000"})
+    public int images;
+
+    private int[] mHeights;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mHeights = new int[images];
+        for (int i = 0; i < images; i++) {
+            mHeights[i] = 32 + random.nextInt(2048);
+        }
+    }
+
+    @Benchmark
+    public int choose() {
+        return ImageSelection.choose(mHeights, 320);
+    }
+}
@@ -0,0 +1,33 @@
+package uk.co.yojan.nowplaying;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submitting tracks while every pipeline stage checks whether its job is still current.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrackCoalescerBenchmark {
+
+    private final TrackCoalescer mCoalescer = new TrackCoalescer(0, Clock.SYSTEM);
+
+    @Benchmark
+    public long submit() {
+        return mCoalescer.submit("track");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean isCurrentUnderContention() {
+        return mCoalescer.isCurrent(1);
+    }
+}
@@ -0,0 +1,35 @@
+package uk.co.yojan.nowplaying;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the track id of every broadcast, against the split based parsing it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrackIdsBenchmark {
+
+    private String mUri = "spotify:track:6rqhFgbbKwnb9MLmUQDhG6";
+
+    @Benchmark
+    public String fromUri() {
+        return TrackIds.fromUri(mUri);
+    }
+
+    @Benchmark
+    public String splitTwice() {
+        String[] trackIdParts = mUri.split(":");
+        if (trackIdParts.length == 3) {
+            return mUri.split(":")[2];
+        }
+        throw new IllegalArgumentException();
+    }
+}
@@ -0,0 +1,239 @@
+package uk.co.yojan.nowplaying;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, least recently used disk cache of watch-ready album art. The phone keys it by
+ * album and display, the watch by the content hash the phone references art by.
+ *
+ * Each entry is stored as its own file so that the cache survives process death. Access order
+ * is persisted through the file modification time, which is used to rebuild the LRU ordering
+ * when the cache is reopened.
+ */
+public class AlbumArtDiskCache {
+
+    private static final String SUFFIX = ".art";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // album id -> entry size in bytes, in access order (eldest first).
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    public AlbumArtDiskCache(File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IllegalStateException("Unable to create cache directory " + directory);
+        }
+        readEntries();
+    }
+
+    /**
+     * Returns the encoded art for the album, or null if it is not cached.
+     */
+    public synchronized byte[] get(String albumId) {
+        String key = toKey(albumId);
+        // get() rather than containsKey() so the entry moves to the most recently used end.
+        if (key == null || mEntries.get(key) == null) {
+            mMissCount++;
+            return null;
+        }
+
+        File file = fileFor(key);
+        byte[] data = readFile(file);
+        if (data == null) {
+            // Entry was removed from under us.
+            removeEntry(key);
+            mMissCount++;
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        mHitCount++;
+        return data;
+    }
+
+    /**
+     * Stores the encoded art for the album, evicting the least recently used entries until the
+     * cache fits within its byte budget.
+     */
+    public synchronized void put(String albumId, byte[] data) {
+        String key = toKey(albumId);
+        if (key == null || data == null || data.length > mMaxBytes) {
+            return;
+        }
+
+        File file = fileFor(key);
+        File temp = new File(mDirectory, key + TEMP_SUFFIX);
+        if (!writeFile(temp, data) || !temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+
+        Long previous = mEntries.put(key, (long) data.length);
+        if (previous != null) {
+            mSize -= previous;
+        }
+        mSize += data.length;
+        trimToSize();
+    }
+
+    public synchronized boolean contains(String albumId) {
+        String key = toKey(albumId);
+        return key != null && mEntries.containsKey(key);
+    }
+
+    public synchronized void remove(String albumId) {
+        String key = toKey(albumId);
+        if (key != null && mEntries.containsKey(key)) {
+            removeEntry(key);
+        }
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int entryCount() {
+        return mEntries.size();
+    }
+
+    public synchronized long hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long missCount() {
+        return mMissCount;
+    }
+
+    public synchronized long evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "AlbumArtDiskCache[entries=%d, size=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                mEntries.size(), mSize, mMaxBytes, mHitCount, mMissCount, mEvictionCount);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue();
+            fileFor(eldest.getKey()).delete();
+            mEvictionCount++;
+        }
+    }
+
+    private void removeEntry(String key) {
+        Long size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        fileFor(key).delete();
+    }
+
+    /**
+     * Rebuilds the in-memory index from the files left behind by a previous process.
+     */
+    private void readEntries() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                String key = name.substring(0, name.length() - SUFFIX.length());
+                mEntries.put(key, file.length());
+                mSize += file.length();
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                // Partially written entry from a process that died mid-write.
+                file.delete();
+            }
+        }
+        trimToSize();
+    }
+
+    private File fileFor(String key) {
+        return new File(mDirectory, key + SUFFIX);
+    }
+
+    /**
+     * Spotify ids are base-62, but guard against anything that would escape the cache directory.
+     */
+    private static String toKey(String albumId) {
+        if (albumId == null || albumId.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < albumId.length(); i++) {
+            char c = albumId.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                return null;
+            }
+        }
+        return albumId;
+    }
+
+    private static byte[] readFile(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean writeFile(File file, byte[] data) {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package uk.co.yojan.nowplaying;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Layout of the album art data items synced to the watch.
+ *
+ * Art is first sent as a reference holding only the content hashes of the encoded art. The watch
+ * keeps recently shown art keyed by those hashes, and only asks for the assets themselves, by
+ * sending the cache key back on {@link #REQUEST_PATH}, when it does not have them.
+ */
+public class AlbumArtItem {
+
+    public static final String PATH = "/albumart";
+    public static final String REQUEST_PATH = "/albumart_request";
+    public static final String KEY_CACHE_KEY = "cacheKey";
+    public static final String KEY_ALBUM_ART_HASH = "albumArtHash";
+    public static final String KEY_AMBIENT_ALBUM_ART_HASH = "ambientAlbumArtHash";
+    public static final String KEY_ALBUM_ART = "albumArt";
+    public static final String KEY_AMBIENT_ALBUM_ART = "ambientAlbumArt";
+    /** Changes on every put, so that resending identical art still notifies the watch. */
+    public static final String KEY_SENT_AT = "sentAt";
+    /** Identifies the track change the item was sent for, to trace its latency end to end. */
+    public static final String KEY_TRACE_ID = "traceId";
+    /** Wall clock time the phone heard about the track change. */
+    public static final String KEY_TRACE_START = "traceStart";
+
+    /**
+     * Urgent item sent ahead of newly encoded art, replaced for every track. Outside
+     * {@link #PATH} so that it is never mistaken for the art itself.
+     */
+    public static final String PLACEHOLDER_PATH = "/art_placeholder";
+    public static final String KEY_COLOR = "color";
+    public static final String KEY_THUMBNAIL = "thumbnail";
+    public static final String KEY_THUMBNAIL_WIDTH = "thumbnailWidth";
+    public static final String KEY_THUMBNAIL_HEIGHT = "thumbnailHeight";
+
+    // noninstantiable
+    private AlbumArtItem() { }
+
+    /**
+     * Returns the hex SHA-1 of the encoded art, which only contains characters that are valid
+     * cache keys on the watch.
+     */
+    public static String hash(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(data);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
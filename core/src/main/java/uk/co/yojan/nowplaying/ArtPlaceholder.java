@@ -0,0 +1,124 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Stands in for a track's album art until the full art reaches the watch: the cover's dominant
+ * colour and a thumbnail of a few hundred bytes, which blurs when scaled up to the watch face.
+ */
+public class ArtPlaceholder {
+
+    /** Thumbnails are at most SIZE x SIZE, 3 bytes per pixel. */
+    public static final int SIZE = 12;
+
+    // Bits kept per channel when looking for the dominant colour.
+    private static final int QUANTIZE_BITS = 4;
+
+    public final int color;
+    public final int width;
+    public final int height;
+    /** Packed RGB, 3 bytes per pixel, row by row. */
+    public final byte[] thumbnail;
+
+    public ArtPlaceholder(int color, int width, int height, byte[] thumbnail) {
+        if (width <= 0 || height <= 0 || thumbnail == null
+                || thumbnail.length != width * height * 3) {
+            throw new IllegalArgumentException("Invalid " + width + "x" + height + " thumbnail");
+        }
+        this.color = color;
+        this.width = width;
+        this.height = height;
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * Returns a placeholder of the colour alone.
+     */
+    public static ArtPlaceholder solid(int color) {
+        return new ArtPlaceholder(color, 1, 1,
+                new byte[]{(byte) (color >> 16), (byte) (color >> 8), (byte) color});
+    }
+
+    /**
+     * Builds the placeholder for the cover's pixels, averaging blocks of them into the
+     * thumbnail.
+     */
+    public static ArtPlaceholder fromPixels(int[] argb, int width, int height) {
+        int thumbnailWidth = Math.min(SIZE, width);
+        int thumbnailHeight = Math.min(SIZE, height);
+        byte[] thumbnail = new byte[thumbnailWidth * thumbnailHeight * 3];
+        int i = 0;
+        for (int ty = 0; ty < thumbnailHeight; ty++) {
+            int top = ty * height / thumbnailHeight;
+            int bottom = (ty + 1) * height / thumbnailHeight;
+            for (int tx = 0; tx < thumbnailWidth; tx++) {
+                int left = tx * width / thumbnailWidth;
+                int right = (tx + 1) * width / thumbnailWidth;
+                long r = 0;
+                long g = 0;
+                long b = 0;
+                for (int y = top; y < bottom; y++) {
+                    for (int x = left; x < right; x++) {
+                        int pixel = argb[y * width + x];
+                        r += (pixel >> 16) & 0xff;
+                        g += (pixel >> 8) & 0xff;
+                        b += pixel & 0xff;
+                    }
+                }
+                int count = (bottom - top) * (right - left);
+                thumbnail[i++] = (byte) (r / count);
+                thumbnail[i++] = (byte) (g / count);
+                thumbnail[i++] = (byte) (b / count);
+            }
+        }
+        return new ArtPlaceholder(dominantColor(argb), thumbnailWidth, thumbnailHeight, thumbnail);
+    }
+
+    /**
+     * Returns the most common colour, after quantizing each channel, as the average of the
+     * pixels that fell into its bucket. Always opaque.
+     */
+    public static int dominantColor(int[] argb) {
+        int shift = 8 - QUANTIZE_BITS;
+        int buckets = 1 << (3 * QUANTIZE_BITS);
+        int[] counts = new int[buckets];
+        for (int pixel : argb) {
+            counts[bucket(pixel, shift)]++;
+        }
+        int dominant = 0;
+        for (int bucket = 1; bucket < buckets; bucket++) {
+            if (counts[bucket] > counts[dominant]) {
+                dominant = bucket;
+            }
+        }
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        for (int pixel : argb) {
+            if (bucket(pixel, shift) == dominant) {
+                r += (pixel >> 16) & 0xff;
+                g += (pixel >> 8) & 0xff;
+                b += pixel & 0xff;
+            }
+        }
+        int count = Math.max(counts[dominant], 1);
+        return 0xff000000 | (int) (r / count) << 16 | (int) (g / count) << 8 | (int) (b / count);
+    }
+
+    private static int bucket(int pixel, int shift) {
+        int r = ((pixel >> 16) & 0xff) >> shift;
+        int g = ((pixel >> 8) & 0xff) >> shift;
+        int b = (pixel & 0xff) >> shift;
+        return (r << (2 * QUANTIZE_BITS)) | (g << QUANTIZE_BITS) | b;
+    }
+
+    /**
+     * Returns the thumbnail as opaque ARGB pixels.
+     */
+    public int[] toPixels() {
+        int[] pixels = new int[width * height];
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            pixels[i] = 0xff000000 | (thumbnail[j] & 0xff) << 16 | (thumbnail[j + 1] & 0xff) << 8
+                    | (thumbnail[j + 2] & 0xff);
+        }
+        return pixels;
+    }
+}
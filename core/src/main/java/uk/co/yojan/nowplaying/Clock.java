@@ -0,0 +1,16 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Source of wall clock time, so that expiry and scheduling logic can be tested without sleeping.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long now();
+}
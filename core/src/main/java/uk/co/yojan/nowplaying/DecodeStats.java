@@ -0,0 +1,78 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Time and bitmap memory spent decoding covers, next to the memory decoding them at full
+ * resolution would have taken.
+ *
+ * The peak for a track is an estimate from pixel counts: the decoded cover plus the art prepared
+ * from it, which are held together while the art is encoded. Next to it is the heap growth
+ * measured across each decode, which counts whatever other threads allocated meanwhile and
+ * reads as 0 when a collection ran.
+ */
+public class DecodeStats {
+
+    private long mDecodes;
+    private long mSubsampled;
+    private long mDecodeNanos;
+    private long mMaxDecodeNanos;
+    private long mPeakBytes;
+    private long mMaxPeakBytes;
+    private long mFullResolutionPeakBytes;
+    private long mHeapGrowthBytes;
+    private long mMaxHeapGrowthBytes;
+
+    /**
+     * Records a decode.
+     *
+     * @param coverBytes memory of the decoded cover
+     * @param fullResolutionBytes memory the cover would have taken at full resolution
+     * @param artBytes memory of the art prepared from the cover
+     * @param heapGrowthBytes growth of the heap measured across the decode
+     */
+    public synchronized void record(long decodeNanos, long coverBytes, long fullResolutionBytes,
+                                    long artBytes, long heapGrowthBytes) {
+        mDecodes++;
+        if (coverBytes < fullResolutionBytes) {
+            mSubsampled++;
+        }
+        mDecodeNanos += decodeNanos;
+        mMaxDecodeNanos = Math.max(mMaxDecodeNanos, decodeNanos);
+        mPeakBytes += coverBytes + artBytes;
+        mMaxPeakBytes = Math.max(mMaxPeakBytes, coverBytes + artBytes);
+        mFullResolutionPeakBytes += fullResolutionBytes + artBytes;
+        heapGrowthBytes = Math.max(0, heapGrowthBytes);
+        mHeapGrowthBytes += heapGrowthBytes;
+        mMaxHeapGrowthBytes = Math.max(mMaxHeapGrowthBytes, heapGrowthBytes);
+    }
+
+    public synchronized long decodes() {
+        return mDecodes;
+    }
+
+    public synchronized double averageDecodeMillis() {
+        return mDecodes == 0 ? 0 : mDecodeNanos / 1e6 / mDecodes;
+    }
+
+    public synchronized long averagePeakBytes() {
+        return mDecodes == 0 ? 0 : mPeakBytes / mDecodes;
+    }
+
+    public synchronized long averageFullResolutionPeakBytes() {
+        return mDecodes == 0 ? 0 : mFullResolutionPeakBytes / mDecodes;
+    }
+
+    public synchronized long averageHeapGrowthBytes() {
+        return mDecodes == 0 ? 0 : mHeapGrowthBytes / mDecodes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DecodeStats[decodes=%d (%d subsampled), avg=%.1fms, max=%.1fms, "
+                        + "estimated peak per track avg=%dKB (%dKB at full resolution), "
+                        + "max=%dKB, measured heap growth per decode avg=%dKB, max=%dKB]",
+                mDecodes, mSubsampled, averageDecodeMillis(), mMaxDecodeNanos / 1e6,
+                averagePeakBytes() / 1024, averageFullResolutionPeakBytes() / 1024,
+                mMaxPeakBytes / 1024, averageHeapGrowthBytes() / 1024,
+                mMaxHeapGrowthBytes / 1024);
+    }
+}
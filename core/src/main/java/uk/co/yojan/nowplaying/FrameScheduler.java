@@ -0,0 +1,121 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Decides how often the watch face redraws, from what it shows and how much power there is to
+ * spare.
+ *
+ * Without a second hand nothing changes between minutes, which onTimeTick already covers, so no
+ * timer runs at all. A ticking second hand needs a frame a second and a sweeping one is capped at
+ * {@link #SWEEP_FPS}. Low battery drops the second hand a step or two, and paused playback drops
+ * it altogether, as nobody is glancing at the art between listening sessions. Frames drawn are
+ * counted per minute over the last hour, to check the savings.
+ */
+public class FrameScheduler {
+
+    public enum SecondsMode { NONE, TICKING, SWEEPING }
+
+    public static final long TICK_INTERVAL_MS = 1000;
+    public static final int SWEEP_FPS = 15;
+
+    static final int LOW_BATTERY_PERCENT = 30;
+    static final int CRITICAL_BATTERY_PERCENT = 15;
+
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final int MINUTES_PER_HOUR = 60;
+
+    private final SecondsMode mRequestedMode;
+    private int mBatteryPercent = 100;
+    private boolean mCharging;
+    private boolean mPlaying = true;
+
+    private final long[] mFrameCounts = new long[MINUTES_PER_HOUR];
+    private final long[] mFrameMinutes = new long[MINUTES_PER_HOUR];
+    private long mLastFrameAt;
+
+    public FrameScheduler(SecondsMode requestedMode) {
+        mRequestedMode = requestedMode;
+    }
+
+    public synchronized void setBattery(int percent, boolean charging) {
+        mBatteryPercent = percent;
+        mCharging = charging;
+    }
+
+    public synchronized void setPlaying(boolean playing) {
+        mPlaying = playing;
+    }
+
+    /**
+     * Returns the second hand to draw after backing off for battery and playback.
+     */
+    public synchronized SecondsMode effectiveMode() {
+        if (!mPlaying) {
+            return SecondsMode.NONE;
+        }
+        int steps = 0;
+        if (!mCharging) {
+            if (mBatteryPercent <= CRITICAL_BATTERY_PERCENT) {
+                steps += 2;
+            } else if (mBatteryPercent <= LOW_BATTERY_PERCENT) {
+                steps++;
+            }
+        }
+        return SecondsMode.values()[Math.max(0, mRequestedMode.ordinal() - steps)];
+    }
+
+    /**
+     * Returns the time between frames in interactive mode, or 0 if only onTimeTick is needed.
+     */
+    public long intervalMillis() {
+        switch (effectiveMode()) {
+            case SWEEPING:
+                return 1000 / SWEEP_FPS;
+            case TICKING:
+                return TICK_INTERVAL_MS;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns how long to wait for the next frame, aligned to the interval so that a ticking
+     * hand moves on the second, or -1 if no timer is needed.
+     */
+    public long delayMillis(long nowMillis) {
+        long interval = intervalMillis();
+        return interval == 0 ? -1 : interval - nowMillis % interval;
+    }
+
+    public synchronized void recordFrame(long nowMillis) {
+        long minute = nowMillis / MINUTE_MS;
+        int bucket = (int) (minute % MINUTES_PER_HOUR);
+        if (mFrameMinutes[bucket] != minute) {
+            mFrameMinutes[bucket] = minute;
+            mFrameCounts[bucket] = 0;
+        }
+        mFrameCounts[bucket]++;
+        mLastFrameAt = nowMillis;
+    }
+
+    /**
+     * Returns the number of frames drawn in the hour up to the given time.
+     */
+    public synchronized long framesInLastHour(long nowMillis) {
+        long minute = nowMillis / MINUTE_MS;
+        long frames = 0;
+        for (int i = 0; i < MINUTES_PER_HOUR; i++) {
+            if (mFrameMinutes[i] > minute - MINUTES_PER_HOUR && mFrameMinutes[i] <= minute) {
+                frames += mFrameCounts[i];
+            }
+        }
+        return frames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("FrameScheduler[seconds=%s of %s, battery=%d%%%s, %s, "
+                        + "framesLastHour=%d]",
+                effectiveMode(), mRequestedMode, mBatteryPercent, mCharging ? " charging" : "",
+                mPlaying ? "playing" : "paused", framesInLastHour(mLastFrameAt));
+    }
+}
@@ -0,0 +1,79 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Precomputed hand directions, so drawing a frame needs no trigonometry.
+ *
+ * Minute and second hands have 60 positions, the hour hand moves every minute and so has 720.
+ * A sweeping second hand moves in steps of a sixteenth of a second, which is finer than the
+ * frame rate it is drawn at.
+ * Directions are unit vectors in screen coordinates, with 12 o'clock pointing up.
+ */
+public final class HandGeometry {
+
+    public static final int MINUTE_POSITIONS = 60;
+    public static final int HOUR_POSITIONS = 12 * 60;
+    public static final int SWEEP_STEPS_PER_SECOND = 16;
+    public static final int SWEEP_POSITIONS = 60 * SWEEP_STEPS_PER_SECOND;
+
+    private static final float[] MINUTE_X = new float[MINUTE_POSITIONS];
+    private static final float[] MINUTE_Y = new float[MINUTE_POSITIONS];
+    private static final float[] HOUR_X = new float[HOUR_POSITIONS];
+    private static final float[] HOUR_Y = new float[HOUR_POSITIONS];
+    private static final float[] SWEEP_X = new float[SWEEP_POSITIONS];
+    private static final float[] SWEEP_Y = new float[SWEEP_POSITIONS];
+
+    static {
+        for (int i = 0; i < MINUTE_POSITIONS; i++) {
+            double rotation = i / 30.0 * Math.PI;
+            MINUTE_X[i] = (float) Math.sin(rotation);
+            MINUTE_Y[i] = (float) -Math.cos(rotation);
+        }
+        for (int i = 0; i < HOUR_POSITIONS; i++) {
+            double rotation = i / 360.0 * Math.PI;
+            HOUR_X[i] = (float) Math.sin(rotation);
+            HOUR_Y[i] = (float) -Math.cos(rotation);
+        }
+        for (int i = 0; i < SWEEP_POSITIONS; i++) {
+            double rotation = i * 2.0 / SWEEP_POSITIONS * Math.PI;
+            SWEEP_X[i] = (float) Math.sin(rotation);
+            SWEEP_Y[i] = (float) -Math.cos(rotation);
+        }
+    }
+
+    // noninstantiable
+    private HandGeometry() { }
+
+    /** Also used for the second hand. */
+    public static float minuteX(int minute) {
+        return MINUTE_X[minute % MINUTE_POSITIONS];
+    }
+
+    public static float minuteY(int minute) {
+        return MINUTE_Y[minute % MINUTE_POSITIONS];
+    }
+
+    public static float hourX(int hour, int minute) {
+        return HOUR_X[hourIndex(hour, minute)];
+    }
+
+    public static float hourY(int hour, int minute) {
+        return HOUR_Y[hourIndex(hour, minute)];
+    }
+
+    public static float sweepX(int second, int millis) {
+        return SWEEP_X[sweepIndex(second, millis)];
+    }
+
+    public static float sweepY(int second, int millis) {
+        return SWEEP_Y[sweepIndex(second, millis)];
+    }
+
+    static int sweepIndex(int second, int millis) {
+        return (second % 60) * SWEEP_STEPS_PER_SECOND
+                + (millis % 1000) * SWEEP_STEPS_PER_SECOND / 1000;
+    }
+
+    static int hourIndex(int hour, int minute) {
+        return (hour % 12) * 60 + minute % 60;
+    }
+}
@@ -0,0 +1,138 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per host counts of how http requests were answered, from the cache, by revalidating the
+ * cached copy or in full, and of whether they went over a new or a pooled connection.
+ */
+public class HttpStats {
+
+    /**
+     * How a request was answered.
+     */
+    public enum Outcome {
+        /** From the cache, without touching the network. */
+        CACHED,
+        /** Revalidated, and the server answered 304 Not Modified. */
+        NOT_MODIFIED,
+        /** Revalidated, and the server sent a new copy. */
+        MODIFIED,
+        /** Nothing usable was cached. */
+        NETWORK
+    }
+
+    /**
+     * Counts for a single host.
+     */
+    public static class Host {
+        private final long[] mOutcomes = new long[Outcome.values().length];
+        private long mNewConnections;
+        private long mReusedConnections;
+        private long mHttp2Exchanges;
+
+        public long count(Outcome outcome) {
+            return mOutcomes[outcome.ordinal()];
+        }
+
+        public long requests() {
+            long requests = 0;
+            for (long count : mOutcomes) {
+                requests += count;
+            }
+            return requests;
+        }
+
+        public long newConnections() {
+            return mNewConnections;
+        }
+
+        public long reusedConnections() {
+            return mReusedConnections;
+        }
+
+        /**
+         * Returns the fraction of exchanges with the server that went over a pooled connection.
+         */
+        public double reuseRate() {
+            long exchanges = mNewConnections + mReusedConnections;
+            return exchanges == 0 ? 0 : (double) mReusedConnections / exchanges;
+        }
+
+        /**
+         * Returns the fraction of revalidated requests that the cached copy answered.
+         */
+        public double validationRate() {
+            long revalidated = count(Outcome.NOT_MODIFIED) + count(Outcome.MODIFIED);
+            return revalidated == 0 ? 0 : (double) count(Outcome.NOT_MODIFIED) / revalidated;
+        }
+
+        private Host copy() {
+            Host copy = new Host();
+            System.arraycopy(mOutcomes, 0, copy.mOutcomes, 0, mOutcomes.length);
+            copy.mNewConnections = mNewConnections;
+            copy.mReusedConnections = mReusedConnections;
+            copy.mHttp2Exchanges = mHttp2Exchanges;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d, cached=%d, notModified=%d, modified=%d, "
+                            + "network=%d, validationRate=%.2f, connections=%d, reused=%d, "
+                            + "reuseRate=%.2f, http2=%d", requests(), count(Outcome.CACHED),
+                    count(Outcome.NOT_MODIFIED), count(Outcome.MODIFIED), count(Outcome.NETWORK),
+                    validationRate(), mNewConnections, mReusedConnections, reuseRate(),
+                    mHttp2Exchanges);
+        }
+    }
+
+    private final Map<String, Host> mHosts = new TreeMap<>();
+
+    public synchronized void recordOutcome(String host, Outcome outcome) {
+        get(host).mOutcomes[outcome.ordinal()]++;
+    }
+
+    /**
+     * Records an exchange with the server, over a connection that was either just opened or
+     * taken from the pool.
+     */
+    public synchronized void recordExchange(String host, boolean reused, boolean http2) {
+        Host stats = get(host);
+        if (reused) {
+            stats.mReusedConnections++;
+        } else {
+            stats.mNewConnections++;
+        }
+        if (http2) {
+            stats.mHttp2Exchanges++;
+        }
+    }
+
+    /**
+     * Returns a copy of the counts for the host, all zero if it was never requested.
+     */
+    public synchronized Host host(String host) {
+        Host stats = mHosts.get(host);
+        return stats == null ? new Host() : stats.copy();
+    }
+
+    private Host get(String host) {
+        Host stats = mHosts.get(host);
+        if (stats == null) {
+            stats = new Host();
+            mHosts.put(host, stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("HttpStats[");
+        for (Map.Entry<String, Host> entry : mHosts.entrySet()) {
+            builder.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return builder.append(']').toString();
+    }
+}
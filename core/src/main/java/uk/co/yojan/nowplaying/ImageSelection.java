@@ -0,0 +1,47 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Picks which of an album's images to download for the watch, and how far to subsample it.
+ */
+public final class ImageSelection {
+
+    // noninstantiable
+    private ImageSelection() { }
+
+    /**
+     * Want the album art that is the smallest size above the target size. Spotify lists the
+     * images widest first, so the first image is kept if none is smaller but still big enough.
+     *
+     * @param heights the height of each image, in the order they are listed
+     * @return the index of the image to use, or -1 if there are no images
+     */
+    public static int choose(int[] heights, int targetSize) {
+        if (heights.length == 0) {
+            return -1;
+        }
+        int chosen = 0;
+        for (int i = 1; i < heights.length; i++) {
+            if (heights[i] < heights[chosen] && heights[i] >= targetSize) {
+                // Found a smaller image that will fit on the watch screen.
+                chosen = i;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns the largest power of two an image can be subsampled by while still covering the
+     * target size, so that it is only ever scaled down afterwards.
+     */
+    public static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
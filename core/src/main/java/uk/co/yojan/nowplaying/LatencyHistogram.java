@@ -0,0 +1,49 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.Arrays;
+
+/**
+ * Latency percentiles over a rolling window of the most recent samples.
+ */
+public class LatencyHistogram {
+
+    private final long[] mSamples;
+    private int mCount;
+    private int mNext;
+
+    public LatencyHistogram(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        mSamples = new long[window];
+    }
+
+    public synchronized void record(long millis) {
+        mSamples[mNext] = millis;
+        mNext = (mNext + 1) % mSamples.length;
+        mCount = Math.min(mCount + 1, mSamples.length);
+    }
+
+    /**
+     * Returns the nearest-rank percentile of the samples in the window, or 0 if there are none.
+     */
+    public synchronized long percentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * mCount);
+        return sorted[Math.min(Math.max(rank, 1), mCount) - 1];
+    }
+
+    public synchronized int count() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("p50=%dms, p95=%dms, p99=%dms, n=%d",
+                percentile(50), percentile(95), percentile(99), mCount);
+    }
+}
@@ -0,0 +1,121 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs one input at a time on a dedicated thread, where every input supersedes all inputs of a
+ * lower order, such as the time the sender stamped it with.
+ *
+ * Inputs are ordered by the caller rather than by when they were submitted, as they may arrive
+ * out of order. An input of a lower order than one already submitted is dropped. Inputs waiting
+ * to start are replaced rather than queued, so at most one is ever waiting. An input that is
+ * already running is not interrupted, but can check {@link #isCurrent(long)} between steps and
+ * stop early once it has been superseded.
+ */
+public class LatestWinsWorker<T> {
+
+    public interface Task<T> {
+        void run(T input, long order) throws Exception;
+    }
+
+    private static class Pending<T> {
+        final T input;
+        final long order;
+
+        Pending(T input, long order) {
+            this.input = input;
+            this.order = order;
+        }
+    }
+
+    private final Task<T> mTask;
+    private final ExecutorService mExecutor;
+    // Highest order submitted, only written while holding this.
+    private volatile long mLatestOrder = Long.MIN_VALUE;
+    private final AtomicReference<Pending<T>> mPending = new AtomicReference<>();
+
+    private final AtomicLong mSubmittedCount = new AtomicLong();
+    private final AtomicLong mReplacedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            Pending<T> pending = mPending.getAndSet(null);
+            if (pending == null) {
+                return;
+            }
+            try {
+                mTask.run(pending.input, pending.order);
+                mCompletedCount.incrementAndGet();
+            } catch (Exception e) {
+                mFailedCount.incrementAndGet();
+            }
+        }
+    };
+
+    public LatestWinsWorker(final String name, Task<T> task) {
+        mTask = task;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Supersedes any input of a lower order, replacing it if it has not started yet. An input of
+     * the same order as the latest is run again, so that it can be redone on demand.
+     *
+     * @return false if the input was dropped, as an input of a higher order was submitted before
+     */
+    public synchronized boolean submit(T input, long order) {
+        mSubmittedCount.incrementAndGet();
+        if (order < mLatestOrder) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        mLatestOrder = order;
+        if (mPending.getAndSet(new Pending<>(input, order)) != null) {
+            // Its drain is still queued and will pick up this input instead.
+            mReplacedCount.incrementAndGet();
+        } else {
+            try {
+                mExecutor.execute(mDrain);
+            } catch (RejectedExecutionException e) {
+                // Shut down.
+                mPending.set(null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether work for an input of the order should continue.
+     */
+    public boolean isCurrent(long order) {
+        return order == mLatestOrder;
+    }
+
+    public void shutdown() {
+        mPending.set(null);
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LatestWinsWorker[submitted=%d, replaced=%d, dropped=%d, "
+                        + "completed=%d, failed=%d]", mSubmittedCount.get(), mReplacedCount.get(),
+                mDroppedCount.get(), mCompletedCount.get(), mFailedCount.get());
+    }
+}
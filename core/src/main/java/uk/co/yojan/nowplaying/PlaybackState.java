@@ -0,0 +1,52 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Whether Spotify is playing and where in the track, as broadcast on the phone and synced to the
+ * watch, so that both can idle while nothing is playing.
+ */
+public class PlaybackState {
+
+    public static final String PATH = "/playback";
+    public static final String KEY_PLAYING = "playing";
+    public static final String KEY_POSITION = "position";
+    public static final String KEY_UPDATED_AT = "updatedAt";
+
+    /** Used until the first broadcast, so nothing is held back before we know. */
+    public static final PlaybackState UNKNOWN = new PlaybackState(true, 0, 0);
+
+    public final boolean playing;
+    /** Position in the track when the state was broadcast. */
+    public final long positionMillis;
+    /** Wall clock time the state was broadcast. */
+    public final long updatedAtMillis;
+
+    public PlaybackState(boolean playing, long positionMillis, long updatedAtMillis) {
+        this.playing = playing;
+        this.positionMillis = positionMillis;
+        this.updatedAtMillis = updatedAtMillis;
+    }
+
+    /**
+     * Returns the position in the track at the given time, extrapolated while playing.
+     */
+    public long positionAt(long nowMillis) {
+        if (!playing || updatedAtMillis == 0) {
+            return positionMillis;
+        }
+        return positionMillis + Math.max(0, nowMillis - updatedAtMillis);
+    }
+
+    /**
+     * Returns whether the change from the given state is worth telling the watch about straight
+     * away, rather than whenever the data layer gets round to it.
+     */
+    public boolean isUrgentAfter(PlaybackState previous) {
+        return previous == null || playing != previous.playing;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PlaybackState[%s at %dms]", playing ? "playing" : "paused",
+                positionMillis);
+    }
+}
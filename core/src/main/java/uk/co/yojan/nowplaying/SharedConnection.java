@@ -0,0 +1,211 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Reference counted connection to the data layer, shared by everything in a process that uses
+ * it.
+ *
+ * The connection is kept up while any reference is held, and for a linger after the last one is
+ * released, so that holders that come and go back to back share a single connect. Nothing here
+ * blocks: connecting is only ever started, failed connects are retried with a backoff for as
+ * long as there are references, and listeners hear each time the connection comes up. The
+ * caller schedules the retries and the lingering disconnect, using the delays returned.
+ */
+public class SharedConnection {
+
+    /**
+     * The underlying client, whose calls must not block.
+     */
+    public interface Client {
+        boolean isConnected();
+
+        boolean isConnecting();
+
+        void connect();
+
+        void disconnect();
+    }
+
+    public interface Listener {
+        /** Called every time the connection comes up, including after a reconnect. */
+        void onConnected();
+    }
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+    private static final int BLOCKED_WINDOW = 100;
+
+    private final Client mClient;
+    private final long mLingerMillis;
+    private final long mRetryMinMillis;
+    private final long mRetryMaxMillis;
+    private final Clock mClock;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final LatencyHistogram mBlocked = new LatencyHistogram(BLOCKED_WINDOW);
+    // Times of the connects in the last hour.
+    private final ArrayDeque<Long> mRecentConnects = new ArrayDeque<>();
+
+    private int mReferences;
+    private long mReleasedAt;
+    private long mRetryMillis;
+
+    private long mConnectCount;
+    private long mFailureCount;
+    private long mSuspendCount;
+    private long mDisconnectCount;
+    private long mBlockedMillis;
+
+    public SharedConnection(Client client, long lingerMillis, long retryMinMillis,
+                            long retryMaxMillis, Clock clock) {
+        if (lingerMillis < 0 || retryMinMillis <= 0 || retryMaxMillis < retryMinMillis) {
+            throw new IllegalArgumentException("bad linger or retry: " + lingerMillis + ", "
+                    + retryMinMillis + ", " + retryMaxMillis);
+        }
+        mClient = client;
+        mLingerMillis = lingerMillis;
+        mRetryMinMillis = retryMinMillis;
+        mRetryMaxMillis = retryMaxMillis;
+        mClock = clock;
+        mRetryMillis = retryMinMillis;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Takes a reference, and starts connecting if not already.
+     */
+    public synchronized void acquire() {
+        mReferences++;
+        connect();
+    }
+
+    /**
+     * Gives up a reference. Returns how long to wait before {@link #disconnectIfIdle} if that was
+     * the last one, otherwise -1.
+     */
+    public synchronized long release() {
+        if (mReferences == 0) {
+            throw new IllegalStateException("released more than acquired");
+        }
+        if (--mReferences > 0) {
+            return -1;
+        }
+        mReleasedAt = mClock.now();
+        return mLingerMillis;
+    }
+
+    /**
+     * Disconnects if nothing has referenced the connection for the linger. Returns whether it
+     * disconnected.
+     */
+    public synchronized boolean disconnectIfIdle() {
+        if (mReferences > 0 || mClock.now() - mReleasedAt < mLingerMillis
+                || !(mClient.isConnected() || mClient.isConnecting())) {
+            return false;
+        }
+        mClient.disconnect();
+        mDisconnectCount++;
+        return true;
+    }
+
+    public boolean isConnected() {
+        return mClient.isConnected();
+    }
+
+    /**
+     * Starts connecting if referenced and neither connected nor connecting, without blocking.
+     */
+    public synchronized void connect() {
+        if (mReferences > 0 && !mClient.isConnected() && !mClient.isConnecting()) {
+            mClient.connect();
+        }
+    }
+
+    /**
+     * Counts the connect and tells the listeners, to be called by the client's callback.
+     */
+    public void onConnected() {
+        synchronized (this) {
+            long now = mClock.now();
+            mConnectCount++;
+            mRecentConnects.add(now);
+            expireConnects(now);
+            mRetryMillis = mRetryMinMillis;
+        }
+        for (Listener listener : mListeners) {
+            listener.onConnected();
+        }
+    }
+
+    /**
+     * Counts a suspended connection, which the client reconnects by itself.
+     */
+    public synchronized void onConnectionSuspended() {
+        mSuspendCount++;
+    }
+
+    /**
+     * Counts the failure. Returns how long to wait before {@link #connect} again, doubling
+     * each time, or -1 if nothing references the connection any more.
+     */
+    public synchronized long onConnectionFailed() {
+        mFailureCount++;
+        if (mReferences == 0) {
+            return -1;
+        }
+        long delay = mRetryMillis;
+        mRetryMillis = Math.min(mRetryMillis * 2, mRetryMaxMillis);
+        return delay;
+    }
+
+    /**
+     * Records time a caller spent blocked waiting on the connection.
+     */
+    public synchronized void recordBlocked(long millis) {
+        mBlockedMillis += millis;
+        mBlocked.record(millis);
+    }
+
+    public synchronized int references() {
+        return mReferences;
+    }
+
+    public synchronized long connectCount() {
+        return mConnectCount;
+    }
+
+    /**
+     * Returns the number of connects in the last hour.
+     */
+    public synchronized int connectsInLastHour() {
+        expireConnects(mClock.now());
+        return mRecentConnects.size();
+    }
+
+    public synchronized long blockedMillis() {
+        return mBlockedMillis;
+    }
+
+    private void expireConnects(long now) {
+        while (!mRecentConnects.isEmpty() && now - mRecentConnects.peek() >= HOUR_MS) {
+            mRecentConnects.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SharedConnection[references=%d, %s, connects=%d (%d/h), "
+                        + "failures=%d, suspended=%d, disconnects=%d, blocked=%dms (%s)]",
+                mReferences, mClient.isConnected() ? "connected" : "disconnected",
+                mConnectCount, connectsInLastHour(), mFailureCount, mSuspendCount,
+                mDisconnectCount, mBlockedMillis, mBlocked);
+    }
+}
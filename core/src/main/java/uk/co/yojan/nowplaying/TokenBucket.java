@@ -0,0 +1,69 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Token bucket rate limiter: bursts of up to the capacity, then a steady refill rate.
+ *
+ * Callers can ask to leave a reserve of tokens untouched, so that low priority work gives way
+ * before the bucket runs dry for high priority work.
+ */
+public class TokenBucket {
+
+    private final int mCapacity;
+    private final double mTokensPerMilli;
+    private final Clock mClock;
+
+    private double mTokens;
+    private long mRefilledAt;
+
+    public TokenBucket(int capacity, double tokensPerSecond, Clock clock) {
+        if (capacity <= 0 || tokensPerSecond <= 0) {
+            throw new IllegalArgumentException(
+                    "capacity and rate must be positive: " + capacity + ", " + tokensPerSecond);
+        }
+        mCapacity = capacity;
+        mTokensPerMilli = tokensPerSecond / 1000;
+        mClock = clock;
+        mTokens = capacity;
+        mRefilledAt = clock.now();
+    }
+
+    /**
+     * Takes a token if that leaves at least the reserve in the bucket.
+     */
+    public synchronized boolean tryAcquire(int reserve) {
+        refill();
+        if (mTokens < 1 + reserve) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    /**
+     * Returns how long until {@link #tryAcquire} with the reserve would succeed.
+     */
+    public synchronized long millisUntilAvailable(int reserve) {
+        refill();
+        double missing = 1 + reserve - mTokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / mTokensPerMilli);
+    }
+
+    public synchronized double available() {
+        refill();
+        return mTokens;
+    }
+
+    private void refill() {
+        long now = mClock.now();
+        if (now > mRefilledAt) {
+            mTokens = Math.min(mCapacity, mTokens + (now - mRefilledAt) * mTokensPerMilli);
+            mRefilledAt = now;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TokenBucket[%.1f/%d, %.1f/s]", available(), mCapacity,
+                mTokensPerMilli * 1000);
+    }
+}
@@ -0,0 +1,82 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Follows traces through a sequence of named marks and keeps a latency histogram for each mark,
+ * of the time since the previous mark of the same trace, plus one for the whole trace.
+ *
+ * Times are wall clock milliseconds, so that a trace started on the phone can be continued on
+ * the watch. Watch time is synced from the phone, but any skew left shows up in the first mark
+ * recorded on the watch, and negative intervals are recorded as 0.
+ */
+public class Tracer {
+
+    public static final String TOTAL = "total";
+
+    private static final int MAX_OPEN_TRACES = 16;
+
+    private final int mWindow;
+    // Histograms in the order their marks were first seen, which is usually pipeline order.
+    private final Map<String, LatencyHistogram> mHistograms = new LinkedHashMap<>();
+    // trace id -> {start, last mark}, for traces that have not ended yet.
+    private final Map<Long, long[]> mOpenTraces = new LinkedHashMap<Long, long[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+            // Traces for skipped tracks never end.
+            return size() > MAX_OPEN_TRACES;
+        }
+    };
+
+    public Tracer(int window) {
+        mWindow = window;
+    }
+
+    public synchronized void begin(long traceId, long startMillis) {
+        mOpenTraces.put(traceId, new long[]{startMillis, startMillis});
+    }
+
+    /**
+     * Records the time since the trace's previous mark against the named mark. Unknown traces,
+     * such as ones that were never begun, are ignored.
+     */
+    public synchronized void mark(long traceId, String name, long nowMillis) {
+        long[] trace = mOpenTraces.get(traceId);
+        if (trace == null) {
+            return;
+        }
+        histogram(name).record(Math.max(0, nowMillis - trace[1]));
+        trace[1] = nowMillis;
+    }
+
+    /**
+     * Ends the trace, recording the time since it began against {@link #TOTAL}.
+     */
+    public synchronized void end(long traceId, long nowMillis) {
+        long[] trace = mOpenTraces.remove(traceId);
+        if (trace != null) {
+            histogram(TOTAL).record(Math.max(0, nowMillis - trace[0]));
+        }
+    }
+
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram(mWindow);
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns one line per mark, for debug dumps.
+     */
+    public synchronized String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+}
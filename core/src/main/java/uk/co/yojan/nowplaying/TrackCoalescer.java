@@ -0,0 +1,120 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Coalesces bursts of track changes so that only the most recent track is ever processed.
+ *
+ * Every submitted track gets a new generation, which supersedes all earlier generations. Work
+ * for a generation waits for a quiet window without further submissions before it starts,
+ * either blocking in {@link #awaitQuiet(long)} or polling {@link #tryStart(long)}, and
+ * checks {@link #isCurrent(long)} between stages so that work for skipped tracks stops early.
+ */
+public class TrackCoalescer {
+
+    /** Returned by {@link #submit(String)} when the track is already waiting to be processed. */
+    public static final long DUPLICATE = -1;
+
+    /** Returned by {@link #tryStart(long)} when a later track has been submitted. */
+    public static final long SUPERSEDED = -1;
+
+    private final long mQuietWindowMs;
+    private final Clock mClock;
+
+    private long mGeneration;
+    private String mPendingTrackId;
+    private long mLastSubmitAt;
+
+    private long mSubmittedCount;
+    private long mStartedCount;
+    private long mSupersededCount;
+
+    public TrackCoalescer(long quietWindowMs, Clock clock) {
+        mQuietWindowMs = quietWindowMs;
+        mClock = clock;
+    }
+
+    /**
+     * Records a new track, superseding any earlier work.
+     *
+     * @return the generation to pass to {@link #awaitQuiet(long)}, or {@link #DUPLICATE} if the
+     * same track is already waiting for its quiet window
+     */
+    public synchronized long submit(String trackId) {
+        mSubmittedCount++;
+        mLastSubmitAt = mClock.now();
+        if (trackId != null && trackId.equals(mPendingTrackId)) {
+            // e.g. metadata and playback state broadcasts for the same track.
+            return DUPLICATE;
+        }
+        mPendingTrackId = trackId;
+        mGeneration++;
+        notifyAll();
+        return mGeneration;
+    }
+
+    /**
+     * Blocks until no track has been submitted for the quiet window.
+     *
+     * @return true if the generation is still the latest and its work should start, false if it
+     * was superseded while waiting
+     */
+    public synchronized boolean awaitQuiet(long generation) throws InterruptedException {
+        long remaining;
+        while ((remaining = tryStart(generation)) > 0) {
+            wait(remaining);
+        }
+        return remaining == 0;
+    }
+
+    /**
+     * Like {@link #awaitQuiet(long)}, but returns instead of blocking, for callers that would
+     * rather schedule the wait.
+     *
+     * @return 0 if the generation's work should start now, the milliseconds left of the quiet
+     * window, or {@link #SUPERSEDED}
+     */
+    public synchronized long tryStart(long generation) {
+        if (generation != mGeneration) {
+            mSupersededCount++;
+            return SUPERSEDED;
+        }
+        long remaining = mLastSubmitAt + mQuietWindowMs - mClock.now();
+        if (remaining > 0) {
+            return remaining;
+        }
+        mPendingTrackId = null;
+        mStartedCount++;
+        return 0;
+    }
+
+    /**
+     * Returns whether work for the generation should continue.
+     */
+    public synchronized boolean isCurrent(long generation) {
+        return generation == mGeneration;
+    }
+
+    /**
+     * Returns the latest generation, 0 before any track was submitted.
+     */
+    public synchronized long generation() {
+        return mGeneration;
+    }
+
+    public synchronized long submittedCount() {
+        return mSubmittedCount;
+    }
+
+    public synchronized long startedCount() {
+        return mStartedCount;
+    }
+
+    public synchronized long supersededCount() {
+        return mSupersededCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TrackCoalescer[submitted=%d, started=%d, superseded=%d]",
+                mSubmittedCount, mStartedCount, mSupersededCount);
+    }
+}
@@ -0,0 +1,32 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Parses the track ids in Spotify's broadcasts, which come as uris, into the bare ids the web
+ * api expects.
+ */
+public final class TrackIds {
+
+    private static final char SEPARATOR = ':';
+
+    // noninstantiable
+    private TrackIds() { }
+
+    /**
+     * Returns the id from a uri of the form spotify:track:id. Scans the uri once, without
+     * splitting it into an array of parts.
+     *
+     * @throws IllegalArgumentException if the uri does not have exactly three parts, or its id
+     * is empty
+     */
+    public static String fromUri(String uri) throws IllegalArgumentException {
+        if (uri != null) {
+            int first = uri.indexOf(SEPARATOR);
+            int second = first < 0 ? -1 : uri.indexOf(SEPARATOR, first + 1);
+            if (second >= 0 && second < uri.length() - 1
+                    && uri.indexOf(SEPARATOR, second + 1) < 0) {
+                return uri.substring(second + 1);
+            }
+        }
+        throw new IllegalArgumentException("Illegal spotify track id: " + uri);
+    }
+}
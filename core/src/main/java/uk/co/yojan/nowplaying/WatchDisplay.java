@@ -0,0 +1,97 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Display capabilities published by the watch face, used to size album art exactly for the
+ * watch so that it never has to rescale it.
+ */
+public class WatchDisplay {
+
+    public static final String PATH = "/capabilities";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_ROUND = "round";
+    public static final String KEY_CHIN_HEIGHT = "chinHeight";
+    public static final String KEY_DENSITY_DPI = "densityDpi";
+    public static final String KEY_LOW_BIT_AMBIENT = "lowBitAmbient";
+    public static final String KEY_BURN_IN_PROTECTION = "burnInProtection";
+
+    /** Used until the watch face has published its capabilities. */
+    public static final WatchDisplay DEFAULT =
+            new WatchDisplay(300, 300, false, 0, 0, false, false);
+
+    public final int width;
+    public final int height;
+    public final boolean round;
+    public final int chinHeight;
+    public final int densityDpi;
+    public final boolean lowBitAmbient;
+    public final boolean burnInProtection;
+
+    public WatchDisplay(int width, int height, boolean round, int chinHeight, int densityDpi,
+                        boolean lowBitAmbient, boolean burnInProtection) {
+        this.width = width;
+        this.height = height;
+        this.round = round;
+        this.chinHeight = chinHeight;
+        this.densityDpi = densityDpi;
+        this.lowBitAmbient = lowBitAmbient;
+        this.burnInProtection = burnInProtection;
+    }
+
+    public boolean isValid() {
+        return width > 0 && height > 0;
+    }
+
+    /**
+     * Size to pick the source image for, the art is scaled to fill the whole surface.
+     */
+    public int maxDimension() {
+        return Math.max(width, height);
+    }
+
+    /**
+     * Height of the part of the display above the chin, where the art is shown.
+     */
+    public int visibleHeight() {
+        return Math.max(height - chinHeight, 0);
+    }
+
+    /**
+     * Encoded art differs per display, so cache entries are keyed by both album and display.
+     */
+    public String cacheKey(String albumId) {
+        return albumId + "_" + width + "x" + height + (round ? "r" : "s")
+                + (chinHeight > 0 ? "c" + chinHeight : "") + (lowBitAmbient ? "l" : "")
+                + (burnInProtection ? "b" : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof WatchDisplay)) {
+            return false;
+        }
+        WatchDisplay other = (WatchDisplay) o;
+        return width == other.width && height == other.height && round == other.round
+                && chinHeight == other.chinHeight && densityDpi == other.densityDpi
+                && lowBitAmbient == other.lowBitAmbient
+                && burnInProtection == other.burnInProtection;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = width;
+        result = 31 * result + height;
+        result = 31 * result + (round ? 1 : 0);
+        result = 31 * result + chinHeight;
+        result = 31 * result + densityDpi;
+        result = 31 * result + (lowBitAmbient ? 1 : 0);
+        return 31 * result + (burnInProtection ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WatchDisplay[%dx%d %s chin=%d %ddpi lowBit=%b burnIn=%b]",
+                width, height, round ? "round" : "square", chinHeight, densityDpi,
+                lowBitAmbient, burnInProtection);
+    }
+}
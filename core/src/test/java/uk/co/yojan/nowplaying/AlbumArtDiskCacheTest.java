@@ -0,0 +1,169 @@
+package uk.co.yojan.nowplaying;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AlbumArtDiskCacheTest {
+
+    private File mDirectory;
+    private HttpServer mServer;
+    private byte[] mImage;
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("albumart", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+
+        mImage = new byte[64 * 1024];
+        new Random(42).nextBytes(mImage);
+
+        // Local stand-in for the image CDN.
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/image", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequests.incrementAndGet();
+                exchange.sendResponseHeaders(200, mImage.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(mImage);
+                body.close();
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void getReturnsWhatWasPut() {
+        AlbumArtDiskCache cache = new AlbumArtDiskCache(mDirectory, 1024);
+        assertNull(cache.get("album1"));
+        cache.put("album1", new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get("album1"));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() {
+        AlbumArtDiskCache cache = new AlbumArtDiskCache(mDirectory, 300);
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+        cache.put("c", new byte[100]);
+        // Touch a so that b becomes the eldest entry.
+        assertNotNull(cache.get("a"));
+        cache.put("d", new byte[100]);
+
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("c"));
+        assertTrue(cache.contains("d"));
+        assertEquals(300, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void survivesReopening() {
+        AlbumArtDiskCache cache = new AlbumArtDiskCache(mDirectory, 1024);
+        cache.put("album1", new byte[]{4, 5, 6});
+
+        AlbumArtDiskCache reopened = new AlbumArtDiskCache(mDirectory, 1024);
+        assertEquals(1, reopened.entryCount());
+        assertEquals(3, reopened.size());
+        assertArrayEquals(new byte[]{4, 5, 6}, reopened.get("album1"));
+    }
+
+    @Test
+    public void rejectsKeysOutsideDirectory() {
+        AlbumArtDiskCache cache = new AlbumArtDiskCache(mDirectory, 1024);
+        cache.put("../escape", new byte[]{1});
+        assertNull(cache.get("../escape"));
+        assertEquals(0, cache.entryCount());
+    }
+
+    /**
+     * Measures what a hit saves over downloading from the local stand-in. The latencies are
+     * reported rather than asserted on, as wall time depends on the machine; the benchmark in
+     * the jmh source set measures the hit path on its own.
+     */
+    @Test
+    public void hitSkipsNetwork() throws Exception {
+        AlbumArtDiskCache cache = new AlbumArtDiskCache(mDirectory, 4 * 1024 * 1024);
+        URL url = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/image");
+        int rounds = 20;
+
+        long missNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            String albumId = "miss" + i;
+            long start = System.nanoTime();
+            byte[] art = cache.get(albumId);
+            if (art == null) {
+                art = download(url);
+                cache.put(albumId, art);
+            }
+            missNanos += System.nanoTime() - start;
+        }
+
+        long hitNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            byte[] art = cache.get("miss" + i);
+            hitNanos += System.nanoTime() - start;
+            assertArrayEquals(mImage, art);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "AlbumArtDiskCache: miss %.3fms, hit %.3fms, %.3fms saved per track",
+                missNanos / 1e6 / rounds, hitNanos / 1e6 / rounds,
+                (missNanos - hitNanos) / 1e6 / rounds));
+        assertEquals(rounds, cache.hitCount());
+        assertEquals(rounds, cache.missCount());
+        assertEquals(rounds, mRequests.get());
+    }
+
+    private static byte[] download(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
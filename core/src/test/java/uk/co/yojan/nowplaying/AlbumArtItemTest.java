@@ -0,0 +1,21 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AlbumArtItemTest {
+
+    @Test
+    public void hashIsHexSha1() {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d",
+                AlbumArtItem.hash("abc".getBytes()));
+    }
+
+    @Test
+    public void hashDependsOnlyOnContent() {
+        String hash = AlbumArtItem.hash(new byte[]{1, 2, 3});
+        assertEquals(hash, AlbumArtItem.hash(new byte[]{1, 2, 3}));
+        assertNotEquals(hash, AlbumArtItem.hash(new byte[]{1, 2, 4}));
+    }
+}
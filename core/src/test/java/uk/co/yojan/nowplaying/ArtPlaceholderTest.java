@@ -0,0 +1,73 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ArtPlaceholderTest {
+
+    private static final int RED = 0xffff0000;
+    private static final int BLUE = 0xff0000ff;
+
+    @Test
+    public void dominantColorIsMostCommonColor() {
+        int[] pixels = new int[100];
+        Arrays.fill(pixels, 0, 70, BLUE);
+        Arrays.fill(pixels, 70, 100, RED);
+        assertEquals(BLUE, ArtPlaceholder.dominantColor(pixels));
+    }
+
+    @Test
+    public void dominantColorAveragesSimilarShades() {
+        int[] pixels = {0xff100000, 0xff1e0000, 0xff00ff00};
+        // Both reds fall in the same bucket, so win over the single green.
+        assertEquals(0xff170000, ArtPlaceholder.dominantColor(pixels));
+    }
+
+    @Test
+    public void thumbnailAveragesBlocks() {
+        int size = ArtPlaceholder.SIZE * 4;
+        int[] pixels = new int[size * size];
+        // Left half red, right half blue.
+        for (int y = 0; y < size; y++) {
+            Arrays.fill(pixels, y * size, y * size + size / 2, RED);
+            Arrays.fill(pixels, y * size + size / 2, (y + 1) * size, BLUE);
+        }
+        ArtPlaceholder placeholder = ArtPlaceholder.fromPixels(pixels, size, size);
+
+        assertEquals(ArtPlaceholder.SIZE, placeholder.width);
+        assertEquals(ArtPlaceholder.SIZE, placeholder.height);
+        assertEquals(ArtPlaceholder.SIZE * ArtPlaceholder.SIZE * 3, placeholder.thumbnail.length);
+        int[] thumbnail = placeholder.toPixels();
+        assertEquals(RED, thumbnail[0]);
+        assertEquals(BLUE, thumbnail[ArtPlaceholder.SIZE - 1]);
+    }
+
+    @Test
+    public void smallCoversAreNotUpscaled() {
+        int[] pixels = {RED, BLUE, BLUE, RED};
+        ArtPlaceholder placeholder = ArtPlaceholder.fromPixels(pixels, 2, 2);
+        assertEquals(2, placeholder.width);
+        assertArrayEquals(pixels, placeholder.toPixels());
+    }
+
+    @Test
+    public void payloadIsAFewHundredBytes() {
+        int[] pixels = new int[640 * 640];
+        ArtPlaceholder placeholder = ArtPlaceholder.fromPixels(pixels, 640, 640);
+        assertTrue(placeholder.thumbnail.length < 500);
+    }
+
+    @Test
+    public void solidPlaceholderIsOnePixelOfTheColor() {
+        ArtPlaceholder placeholder = ArtPlaceholder.solid(0xff123456);
+        assertArrayEquals(new int[]{0xff123456}, placeholder.toPixels());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMismatchedThumbnail() {
+        new ArtPlaceholder(RED, 2, 2, new byte[3]);
+    }
+}
@@ -0,0 +1,37 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DecodeStatsTest {
+
+    private final DecodeStats mStats = new DecodeStats();
+
+    @Test
+    public void peakIsTheCoverAndItsArt() {
+        mStats.record(10000000, 400, 1600, 200, 500);
+        mStats.record(30000000, 1600, 1600, 200, 1900);
+
+        assertEquals(2, mStats.decodes());
+        assertEquals(20, mStats.averageDecodeMillis(), 1e-9);
+        assertEquals((600 + 1800) / 2, mStats.averagePeakBytes());
+        assertEquals(1800, mStats.averageFullResolutionPeakBytes());
+        assertEquals((500 + 1900) / 2, mStats.averageHeapGrowthBytes());
+    }
+
+    @Test
+    public void heapThatShrankDuringTheDecodeCountsAsNoGrowth() {
+        mStats.record(10000000, 400, 1600, 200, -4096);
+
+        assertEquals(0, mStats.averageHeapGrowthBytes());
+    }
+
+    @Test
+    public void nothingRecorded() {
+        assertEquals(0, mStats.averageDecodeMillis(), 1e-9);
+        assertEquals(0, mStats.averagePeakBytes());
+        assertEquals(0, mStats.averageFullResolutionPeakBytes());
+        assertEquals(0, mStats.averageHeapGrowthBytes());
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameSchedulerTest {
+
+    private static final long MINUTE = 60 * 1000;
+
+    @Test
+    public void tickingWaitsForTheNextSecond() {
+        FrameScheduler scheduler = new FrameScheduler(FrameScheduler.SecondsMode.TICKING);
+        assertEquals(1000, scheduler.delayMillis(5000));
+        assertEquals(750, scheduler.delayMillis(5250));
+        assertEquals(1, scheduler.delayMillis(5999));
+    }
+
+    @Test
+    public void sweepingWaitsForTheNextFrame() {
+        FrameScheduler scheduler = new FrameScheduler(FrameScheduler.SecondsMode.SWEEPING);
+        long interval = 1000 / FrameScheduler.SWEEP_FPS;
+        assertEquals(interval, scheduler.delayMillis(interval * 10));
+        assertEquals(interval - 5, scheduler.delayMillis(interval * 10 + 5));
+    }
+
+    @Test
+    public void noTimerWithoutASecondHand() {
+        FrameScheduler scheduler = new FrameScheduler(FrameScheduler.SecondsMode.NONE);
+        assertEquals(-1, scheduler.delayMillis(5250));
+    }
+
+    @Test
+    public void backsOffForBatteryAndPlayback() {
+        FrameScheduler scheduler = new FrameScheduler(FrameScheduler.SecondsMode.SWEEPING);
+        scheduler.setBattery(FrameScheduler.LOW_BATTERY_PERCENT, false);
+        assertEquals(FrameScheduler.SecondsMode.TICKING, scheduler.effectiveMode());
+        assertEquals(FrameScheduler.TICK_INTERVAL_MS, scheduler.intervalMillis());
+
+        scheduler.setBattery(FrameScheduler.CRITICAL_BATTERY_PERCENT, false);
+        assertEquals(FrameScheduler.SecondsMode.NONE, scheduler.effectiveMode());
+        scheduler.setBattery(FrameScheduler.CRITICAL_BATTERY_PERCENT, true);
+        assertEquals(FrameScheduler.SecondsMode.SWEEPING, scheduler.effectiveMode());
+
+        scheduler.setPlaying(false);
+        assertEquals(FrameScheduler.SecondsMode.NONE, scheduler.effectiveMode());
+        assertEquals(-1, scheduler.delayMillis(5250));
+    }
+
+    @Test
+    public void countsFramesOverTheLastHour() {
+        FrameScheduler scheduler = new FrameScheduler(FrameScheduler.SecondsMode.TICKING);
+        long start = 1000 * MINUTE;
+        for (int minute = 0; minute < 90; minute++) {
+            scheduler.recordFrame(start + minute * MINUTE);
+            scheduler.recordFrame(start + minute * MINUTE + 500);
+        }
+
+        long now = start + 89 * MINUTE;
+        assertEquals(120, scheduler.framesInLastHour(now));
+        // Minutes that have dropped out of the hour are not counted.
+        assertEquals(60, scheduler.framesInLastHour(now + 30 * MINUTE));
+        assertEquals(0, scheduler.framesInLastHour(now + 60 * MINUTE));
+    }
+
+    @Test
+    public void reusesABucketOnceItsMinuteHasPassed() {
+        FrameScheduler scheduler = new FrameScheduler(FrameScheduler.SecondsMode.TICKING);
+        scheduler.recordFrame(0);
+        scheduler.recordFrame(1);
+        // Lands in the same bucket an hour later.
+        scheduler.recordFrame(60 * MINUTE);
+
+        assertEquals(1, scheduler.framesInLastHour(60 * MINUTE));
+        assertTrue(scheduler.toString().contains("framesLastHour=1"));
+    }
+}
@@ -0,0 +1,63 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HttpStatsTest {
+
+    private final HttpStats mStats = new HttpStats();
+
+    @Test
+    public void countsOutcomesPerHost() {
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.NETWORK);
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.CACHED);
+        mStats.recordOutcome("api.spotify.com", HttpStats.Outcome.NETWORK);
+
+        HttpStats.Host images = mStats.host("i.scdn.co");
+        assertEquals(2, images.requests());
+        assertEquals(1, images.count(HttpStats.Outcome.CACHED));
+        assertEquals(1, mStats.host("api.spotify.com").requests());
+    }
+
+    @Test
+    public void validationRateIsOverRevalidatedRequestsOnly() {
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.NOT_MODIFIED);
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.NOT_MODIFIED);
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.NOT_MODIFIED);
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.MODIFIED);
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.NETWORK);
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.CACHED);
+
+        assertEquals(0.75, mStats.host("i.scdn.co").validationRate(), 1e-9);
+    }
+
+    @Test
+    public void reuseRateIsOverExchanges() {
+        mStats.recordExchange("api.spotify.com", false, true);
+        mStats.recordExchange("api.spotify.com", true, true);
+        mStats.recordExchange("api.spotify.com", true, true);
+        mStats.recordExchange("api.spotify.com", true, true);
+
+        HttpStats.Host api = mStats.host("api.spotify.com");
+        assertEquals(1, api.newConnections());
+        assertEquals(3, api.reusedConnections());
+        assertEquals(0.75, api.reuseRate(), 1e-9);
+    }
+
+    @Test
+    public void unknownHostHasNoRates() {
+        HttpStats.Host host = mStats.host("example.com");
+        assertEquals(0, host.requests());
+        assertEquals(0, host.reuseRate(), 1e-9);
+        assertEquals(0, host.validationRate(), 1e-9);
+    }
+
+    @Test
+    public void hostIsACopy() {
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.NETWORK);
+        HttpStats.Host before = mStats.host("i.scdn.co");
+        mStats.recordOutcome("i.scdn.co", HttpStats.Outcome.NETWORK);
+        assertEquals(1, before.requests());
+    }
+}
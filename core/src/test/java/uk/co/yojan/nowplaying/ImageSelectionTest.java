@@ -0,0 +1,46 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageSelectionTest {
+
+    private static final int[] SPOTIFY_SIZES = {640, 300, 64};
+
+    @Test
+    public void choosesSmallestImageAboveTarget() {
+        assertEquals(1, ImageSelection.choose(SPOTIFY_SIZES, 300));
+        assertEquals(1, ImageSelection.choose(SPOTIFY_SIZES, 280));
+        assertEquals(0, ImageSelection.choose(SPOTIFY_SIZES, 400));
+    }
+
+    @Test
+    public void keepsFirstImageIfAllAreTooSmall() {
+        assertEquals(0, ImageSelection.choose(SPOTIFY_SIZES, 1000));
+    }
+
+    @Test
+    public void noImages() {
+        assertEquals(-1, ImageSelection.choose(new int[0], 300));
+    }
+
+    @Test
+    public void subsamplesWhileTheImageStillCoversTheTarget() {
+        assertEquals(2, ImageSelection.sampleSize(640, 640, 320, 290));
+        assertEquals(1, ImageSelection.sampleSize(640, 640, 400, 400));
+        assertEquals(4, ImageSelection.sampleSize(1280, 1280, 320, 320));
+        // Limited by the shorter side.
+        assertEquals(2, ImageSelection.sampleSize(1280, 640, 320, 320));
+    }
+
+    @Test
+    public void neverSubsamplesImagesSmallerThanTheTarget() {
+        assertEquals(1, ImageSelection.sampleSize(300, 300, 320, 320));
+    }
+
+    @Test
+    public void noSubsamplingWithoutATarget() {
+        assertEquals(1, ImageSelection.sampleSize(640, 640, 0, 0));
+    }
+}
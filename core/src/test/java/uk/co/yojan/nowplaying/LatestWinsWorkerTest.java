@@ -0,0 +1,114 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatestWinsWorkerTest {
+
+    private final List<String> mRun = new ArrayList<>();
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private volatile boolean mSupersededWhileRunning;
+
+    // Blocks on its first input until released, so later inputs can be submitted meanwhile.
+    private final LatestWinsWorker<String> mWorker = new LatestWinsWorker<>("test",
+            new LatestWinsWorker.Task<String>() {
+                @Override
+                public void run(String input, long order) throws InterruptedException {
+                    if (mStarted.getCount() > 0) {
+                        mStarted.countDown();
+                        mRelease.await(10, TimeUnit.SECONDS);
+                        mSupersededWhileRunning = !mWorker.isCurrent(order);
+                    }
+                    synchronized (mRun) {
+                        mRun.add(input);
+                        mRun.notifyAll();
+                    }
+                }
+            });
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mWorker.shutdown();
+    }
+
+    @Test
+    public void replacesAWaitingInput() throws InterruptedException {
+        assertTrue(mWorker.submit("a", 1));
+        assertTrue(mStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(mWorker.submit("b", 2));
+        assertTrue(mWorker.submit("c", 3));
+        mRelease.countDown();
+
+        awaitRuns(2);
+        assertEquals(list("a", "c"), mRun);
+        assertTrue(mWorker.toString().contains("replaced=1"));
+    }
+
+    @Test
+    public void supersedesTheRunningInput() throws InterruptedException {
+        assertTrue(mWorker.submit("a", 1));
+        assertTrue(mStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(mWorker.isCurrent(1));
+        assertTrue(mWorker.submit("b", 2));
+        assertFalse(mWorker.isCurrent(1));
+        mRelease.countDown();
+
+        awaitRuns(2);
+        assertTrue(mSupersededWhileRunning);
+        assertTrue(mWorker.isCurrent(2));
+    }
+
+    @Test
+    public void dropsInputsThatArriveOutOfOrder() throws InterruptedException {
+        assertTrue(mWorker.submit("a", 1));
+        assertTrue(mStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(mWorker.submit("c", 30));
+        // Sent before c, but arrived after it.
+        assertFalse(mWorker.submit("b", 20));
+        mRelease.countDown();
+
+        awaitRuns(2);
+        assertEquals(list("a", "c"), mRun);
+        assertTrue(mWorker.isCurrent(30));
+        assertTrue(mWorker.toString().contains("dropped=1"));
+    }
+
+    @Test
+    public void runsAnInputOfTheSameOrderAgain() throws InterruptedException {
+        assertTrue(mWorker.submit("a", 1));
+        mRelease.countDown();
+        awaitRuns(1);
+
+        assertTrue(mWorker.submit("a", 1));
+        awaitRuns(2);
+        assertEquals(list("a", "a"), mRun);
+    }
+
+    private void awaitRuns(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        synchronized (mRun) {
+            while (mRun.size() < count) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                assertTrue("only ran " + mRun, remaining > 0);
+                mRun.wait(remaining);
+            }
+        }
+    }
+
+    private static List<String> list(String... inputs) {
+        List<String> list = new ArrayList<>();
+        for (String input : inputs) {
+            list.add(input);
+        }
+        return list;
+    }
+}
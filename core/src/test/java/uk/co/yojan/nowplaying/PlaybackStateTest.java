@@ -0,0 +1,34 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PlaybackStateTest {
+
+    @Test
+    public void extrapolatesPositionWhilePlaying() {
+        PlaybackState state = new PlaybackState(true, 30000, 1000);
+        assertEquals(30000, state.positionAt(1000));
+        assertEquals(35000, state.positionAt(6000));
+        // Clocks that went backwards never rewind the track.
+        assertEquals(30000, state.positionAt(500));
+    }
+
+    @Test
+    public void holdsPositionWhilePaused() {
+        PlaybackState state = new PlaybackState(false, 30000, 1000);
+        assertEquals(30000, state.positionAt(60000));
+    }
+
+    @Test
+    public void onlyPlayPauseChangesAreUrgent() {
+        PlaybackState playing = new PlaybackState(true, 0, 1000);
+        PlaybackState seeked = new PlaybackState(true, 90000, 2000);
+        PlaybackState paused = new PlaybackState(false, 90000, 3000);
+        assertTrue(playing.isUrgentAfter(null));
+        assertFalse(seeked.isUrgentAfter(playing));
+        assertTrue(paused.isUrgentAfter(seeked));
+        assertTrue(seeked.isUrgentAfter(paused));
+    }
+}
@@ -0,0 +1,166 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SharedConnectionTest {
+
+    private static final long LINGER = 30000;
+
+    private long mNow = 1000;
+
+    private final Clock mClock = new Clock() {
+        @Override
+        public long now() {
+            return mNow;
+        }
+    };
+
+    private final FakeClient mClient = new FakeClient();
+    private final SharedConnection mConnection =
+            new SharedConnection(mClient, LINGER, 1000, 8000, mClock);
+
+    @Test
+    public void connectsOnceForOverlappingReferences() {
+        mConnection.acquire();
+        mConnection.acquire();
+        assertEquals(1, mClient.connects);
+        mClient.up(mConnection);
+
+        assertEquals(-1, mConnection.release());
+        assertEquals(LINGER, mConnection.release());
+        assertEquals(1, mClient.connects);
+        assertEquals(1, mConnection.connectCount());
+    }
+
+    @Test
+    public void lingersAfterTheLastRelease() {
+        mConnection.acquire();
+        mClient.up(mConnection);
+        mConnection.release();
+
+        mNow += LINGER - 1;
+        assertFalse(mConnection.disconnectIfIdle());
+        assertTrue(mConnection.isConnected());
+
+        mNow += 1;
+        assertTrue(mConnection.disconnectIfIdle());
+        assertFalse(mConnection.isConnected());
+    }
+
+    @Test
+    public void acquiringWithinTheLingerKeepsTheConnection() {
+        mConnection.acquire();
+        mClient.up(mConnection);
+        mConnection.release();
+
+        mNow += LINGER / 2;
+        mConnection.acquire();
+        mNow += LINGER;
+        assertFalse(mConnection.disconnectIfIdle());
+
+        mConnection.release();
+        mNow += LINGER / 2;
+        // Measured from the latest release.
+        assertFalse(mConnection.disconnectIfIdle());
+        assertEquals(1, mClient.connects);
+    }
+
+    @Test
+    public void neverConnectsWithoutAReference() {
+        mConnection.connect();
+        assertEquals(0, mClient.connects);
+    }
+
+    @Test
+    public void backsOffWhileReferenced() {
+        mConnection.acquire();
+        assertEquals(1000, mConnection.onConnectionFailed());
+        assertEquals(2000, mConnection.onConnectionFailed());
+        assertEquals(4000, mConnection.onConnectionFailed());
+        assertEquals(8000, mConnection.onConnectionFailed());
+        assertEquals(8000, mConnection.onConnectionFailed());
+
+        mClient.up(mConnection);
+        mClient.connected = false;
+        assertEquals(1000, mConnection.onConnectionFailed());
+
+        mConnection.release();
+        assertEquals(-1, mConnection.onConnectionFailed());
+    }
+
+    @Test
+    public void tellsListenersOnEveryConnect() {
+        final int[] calls = new int[1];
+        mConnection.addListener(new SharedConnection.Listener() {
+            @Override
+            public void onConnected() {
+                calls[0]++;
+            }
+        });
+        mConnection.acquire();
+        mClient.up(mConnection);
+        mClient.up(mConnection);
+        assertEquals(2, calls[0]);
+    }
+
+    @Test
+    public void countsConnectsInTheLastHour() {
+        mConnection.acquire();
+        mClient.up(mConnection);
+        mNow += 30 * 60 * 1000;
+        mClient.up(mConnection);
+        assertEquals(2, mConnection.connectsInLastHour());
+
+        mNow += 30 * 60 * 1000;
+        assertEquals(1, mConnection.connectsInLastHour());
+        assertEquals(2, mConnection.connectCount());
+    }
+
+    @Test
+    public void sumsBlockedTime() {
+        mConnection.recordBlocked(15);
+        mConnection.recordBlocked(25);
+        assertEquals(40, mConnection.blockedMillis());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsUnbalancedRelease() {
+        mConnection.release();
+    }
+
+    private static class FakeClient implements SharedConnection.Client {
+        boolean connected;
+        boolean connecting;
+        int connects;
+
+        void up(SharedConnection connection) {
+            connecting = false;
+            connected = true;
+            connection.onConnected();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isConnecting() {
+            return connecting;
+        }
+
+        @Override
+        public void connect() {
+            connects++;
+            connecting = true;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+            connecting = false;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private long mNow = 1000;
+
+    private final Clock mClock = new Clock() {
+        @Override
+        public long now() {
+            return mNow;
+        }
+    };
+
+    @Test
+    public void allowsBurstThenRefills() {
+        TokenBucket bucket = new TokenBucket(3, 2, mClock);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        assertEquals(500, bucket.millisUntilAvailable(0));
+
+        mNow += 500;
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+    }
+
+    @Test
+    public void neverFillsBeyondCapacity() {
+        TokenBucket bucket = new TokenBucket(2, 10, mClock);
+        mNow += 60000;
+        assertEquals(2, bucket.available(), 1e-9);
+    }
+
+    @Test
+    public void reserveIsLeftForOthers() {
+        TokenBucket bucket = new TokenBucket(4, 1, mClock);
+        assertTrue(bucket.tryAcquire(2));
+        assertTrue(bucket.tryAcquire(2));
+        assertFalse(bucket.tryAcquire(2));
+        assertEquals(1000, bucket.millisUntilAvailable(2));
+        // Without a reserve the last two tokens are still there.
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroRate() {
+        new TokenBucket(1, 0, mClock);
+    }
+}
@@ -0,0 +1,80 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+
+    @Test
+    public void percentilesUseNearestRank() {
+        LatencyHistogram histogram = new LatencyHistogram(100);
+        assertEquals(0, histogram.percentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50, histogram.percentile(50));
+        assertEquals(95, histogram.percentile(95));
+        assertEquals(99, histogram.percentile(99));
+        assertEquals(100, histogram.percentile(100));
+    }
+
+    @Test
+    public void histogramKeepsOnlyTheWindow() {
+        LatencyHistogram histogram = new LatencyHistogram(3);
+        histogram.record(1000);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        assertEquals(3, histogram.count());
+        assertEquals(3, histogram.percentile(100));
+    }
+
+    @Test
+    public void marksRecordTimeSincePreviousMark() {
+        Tracer tracer = new Tracer(10);
+        tracer.begin(7, 1000);
+        tracer.mark(7, "resolved", 1040);
+        tracer.mark(7, "downloaded", 1100);
+        tracer.end(7, 1150);
+
+        assertEquals(40, tracer.histogram("resolved").percentile(50));
+        assertEquals(60, tracer.histogram("downloaded").percentile(50));
+        assertEquals(150, tracer.histogram(Tracer.TOTAL).percentile(50));
+        assertEquals("resolved: p50=40ms, p95=40ms, p99=40ms, n=1\n"
+                + "downloaded: p50=60ms, p95=60ms, p99=60ms, n=1\n"
+                + "total: p50=150ms, p95=150ms, p99=150ms, n=1\n", tracer.dump());
+    }
+
+    @Test
+    public void unknownAndEndedTracesAreIgnored() {
+        Tracer tracer = new Tracer(10);
+        tracer.mark(1, "resolved", 100);
+        tracer.begin(2, 100);
+        tracer.end(2, 200);
+        tracer.mark(2, "resolved", 300);
+        tracer.end(2, 400);
+
+        assertEquals(0, tracer.histogram("resolved").count());
+        assertEquals(1, tracer.histogram(Tracer.TOTAL).count());
+    }
+
+    @Test
+    public void clockSkewIsClampedToZero() {
+        Tracer tracer = new Tracer(10);
+        tracer.begin(3, 1000);
+        tracer.mark(3, "delivered", 900);
+        assertEquals(0, tracer.histogram("delivered").percentile(50));
+    }
+
+    @Test
+    public void abandonedTracesAreBounded() {
+        Tracer tracer = new Tracer(10);
+        for (long id = 1; id <= 100; id++) {
+            tracer.begin(id, 0);
+        }
+        tracer.mark(1, "resolved", 10);
+        tracer.mark(100, "resolved", 10);
+        assertEquals(1, tracer.histogram("resolved").count());
+    }
+}
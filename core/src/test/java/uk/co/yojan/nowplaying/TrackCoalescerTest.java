@@ -0,0 +1,114 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TrackCoalescerTest {
+
+    private static final long QUIET_WINDOW_MS = 100;
+    private static final long STOP = Long.MIN_VALUE;
+
+    @Test
+    public void burstOfSkipsSyncsOnlyTheLastTrack() throws Exception {
+        final TrackCoalescer coalescer = new TrackCoalescer(QUIET_WINDOW_MS, Clock.SYSTEM);
+        final BlockingQueue<Long> intents = new LinkedBlockingQueue<>();
+        final List<String> tracks = new ArrayList<>();
+        final AtomicInteger networkCalls = new AtomicInteger();
+        final List<String> synced = new ArrayList<>();
+
+        // Serial worker standing in for the single resolve stage thread.
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        long generation = intents.take();
+                        if (generation == STOP) {
+                            return;
+                        }
+                        if (!coalescer.awaitQuiet(generation)) {
+                            continue;
+                        }
+                        networkCalls.incrementAndGet();
+                        Thread.sleep(20);
+                        if (coalescer.isCurrent(generation)) {
+                            synchronized (synced) {
+                                synced.add(tracks.get((int) generation - 1));
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        worker.start();
+
+        for (int i = 0; i < 50; i++) {
+            String trackId = "track" + i;
+            synchronized (synced) {
+                tracks.add(trackId);
+            }
+            intents.put(coalescer.submit(trackId));
+            // A second broadcast for the same track is dropped outright.
+            assertEquals(TrackCoalescer.DUPLICATE, coalescer.submit(trackId));
+            Thread.sleep(5);
+        }
+        Thread.sleep(QUIET_WINDOW_MS * 3);
+        intents.put(STOP);
+        worker.join(TimeUnit.SECONDS.toMillis(5));
+
+        // Allow for a scheduling hiccup longer than the quiet window mid-burst.
+        assertTrue("network calls " + networkCalls.get(), networkCalls.get() <= 2);
+        assertTrue("synced " + synced, synced.size() <= 2);
+        assertEquals("track49", synced.get(synced.size() - 1));
+        assertEquals(50, coalescer.startedCount() + coalescer.supersededCount());
+        assertEquals(100, coalescer.submittedCount());
+    }
+
+    @Test
+    public void supersededGenerationIsNotCurrent() throws Exception {
+        TrackCoalescer coalescer = new TrackCoalescer(0, Clock.SYSTEM);
+        long first = coalescer.submit("track1");
+        assertTrue(coalescer.awaitQuiet(first));
+        long second = coalescer.submit("track2");
+        assertFalse(coalescer.isCurrent(first));
+        assertTrue(coalescer.isCurrent(second));
+    }
+
+    @Test
+    public void tryStartReportsTheRestOfTheQuietWindow() {
+        final long[] now = {1000};
+        TrackCoalescer coalescer = new TrackCoalescer(QUIET_WINDOW_MS, new Clock() {
+            @Override
+            public long now() {
+                return now[0];
+            }
+        });
+        long first = coalescer.submit("track1");
+        now[0] += 30;
+        assertEquals(QUIET_WINDOW_MS - 30, coalescer.tryStart(first));
+
+        long second = coalescer.submit("track2");
+        assertEquals(TrackCoalescer.SUPERSEDED, coalescer.tryStart(first));
+        now[0] += QUIET_WINDOW_MS;
+        assertEquals(0, coalescer.tryStart(second));
+        assertEquals(1, coalescer.startedCount());
+        assertEquals(1, coalescer.supersededCount());
+    }
+
+    @Test
+    public void replayingTheSameTrackAfterItStartedIsNotADuplicate() throws Exception {
+        TrackCoalescer coalescer = new TrackCoalescer(0, Clock.SYSTEM);
+        assertTrue(coalescer.awaitQuiet(coalescer.submit("track1")));
+        assertTrue(coalescer.submit("track1") != TrackCoalescer.DUPLICATE);
+    }
+}
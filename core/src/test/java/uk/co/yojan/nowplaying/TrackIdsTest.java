@@ -0,0 +1,28 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrackIdsTest {
+
+    @Test
+    public void extractsIdFromUri() {
+        assertEquals("6rqhFgbbKwnb9MLmUQDhG6",
+                TrackIds.fromUri("spotify:track:6rqhFgbbKwnb9MLmUQDhG6"));
+    }
+
+    @Test
+    public void rejectsMalformedUris() {
+        String[] uris = {null, "", "6rqhFgbbKwnb9MLmUQDhG6", "spotify:6rqhFgbbKwnb9MLmUQDhG6",
+                "spotify:track:", "spotify:local:artist:album:track:120"};
+        for (String uri : uris) {
+            try {
+                TrackIds.fromUri(uri);
+                fail("Accepted " + uri);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+}
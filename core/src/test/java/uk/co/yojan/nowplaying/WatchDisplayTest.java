@@ -0,0 +1,23 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WatchDisplayTest {
+
+    @Test
+    public void artStaysAboveTheChin() {
+        WatchDisplay display = new WatchDisplay(320, 320, true, 30, 213, false, false);
+        assertEquals(290, display.visibleHeight());
+        assertEquals(320, new WatchDisplay(320, 320, true, 0, 213, false, false).visibleHeight());
+    }
+
+    @Test
+    public void chinIsPartOfTheCacheKey() {
+        WatchDisplay flat = new WatchDisplay(320, 320, true, 0, 213, false, false);
+        WatchDisplay chin = new WatchDisplay(320, 320, true, 30, 213, false, false);
+        assertEquals("a1_320x320r", flat.cacheKey("a1"));
+        assertNotEquals(flat.cacheKey("a1"), chin.cacheKey("a1"));
+    }
+}
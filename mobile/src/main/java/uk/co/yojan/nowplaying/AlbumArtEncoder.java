@@ -0,0 +1,175 @@
+package uk.co.yojan.nowplaying;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Shader;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns a downloaded album cover into the smallest payload that still looks right on the watch.
+ *
+ * The cover is first scaled to exactly the size it is drawn at, kept clear of the chin, and masked
+ * to a circle for round displays, then encoded with each strategy. Each candidate is decoded again
+ * and compared with the scaled cover, and the smallest one that meets the quality threshold is
+ * kept.
+ */
+public class AlbumArtEncoder {
+
+    public static class Strategy {
+        public final String name;
+        public final Bitmap.CompressFormat format;
+        public final int quality;
+
+        public Strategy(String name, Bitmap.CompressFormat format, int quality) {
+            this.name = name;
+            this.format = format;
+            this.quality = quality;
+        }
+    }
+
+    // Quality is ignored for PNG, which is kept as the lossless fallback.
+    public static final List<Strategy> DEFAULT_STRATEGIES = Arrays.asList(
+            new Strategy("png", Bitmap.CompressFormat.PNG, 100),
+            new Strategy("jpeg-85", Bitmap.CompressFormat.JPEG, 85),
+            new Strategy("jpeg-70", Bitmap.CompressFormat.JPEG, 70),
+            new Strategy("webp-80", Bitmap.CompressFormat.WEBP, 80),
+            new Strategy("webp-60", Bitmap.CompressFormat.WEBP, 60));
+
+    // Around where compression artefacts stop being visible on a watch sized photo.
+    public static final double DEFAULT_MIN_PSNR = 32;
+
+    private final List<Strategy> mStrategies;
+    private final double mMinPsnr;
+    private final EncoderStats mStats = new EncoderStats();
+
+    public AlbumArtEncoder() {
+        this(DEFAULT_STRATEGIES, DEFAULT_MIN_PSNR);
+    }
+
+    public AlbumArtEncoder(List<Strategy> strategies, double minPsnr) {
+        if (strategies.isEmpty()) {
+            throw new IllegalArgumentException("At least one strategy is required");
+        }
+        mStrategies = strategies;
+        mMinPsnr = minPsnr;
+    }
+
+    /**
+     * Scales the cover to fill the display above the chin, cropping the overflow, on a bitmap the
+     * size of the whole display. Round displays never show the corners, so they are blacked out
+     * to save bytes. May return the source itself if it already fits.
+     */
+    public static Bitmap prepare(Bitmap source, WatchDisplay display) {
+        Bitmap scaled = scaleToFill(source, display.width, display.height,
+                display.visibleHeight());
+        if (display.round) {
+            Bitmap circle = cropToCircle(scaled);
+            if (scaled != source) {
+                scaled.recycle();
+            }
+            scaled = circle;
+        }
+        return scaled;
+    }
+
+    /**
+     * Encodes art that has already been prepared for the display with each strategy, and returns
+     * the smallest candidate that meets the quality threshold.
+     */
+    public EncodedArt encode(Bitmap art) {
+        int width = art.getWidth();
+        int height = art.getHeight();
+        int[] reference = new int[width * height];
+        art.getPixels(reference, 0, width, 0, 0, width, height);
+
+        List<EncodedArt> candidates = new ArrayList<>(mStrategies.size());
+        int[] decodedPixels = new int[reference.length];
+        for (Strategy strategy : mStrategies) {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            art.compress(strategy.format, strategy.quality, byteStream);
+            long encodeNanos = System.nanoTime() - start;
+            byte[] bytes = byteStream.toByteArray();
+
+            double psnr = 0;
+            Bitmap decoded = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            if (decoded != null) {
+                decoded.getPixels(decodedPixels, 0, width, 0, 0, width, height);
+                decoded.recycle();
+                psnr = EncodedArt.psnr(reference, decodedPixels);
+            }
+
+            EncodedArt candidate = new EncodedArt(strategy.name, bytes, psnr, encodeNanos);
+            mStats.recordEncode(candidate);
+            candidates.add(candidate);
+        }
+
+        EncodedArt chosen = EncodedArt.chooseSmallest(candidates, mMinPsnr);
+        mStats.recordChosen(chosen);
+        return chosen;
+    }
+
+    /**
+     * Encodes art whose exact pixel values matter, such as dithered ambient art.
+     */
+    public static byte[] encodeLossless(Bitmap art) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        art.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
+        return byteStream.toByteArray();
+    }
+
+    public EncoderStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Centre crops the source to the aspect ratio of the visible area and scales it to fill it,
+     * at the top of a width x height bitmap. Below the visible area is left black.
+     */
+    static Bitmap scaleToFill(Bitmap source, int width, int height, int visibleHeight) {
+        if (source.getWidth() == width && source.getHeight() == height
+                && visibleHeight == height) {
+            return source;
+        }
+        Rect src;
+        if ((long) source.getWidth() * visibleHeight > (long) source.getHeight() * width) {
+            int cropWidth = source.getHeight() * width / visibleHeight;
+            int left = (source.getWidth() - cropWidth) / 2;
+            src = new Rect(left, 0, left + cropWidth, source.getHeight());
+        } else {
+            int cropHeight = source.getWidth() * visibleHeight / width;
+            int top = (source.getHeight() - cropHeight) / 2;
+            src = new Rect(0, top, source.getWidth(), top + cropHeight);
+        }
+        Bitmap scaled = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(scaled);
+        canvas.drawColor(Color.BLACK);
+        canvas.drawBitmap(source, src, new Rect(0, 0, width, visibleHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        return scaled;
+    }
+
+    /**
+     * Keeps the circle inscribed in the bitmap on a black background.
+     */
+    static Bitmap cropToCircle(Bitmap source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        Bitmap circle = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(circle);
+        canvas.drawColor(Color.BLACK);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        canvas.drawCircle(width / 2f, height / 2f, Math.min(width, height) / 2f, paint);
+        return circle;
+    }
+}
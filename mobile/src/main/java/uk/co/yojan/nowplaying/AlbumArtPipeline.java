@@ -0,0 +1,692 @@
+package uk.co.yojan.nowplaying;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets the album art for the track that is currently playing onto the watch.
+ *
+ * A track only enters the pipeline once the track changes have settled, so that no stage thread
+ * waits out a burst of skips. Each track then goes through one pipeline of stages, each on its
+ * own executor:
+ *
+ * - resolve: resolve the album and its art url (cached, falling back to Spotify's web api), and
+ * look for art we have already encoded
+ * - download: download the album cover, unless the art was cached, decoded no larger than the
+ * watch needs, and send the watch an urgent placeholder for it
+ * - encode: scale the cover to the watch's exact size, derive its ambient variant, encode and
+ * cache both
+ * - sync: sync the art to the other nodes in the wearable network via the outbox, which holds
+ * on to it until the data layer connects
+ *
+ * Jobs for skipped tracks are dropped before the next stage, and nothing is downloaded further,
+ * encoded or synced for a track once a later one has been resolved. The watch keeps recently
+ * shown art, so cached art is synced as a reference, and the watch asks for the assets if it
+ * needs them.
+ * While playback is paused nothing is prefetched or synced, and the watch is told so it can idle
+ * too.
+ *
+ * Everything that needs Android goes through the {@link Platform}, so that the load test can
+ * replay listening sessions through the same stages on a JVM.
+ *
+ * @param <C> the decoded album cover
+ */
+public class AlbumArtPipeline<C> {
+
+    private static final String TAG = "AlbumArtPipeline";
+
+    /**
+     * Downloads and encodes album covers, and talks to the watch.
+     */
+    public interface Platform<C> {
+        /** Returns the display the watch face last published. */
+        WatchDisplay watchDisplay();
+
+        /**
+         * Downloads and decodes the cover, subsampled as far as it still covers the display.
+         * Attaches its connection to the download, so that it can be aborted.
+         */
+        C download(String imageUrl, WatchDisplay display, boolean speculative, Download download)
+                throws IOException;
+
+        /** Scales the cover down to a placeholder. */
+        ArtPlaceholder placeholder(C cover);
+
+        /** Sizes the cover for the display, derives its ambient variant and encodes both. */
+        EncodedArtPair encode(C cover, WatchDisplay display);
+
+        /** Returns whether the data layer is connected, starting to connect it if not. */
+        boolean isConnected();
+
+        void putPlaceholder(String cacheKey, ArtPlaceholder placeholder, long traceStartMillis);
+
+        void putPlayback(PlaybackState state, boolean urgent);
+    }
+
+    /**
+     * Both variants of the album art, encoded for the watch.
+     */
+    public static class EncodedArtPair {
+        public final byte[] albumArt;
+        public final byte[] ambientAlbumArt;
+
+        public EncodedArtPair(byte[] albumArt, byte[] ambientAlbumArt) {
+            this.albumArt = albumArt;
+            this.ambientAlbumArt = ambientAlbumArt;
+        }
+    }
+
+    /**
+     * A download in flight, which the pipeline aborts by closing its connection once a later
+     * track has been resolved.
+     */
+    public static class Download {
+        private Closeable mConnection;
+        private boolean mCancelled;
+
+        /**
+         * Attaches the connection the download is made over, closing it right away if the
+         * download was already cancelled.
+         */
+        public void attach(Closeable connection) throws IOException {
+            synchronized (this) {
+                if (!mCancelled) {
+                    mConnection = connection;
+                    return;
+                }
+            }
+            connection.close();
+            throw new InterruptedIOException("Download cancelled");
+        }
+
+        public void cancel() {
+            Closeable connection;
+            synchronized (this) {
+                mCancelled = true;
+                connection = mConnection;
+                mConnection = null;
+            }
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // Abandoned either way.
+                }
+            }
+        }
+
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private static final String AMBIENT_SUFFIX = "_ambient";
+    private static final int TRACE_WINDOW = 200;
+
+    // Prefetching spends data on tracks that may never play, so it is kept on a short leash.
+    private static final int PREFETCH_TRACKS = 3;
+    private static final int PREFETCH_PER_HOUR = 30;
+
+    // Only the latest track matters, so the queues are short and each stage gets a deadline.
+    private static final int RESOLVE_THREADS = 1;
+    private static final int RESOLVE_QUEUE = 4;
+    private static final long RESOLVE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(15);
+    private static final int DOWNLOAD_THREADS = 2;
+    private static final int DOWNLOAD_QUEUE = 2;
+    private static final long DOWNLOAD_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(20);
+    private static final int ENCODE_THREADS = 1;
+    private static final int ENCODE_QUEUE = 2;
+    private static final long ENCODE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final int SYNC_THREADS = 1;
+    private static final int SYNC_QUEUE = 4;
+    private static final long SYNC_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Work for one track, or for resending cached art the watch asked for, as it moves through
+     * the pipeline.
+     */
+    private class Job {
+        /** Null when resending cached art. */
+        final String trackId;
+        /** Coalescer generation when submitted, so resends are superseded by the next track. */
+        final long generation;
+        /** Run once the job has left the pipeline, however it got there. */
+        final Runnable onFinished;
+        final Download download = new Download();
+        /** 0 if the job is not traced. */
+        long traceId;
+        long traceStart;
+
+        WatchDisplay display;
+        String cacheKey;
+        String imageUrl;
+        C cover;
+        byte[] albumArt;
+        byte[] ambientAlbumArt;
+        // Whether the watch is unlikely to have the art, so the assets are sent up front.
+        boolean full;
+        // Whether the watch is showing a placeholder, so the art itself is not urgent.
+        boolean placeholderSent;
+
+        Job(String trackId, long generation, Runnable onFinished) {
+            this.trackId = trackId;
+            this.generation = generation;
+            this.onFinished = onFinished;
+        }
+
+        @Override
+        public String toString() {
+            return trackId != null ? trackId : cacheKey;
+        }
+    }
+
+    private final Platform<C> mPlatform;
+    private final TrackCoalescer mCoalescer;
+    private final AlbumMetadataResolver mResolver;
+    private final AlbumArtDiskCache mArtCache;
+    private final TrackSuccessorModel mSuccessorModel;
+    private final ArtSyncOutbox mOutbox;
+    private final ArtPrefetcher mPrefetcher;
+    private final Pipeline<Job> mPipeline;
+    // Holds tracks back until the track changes have settled.
+    private final ScheduledExecutorService mHandoff =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ArtHandoff");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Tracer mTracer = new Tracer(TRACE_WINDOW);
+    private final ArtSyncStats mSyncStats = new ArtSyncStats();
+
+    // The latest track resolved and the art it resolved to, null if it has none. Guarded by this,
+    // so that nothing older is synced once the placeholder for it may have been sent.
+    private long mResolvedGeneration;
+    private String mResolvedCacheKey;
+    // Jobs downloading their cover, and how many downloads were aborted. Guarded by this.
+    private final Set<Job> mDownloading = new HashSet<>();
+    private long mAbortedDownloadCount;
+
+    // Written by one thread at a time, the service's control executor.
+    private volatile PlaybackState mPlaybackState = PlaybackState.UNKNOWN;
+    private volatile PlaybackState mSentPlaybackState;
+
+    public AlbumArtPipeline(Platform<C> platform, TrackCoalescer coalescer,
+                            AlbumMetadataResolver resolver, AlbumArtDiskCache artCache,
+                            TrackSuccessorModel successorModel, ArtSyncOutbox outbox,
+                            Executor prefetchExecutor, Clock clock) {
+        mPlatform = platform;
+        mCoalescer = coalescer;
+        mResolver = resolver;
+        mArtCache = artCache;
+        mSuccessorModel = successorModel;
+        mOutbox = outbox;
+        mPrefetcher = new ArtPrefetcher(new PrefetchLoader(), prefetchExecutor, PREFETCH_TRACKS,
+                PREFETCH_PER_HOUR, clock);
+        mPipeline = new Pipeline<>(
+                new Pipeline.Cancellation<Job>() {
+                    @Override
+                    public boolean isCancelled(Job job) {
+                        return !mCoalescer.isCurrent(job.generation);
+                    }
+                },
+                new Pipeline.Listener<Job>() {
+                    @Override
+                    public void onFinished(Job job, Pipeline.Outcome outcome, String stage,
+                                           Exception error) {
+                        if (error != null || outcome == Pipeline.Outcome.TIMED_OUT) {
+                            Log.e(TAG, "Failed to " + stage + " album art for " + job + ": "
+                                    + outcome, error);
+                        } else {
+                            Log.d(TAG, "Album art for " + job + ": " + outcome + " at " + stage);
+                        }
+                        job.onFinished.run();
+                    }
+                })
+                .addStage("resolve", RESOLVE_THREADS, RESOLVE_QUEUE, RESOLVE_TIMEOUT_MS,
+                        new Pipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(Job job) throws Exception {
+                                return resolve(job);
+                            }
+                        })
+                .addStage("download", DOWNLOAD_THREADS, DOWNLOAD_QUEUE, DOWNLOAD_TIMEOUT_MS,
+                        new Pipeline.CancellableStage<Job>() {
+                            @Override
+                            public boolean process(Job job) throws Exception {
+                                return download(job);
+                            }
+
+                            @Override
+                            public void cancel(Job job) {
+                                job.download.cancel();
+                            }
+                        })
+                .addStage("encode", ENCODE_THREADS, ENCODE_QUEUE, ENCODE_TIMEOUT_MS,
+                        new Pipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(Job job) {
+                                return encode(job);
+                            }
+                        })
+                .addStage("sync", SYNC_THREADS, SYNC_QUEUE, SYNC_TIMEOUT_MS,
+                        new Pipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(Job job) {
+                                return sync(job);
+                            }
+                        });
+    }
+
+    /**
+     * Gets the art for a track that started playing onto the watch. Returns whether a job was
+     * started, which then runs onFinished when done; repeats of the current track are ignored.
+     * Call on one thread, as the broadcasts arrive.
+     */
+    public boolean submitTrack(String trackId, long traceId, long traceStartMillis,
+                               Runnable onFinished) {
+        long generation = mCoalescer.submit(trackId);
+        if (generation == TrackCoalescer.DUPLICATE) {
+            return false;
+        }
+        submitTrack(trackId, generation, traceId, traceStartMillis, onFinished);
+        return true;
+    }
+
+    /**
+     * Gets the art for a track the caller already submitted to the coalescer, which gave it the
+     * generation. May be called on any thread.
+     */
+    public void submitTrack(String trackId, long generation, long traceId,
+                            long traceStartMillis, Runnable onFinished) {
+        Job job = new Job(trackId, generation, onFinished);
+        job.traceId = traceId;
+        job.traceStart = traceStartMillis;
+        if (traceId != 0) {
+            mTracer.begin(traceId, traceStartMillis);
+        }
+        handOff(job);
+    }
+
+    /**
+     * Sends the watch the assets of cached art it was sent a reference to, then runs onFinished.
+     * Dropped if the art is no longer the current track's.
+     */
+    public void submitResend(String cacheKey, Runnable onFinished) {
+        submitResend(cacheKey, mCoalescer.generation(), onFinished);
+    }
+
+    /**
+     * Like {@link #submitResend(String, Runnable)}, for the coalescer's generation when the watch
+     * asked.
+     */
+    public void submitResend(String cacheKey, long generation, Runnable onFinished) {
+        Job job = new Job(null, generation, onFinished);
+        job.cacheKey = cacheKey;
+        mPipeline.submit(job);
+    }
+
+    /**
+     * Tracks the playback state, holding back prefetching and syncing while paused. Blocks on
+     * the outbox, so call it off the main thread.
+     */
+    public void updatePlaybackState(PlaybackState state) {
+        mPlaybackState = state;
+        mOutbox.setHeld(!state.playing);
+        if (!state.playing) {
+            // Nothing is coming up next while paused.
+            mPrefetcher.cancel();
+        }
+        if (mPlatform.isConnected()) {
+            sendPlaybackState();
+        }
+        Log.d(TAG, state + ", " + mOutbox);
+    }
+
+    /**
+     * Tells the watch about the playback state, if it has changed since it was last told.
+     */
+    public void sendPlaybackState() {
+        PlaybackState state = mPlaybackState;
+        PlaybackState sent = mSentPlaybackState;
+        if (state == PlaybackState.UNKNOWN || state == sent) {
+            return;
+        }
+        mPlatform.putPlayback(state, state.isUrgentAfter(sent));
+        if (mPlatform.isConnected()) {
+            mSentPlaybackState = state;
+        }
+    }
+
+    /**
+     * Spotify does not say what was queued, so prefetches what usually follows the last track.
+     */
+    public void onQueueChanged() {
+        prefetchSuccessors(mSuccessorModel.lastTrackId());
+    }
+
+    public PlaybackState playbackState() {
+        return mPlaybackState;
+    }
+
+    public Pipeline.StageStats stats(String stageName) {
+        return mPipeline.stats(stageName);
+    }
+
+    public ArtPrefetcher prefetcher() {
+        return mPrefetcher;
+    }
+
+    public ArtSyncStats syncStats() {
+        return mSyncStats;
+    }
+
+    public Tracer tracer() {
+        return mTracer;
+    }
+
+    /** Returns how many downloads were aborted because a later track was resolved. */
+    public synchronized long abortedDownloadCount() {
+        return mAbortedDownloadCount;
+    }
+
+    public void shutdown() {
+        mPrefetcher.cancel();
+        mHandoff.shutdownNow();
+        mPipeline.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return mPipeline.toString();
+    }
+
+    /**
+     * Submits the track's job to the pipeline once no track has been submitted for the quiet
+     * window, checking again whenever it may have passed. A superseded job goes in too, to be
+     * reported as cancelled.
+     */
+    private void handOff(final Job job) {
+        long remaining = mCoalescer.tryStart(job.generation);
+        if (remaining > 0) {
+            mHandoff.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    handOff(job);
+                }
+            }, remaining, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (remaining == 0) {
+            mTracer.mark(job.traceId, "coalesced", System.currentTimeMillis());
+        }
+        mPipeline.submit(job);
+    }
+
+    /**
+     * Resolves the album and picks up its art if we have already encoded it.
+     */
+    private boolean resolve(Job job) throws InterruptedException {
+        if (job.trackId == null) {
+            // The watch asked for art it was sent a reference to.
+            job.full = true;
+            return loadCachedArt(job);
+        }
+        // Only tracks that survived the quiet window count as played.
+        mPrefetcher.recordPlay(job.trackId);
+        mSuccessorModel.recordPlay(job.trackId);
+
+        // Art is sized exactly for the display the watch face last published.
+        job.display = mPlatform.watchDisplay();
+        mResolver.setTargetSize(job.display.maxDimension());
+        AlbumMetadataResolver.AlbumInfo album =
+                mResolver.resolve(job.trackId, SpotifyClient.Priority.CURRENT);
+        mTracer.mark(job.traceId, "resolved", System.currentTimeMillis());
+        Log.d(TAG, mResolver.toString());
+        String cacheKey = album != null ? job.display.cacheKey(album.albumId) : null;
+        if (!setResolved(job.generation, cacheKey)) {
+            return false;
+        }
+        if (album == null) {
+            Log.e(TAG, "No album art for track " + job.trackId);
+            return false;
+        }
+        job.cacheKey = cacheKey;
+        job.imageUrl = album.imageUrl;
+
+        prefetchSuccessors(job.trackId);
+
+        if (loadCachedArt(job)) {
+            Log.d(TAG, "Album art cache hit for " + album.albumId + ": " + mArtCache);
+            // Prefetched art, and art of jobs dropped before syncing, never reached the watch.
+            job.full = !mOutbox.hasSynced(job.cacheKey);
+        } else {
+            Log.d(TAG, "Extracted album art url: " + album.imageUrl);
+            // Newly encoded art is almost certainly not on the watch yet.
+            job.full = true;
+        }
+        return true;
+    }
+
+    private boolean download(Job job) throws IOException {
+        if (job.albumArt != null) {
+            return true;
+        }
+        synchronized (this) {
+            if (isSuperseded(job)) {
+                return false;
+            }
+            mDownloading.add(job);
+        }
+        try {
+            job.cover = mPlatform.download(job.imageUrl, job.display, false, job.download);
+        } catch (IOException e) {
+            synchronized (this) {
+                // Otherwise it failed, or was cancelled because it timed out.
+                if (!job.download.isCancelled() || !isSuperseded(job)) {
+                    throw e;
+                }
+                mAbortedDownloadCount++;
+            }
+            Log.d(TAG, "Aborted the download for superseded " + job);
+            return false;
+        } finally {
+            synchronized (this) {
+                mDownloading.remove(job);
+            }
+        }
+        if (job.cover == null) {
+            Log.e(TAG, "Failed to get album art.");
+            return false;
+        }
+        synchronized (this) {
+            if (isSuperseded(job)) {
+                // Its placeholder would replace the later track's.
+                job.cover = null;
+                return false;
+            }
+        }
+        mTracer.mark(job.traceId, "downloaded", System.currentTimeMillis());
+        sendPlaceholder(job);
+        return true;
+    }
+
+    /**
+     * Sends the watch a placeholder of a few hundred bytes for the downloaded cover, which gets
+     * across a slow link long before the encoded art and replaces the previous track's art.
+     */
+    private void sendPlaceholder(Job job) {
+        ArtPlaceholder placeholder = mPlatform.placeholder(job.cover);
+        if (!mPlaybackState.playing || !mPlatform.isConnected()) {
+            // The art waits in the outbox instead, and replaces the previous art when it is sent.
+            return;
+        }
+        mPlatform.putPlaceholder(job.cacheKey, placeholder, job.traceStart);
+        job.placeholderSent = true;
+        mTracer.mark(job.traceId, "placeholder", System.currentTimeMillis());
+    }
+
+    private boolean encode(Job job) {
+        if (job.albumArt != null) {
+            return true;
+        }
+        synchronized (this) {
+            if (isSuperseded(job)) {
+                Log.d(TAG, "Dropped superseded cover for " + job);
+                job.cover = null;
+                return false;
+            }
+        }
+        EncodedArtPair art = encodeAndCache(job.cover, job.cacheKey, job.display);
+        job.cover = null;
+        job.albumArt = art.albumArt;
+        job.ambientAlbumArt = art.ambientAlbumArt;
+        mTracer.mark(job.traceId, "encoded", System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Records the art the latest track resolved to and aborts the downloads it supersedes.
+     * Returns false if a later track got there first.
+     */
+    private synchronized boolean setResolved(long generation, String cacheKey) {
+        if (generation < mResolvedGeneration) {
+            return false;
+        }
+        mResolvedGeneration = generation;
+        mResolvedCacheKey = cacheKey;
+        for (Job downloading : mDownloading) {
+            if (isSuperseded(downloading)) {
+                downloading.download.cancel();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the job's art is no longer what the watch should show: a later track has
+     * been resolved, or a resend is for art other than the current track's. Call holding this.
+     */
+    private boolean isSuperseded(Job job) {
+        if (job.generation < mResolvedGeneration) {
+            return true;
+        }
+        return job.trackId == null && mResolvedGeneration != 0
+                && !job.cacheKey.equals(mResolvedCacheKey);
+    }
+
+    /**
+     * Syncs the art to the watch, either as a reference to art the watch may already have or,
+     * if full, with the assets attached. Never waits for the data layer to connect.
+     */
+    private boolean sync(Job job) {
+        synchronized (this) {
+            // Checked and offered together, so a later track's placeholder, which is only sent
+            // once it has been resolved, always follows the art.
+            if (isSuperseded(job)) {
+                Log.d(TAG, "Dropped superseded album art for " + job);
+                return false;
+            }
+            offer(job);
+        }
+        long now = System.currentTimeMillis();
+        mTracer.mark(job.traceId, mOutbox.depth() == 0 ? "synced" : "queued", now);
+        mTracer.end(job.traceId, now);
+        Log.d(TAG, mOutbox + ", " + mSyncStats + "\n" + mPipeline + "\n" + mTracer.dump());
+        return true;
+    }
+
+    private void offer(Job job) {
+        long bytes = job.albumArt.length + job.ambientAlbumArt.length;
+        ArtSyncItem item;
+        if (job.full) {
+            item = ArtSyncItem.full(job.cacheKey, job.albumArt, job.ambientAlbumArt);
+            if (job.trackId == null) {
+                mSyncStats.recordMiss(bytes);
+            } else {
+                mSyncStats.recordFull(bytes);
+            }
+        } else {
+            item = ArtSyncItem.reference(job.cacheKey, job.albumArt, job.ambientAlbumArt);
+            mSyncStats.recordReference(bytes);
+        }
+        if (job.placeholderSent) {
+            item = item.notUrgent();
+        }
+        mOutbox.offer(item.traced(job.traceId, job.traceStart), job.generation);
+    }
+
+    private boolean loadCachedArt(Job job) {
+        job.albumArt = mArtCache.get(job.cacheKey);
+        job.ambientAlbumArt = mArtCache.get(job.cacheKey + AMBIENT_SUFFIX);
+        if (job.albumArt == null || job.ambientAlbumArt == null) {
+            if (job.trackId == null) {
+                // Evicted since the reference was sent, the next track will be encoded afresh.
+                Log.w(TAG, "Watch requested art that is no longer cached: " + job.cacheKey);
+            }
+            job.albumArt = null;
+            job.ambientAlbumArt = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prefetches the art for the tracks that have most often followed the given one.
+     */
+    private void prefetchSuccessors(String trackId) {
+        if (!mPlaybackState.playing) {
+            return;
+        }
+        mPrefetcher.prefetch(mSuccessorModel.predictNext(trackId, PREFETCH_TRACKS));
+        Log.d(TAG, mPrefetcher.toString());
+    }
+
+    /**
+     * Encodes both variants of the cover and caches them under the cache key.
+     */
+    private EncodedArtPair encodeAndCache(C cover, String cacheKey, WatchDisplay display) {
+        EncodedArtPair art = mPlatform.encode(cover, display);
+        mArtCache.put(cacheKey, art.albumArt);
+        mArtCache.put(cacheKey + AMBIENT_SUFFIX, art.ambientAlbumArt);
+        return art;
+    }
+
+    /**
+     * Fills the caches for tracks that have not started playing yet, so that nothing is synced
+     * to the watch.
+     */
+    private class PrefetchLoader implements ArtPrefetcher.Loader {
+        @Override
+        public void prefetch(String trackId) throws IOException, InterruptedException {
+            WatchDisplay display = mPlatform.watchDisplay();
+            AlbumMetadataResolver.AlbumInfo album =
+                    mResolver.resolve(trackId, SpotifyClient.Priority.SPECULATIVE);
+            if (album == null) {
+                return;
+            }
+            String cacheKey = display.cacheKey(album.albumId);
+            if (mArtCache.contains(cacheKey) && mArtCache.contains(cacheKey + AMBIENT_SUFFIX)) {
+                return;
+            }
+            C cover = mPlatform.download(album.imageUrl, display, true, new Download());
+            if (cover == null) {
+                throw new IOException("Failed to prefetch album art for " + trackId);
+            }
+            encodeAndCache(cover, cacheKey, display);
+            Log.d(TAG, "Prefetched album art for " + trackId);
+        }
+    }
+}
@@ -1,210 +1,515 @@
 package uk.co.yojan.nowplaying;
 
-import android.app.IntentService;
+import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.PendingResult;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.Asset;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
-import com.squareup.picasso.Picasso;
-import com.squareup.picasso.Target;
-
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.List;
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import kaaes.spotify.webapi.android.SpotifyApi;
-import kaaes.spotify.webapi.android.SpotifyService;
-import kaaes.spotify.webapi.android.models.Image;
-import kaaes.spotify.webapi.android.models.Track;
-import retrofit.Callback;
-import retrofit.RetrofitError;
-import retrofit.client.Response;
-
-public class AlbumArtService extends IntentService {
+/**
+ * Gets the album art for the track that is currently playing onto the watch, by feeding
+ * Spotify's broadcasts to the {@link AlbumArtPipeline}.
+ *
+ * Covers are decoded by the {@link CoverDecoder} as they download over the shared
+ * {@link HttpStack}, and the art is synced over the shared {@link WearableConnection}, which is
+ * never waited for: art waits in the outbox until it connects. Each service instance holds a
+ * reference to the connection, as does the outbox while art is waiting. The pipeline and its
+ * caches outlive the service, which stops itself once every job it started has finished. They
+ * read their files when built, so they are built on the control thread. Only the coalescer,
+ * which must see every track change as it arrives, is used on the main thread.
+ */
+public class AlbumArtService extends Service {
 
     private static final String TAG = "AlbumArtService";
 
-    private SpotifyService mSpotifyService;
-    private GoogleApiClient mGoogleApiClient;
+    // Encoded album art survives across service instances and process restarts.
+    private static AlbumArtDiskCache sArtCache;
+    private static AlbumMetadataResolver sMetadataResolver;
+    private static SpotifyClient sSpotifyClient;
+    private static TrackSuccessorModel sSuccessorModel;
+    private static TrackCoalescer sCoalescer;
+    private static CoverDecoder sCoverDecoder;
+    private static AlbumArtPipeline<Bitmap> sPipeline;
+    private static WearableConnection sConnection;
+    private static ArtSyncOutbox sOutbox;
+    // Whether the outbox holds a reference to the connection, taken when art has to wait for it.
+    private static final AtomicBoolean sOutboxReference = new AtomicBoolean();
+    private static final AlbumArtEncoder sEncoder = new AlbumArtEncoder();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // Playback and queue changes only need a little bookkeeping, kept off the main thread.
+    private static final ExecutorService sControlExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "AlbumArtControl");
+                }
+            });
+
+    /** Sent by {@link WatchDataListenerService} when the watch is missing referenced art. */
+    public static final String ACTION_SEND_ART = "uk.co.yojan.nowplaying.action.SEND_ART";
+    public static final String EXTRA_CACHE_KEY = "uk.co.yojan.nowplaying.extra.CACHE_KEY";
+
+    /** Added by {@link SpotifyBroadcastReceiver} to trace the latency of each track change. */
+    public static final String EXTRA_TRACE_ID = "uk.co.yojan.nowplaying.extra.TRACE_ID";
+    public static final String EXTRA_TRACE_START = "uk.co.yojan.nowplaying.extra.TRACE_START";
+
+    // Track to album mappings never change, the ttl only bounds how stale an art url can get.
+    // Most of the tuning is package private, so that the load test replays with it too.
+    static final int METADATA_MEMORY_ENTRIES = 200;
+    static final int METADATA_INDEX_ENTRIES = 2000;
+    private static final long METADATA_TTL_MS = TimeUnit.DAYS.toMillis(7);
 
-    // Want the album art that is the smallest size above the screen size.
-    private int WATCH_SCREEN_SIZE = 300;  // pixels
+    // Well under Spotify's undocumented limits, even while skipping and prefetching. Prefetches
+    // leave half the burst for the tracks that are actually playing.
+    static final int SPOTIFY_BURST = 10;
+    static final double SPOTIFY_REQUESTS_PER_SECOND = 1;
+    static final int SPOTIFY_SPECULATIVE_RESERVE = 5;
+    static final int SPOTIFY_MAX_ATTEMPTS = 4;
+    static final long SPOTIFY_BACKOFF_MS = 500;
+
+    // Room for the current and previous track's art on the data layer.
+    static final int SYNC_SLOTS = 2;
+    static final long SYNC_MAX_BYTES = 1024 * 1024;
+    private static final WearableDataLayer sDataLayer = new WearableDataLayer();
+    private static final AlbumArtSyncStore sSyncStore =
+            new AlbumArtSyncStore(sDataLayer, SYNC_SLOTS, SYNC_MAX_BYTES);
+
+    static final int SUCCESSOR_TRACKS = 500;
+    static final int SUCCESSORS_PER_TRACK = 4;
+
+    // Jobs started by this instance that have not finished yet. Main thread only.
+    private int mOutstandingJobs;
+    private int mLastStartId;
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
 
-    public AlbumArtService() {
-        super("AlbumArtService");
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        getConnection(this).acquire();
+        final Context context = getApplicationContext();
+        sControlExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Ahead of the first track, which is handed over on this thread too.
+                getPipeline(context);
+                // Art left waiting by an earlier process is synced once the data layer connects.
+                getOutbox(context).flush();
+            }
+        });
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.disconnect();
-        }
+        // Lingers for the next instance, and stays connected while the outbox holds on to it.
+        getConnection(this).release();
     }
 
-    private void initializeSpotifyApi() {
-        if (mSpotifyService == null) {
-            SpotifyApi api = new SpotifyApi();
-            mSpotifyService = api.getService();
+    private static AlbumMetadataResolver getMetadataResolver(Context context) {
+        synchronized (AlbumArtService.class) {
+            if (sMetadataResolver == null) {
+                sSpotifyClient = new SpotifyClient(HttpStack.get(context).spotifyService(),
+                        new TokenBucket(SPOTIFY_BURST, SPOTIFY_REQUESTS_PER_SECOND, Clock.SYSTEM),
+                        SPOTIFY_SPECULATIVE_RESERVE, SPOTIFY_MAX_ATTEMPTS, SPOTIFY_BACKOFF_MS,
+                        Clock.SYSTEM, SpotifyClient.Sleeper.SYSTEM);
+                sMetadataResolver = new AlbumMetadataResolver(sSpotifyClient,
+                        new File(context.getFilesDir(), "album_index"),
+                        WatchDisplay.DEFAULT.maxDimension(), METADATA_MEMORY_ENTRIES,
+                        METADATA_INDEX_ENTRIES, METADATA_TTL_MS, Clock.SYSTEM);
+            }
+            return sMetadataResolver;
         }
     }
 
-    private void initializeGoogleApiClientSync() {
-        if (mGoogleApiClient == null) {
-            mGoogleApiClient = new GoogleApiClient.Builder(this)
-                    .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
-                        @Override
-                        public void onConnectionFailed(ConnectionResult result) {
-                            Log.d(TAG, "onConnectionFailed: " + result);
-                        }
-                    })
-                    // Request access only to the Wearable API
-                    .addApi(Wearable.API)
-                    .build();
+    private static AlbumArtDiskCache getArtCache(Context context) {
+        synchronized (AlbumArtService.class) {
+            if (sArtCache == null) {
+                long maxBytes = context.getResources().getInteger(R.integer.art_cache_max_bytes);
+                sArtCache = new AlbumArtDiskCache(new File(context.getCacheDir(), "albumart"),
+                        maxBytes);
+            }
+            return sArtCache;
         }
+    }
 
-        if (!mGoogleApiClient.isConnected() && !mGoogleApiClient.isConnecting()) {
-            mGoogleApiClient.blockingConnect(5, TimeUnit.SECONDS);
+    private static CoverDecoder getCoverDecoder(Context context) {
+        synchronized (AlbumArtService.class) {
+            if (sCoverDecoder == null) {
+                sCoverDecoder = new CoverDecoder(HttpStack.get(context).client());
+            }
+            return sCoverDecoder;
         }
     }
 
-    /**
-     * Performs the work for a track that is currently playing.
-     *
-     * - Download the track metadata from Spotify's web api (async via retrofit)
-     * - Extract the album url
-     * - Download the album cover bitmap (async via Picasso)
-     * - Convert the bitmap to a png to an asset
-     * - Sync the asset to the other nodes in the wearable network (async via DataApi)
-     */
-    private void processTrack(String trackId) {
-        // Lazily instantiate spotify web api
-        initializeSpotifyApi();
-        mSpotifyService.getTrack(trackId, new Callback<Track>() {
-            @Override
-            public void success(Track track, Response response) {
-                String albumUrl = getAlbumArtUrl(track);
-                downloadAndSyncImage(albumUrl);
+    private static TrackSuccessorModel getSuccessorModel(Context context) {
+        synchronized (AlbumArtService.class) {
+            if (sSuccessorModel == null) {
+                sSuccessorModel = new TrackSuccessorModel(
+                        new File(context.getFilesDir(), "track_successors"),
+                        SUCCESSOR_TRACKS, SUCCESSORS_PER_TRACK);
             }
+            return sSuccessorModel;
+        }
+    }
 
-            @Override
-            public void failure(RetrofitError error) {
-                Log.d("Track failure", error.toString());
+    private static TrackCoalescer getCoalescer(Context context) {
+        synchronized (AlbumArtService.class) {
+            if (sCoalescer == null) {
+                sCoalescer = new TrackCoalescer(context.getResources()
+                        .getInteger(R.integer.metadata_quiet_window_ms), Clock.SYSTEM);
             }
-        });
+            return sCoalescer;
+        }
+    }
 
+    private static WearableConnection getConnection(Context context) {
+        synchronized (AlbumArtService.class) {
+            if (sConnection == null) {
+                final Context appContext = context.getApplicationContext();
+                sConnection = WearableConnection.get(appContext);
+                sConnection.addListener(new SharedConnection.Listener() {
+                    @Override
+                    public void onConnected() {
+                        sControlExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                ArtSyncOutbox outbox = getOutbox(appContext);
+                                outbox.flush();
+                                getPipeline(appContext).sendPlaybackState();
+                                Log.d(TAG, outbox + "\n" + sConnection);
+                            }
+                        });
+                    }
+                });
+                sDataLayer.setClient(sConnection.client());
+            }
+            return sConnection;
+        }
     }
 
-    private String getAlbumArtUrl(Track track) {
-        List<Image> albumArtImageList = track.album.images;
-        Image albumArt = null;
-        for (Image image : albumArtImageList) {
-            if (albumArt == null) {
-                albumArt = image;
-            } else if (image.height < albumArt.height && image.height >= WATCH_SCREEN_SIZE) {
-                // Found a smaller image that will fit on the watch screen.
-                albumArt = image;
+    private static ArtSyncOutbox getOutbox(final Context context) {
+        synchronized (AlbumArtService.class) {
+            if (sOutbox == null) {
+                sOutbox = new ArtSyncOutbox(new File(context.getFilesDir(), "art_outbox"),
+                        new ArtSyncOutbox.Connection() {
+                            @Override
+                            public boolean isConnected() {
+                                return getConnection(context).isConnected();
+                            }
+
+                            /**
+                             * Only called with art waiting, which keeps the connection up
+                             * until it is synced, and retried if connecting fails.
+                             */
+                            @Override
+                            public void connect() {
+                                WearableConnection connection = getConnection(context);
+                                if (sOutboxReference.compareAndSet(false, true)) {
+                                    connection.acquire();
+                                } else {
+                                    connection.connect();
+                                }
+                            }
+
+                            /**
+                             * Lets go of the reference once nothing is left waiting, whichever
+                             * flush synced it. Holds the outbox, so no art is offered meanwhile.
+                             */
+                            @Override
+                            public void onDrained() {
+                                if (sOutboxReference.compareAndSet(true, false)) {
+                                    getConnection(context).release();
+                                }
+                            }
+                        },
+                        sSyncStore, Clock.SYSTEM);
             }
+            return sOutbox;
         }
+    }
 
-        if (albumArt != null) {
-            Log.d(TAG, "Extracted album art url: " + albumArt.url);
-            return albumArt.url;
+    private static AlbumArtPipeline<Bitmap> getPipeline(Context context) {
+        synchronized (AlbumArtService.class) {
+            if (sPipeline == null) {
+                // Outlives this service instance, so holds on to the application context only.
+                context = context.getApplicationContext();
+                sPipeline = new AlbumArtPipeline<>(new DevicePlatform(context),
+                        getCoalescer(context), getMetadataResolver(context), getArtCache(context),
+                        getSuccessorModel(context), getOutbox(context),
+                        Executors.newSingleThreadExecutor(new ThreadFactory() {
+                            @Override
+                            public Thread newThread(final Runnable runnable) {
+                                return new Thread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        Process.setThreadPriority(
+                                                Process.THREAD_PRIORITY_BACKGROUND);
+                                        runnable.run();
+                                    }
+                                }, "ArtPrefetcher");
+                            }
+                        }),
+                        Clock.SYSTEM);
+            }
+            return sPipeline;
         }
-        return null;
     }
 
-    private void downloadAndSyncImage(String imageUrl) {
-        Picasso.with(this).load(imageUrl).into(new Target() {
-            @Override
-            public void onBitmapLoaded(final Bitmap bitmap, Picasso.LoadedFrom from) {
-                new AsyncTask<Bitmap, Void, Void>() {
-                    @Override
-                    protected Void doInBackground(Bitmap... bitmap) {
-                        Asset albumArtAsset = createAssetFromBitmap(bitmap[0]);
-                        syncAssetToWatch(albumArtAsset);
-                        return null;
-                    }
-                }.execute(bitmap);
+    /**
+     * Decodes covers as they download, encodes them as bitmaps and talks to the watch over the
+     * wearable data layer.
+     */
+    private static class DevicePlatform implements AlbumArtPipeline.Platform<Bitmap> {
+
+        private final Context mContext;
+
+        DevicePlatform(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public WatchDisplay watchDisplay() {
+            return WatchDataListenerService.loadWatchDisplay(mContext);
+        }
+
+        /**
+         * Prefetches need no priority of their own, as they run on a background priority thread.
+         */
+        @Override
+        public Bitmap download(String imageUrl, WatchDisplay display, boolean speculative,
+                               AlbumArtPipeline.Download download) throws IOException {
+            return getCoverDecoder(mContext).decode(imageUrl, display, download);
+        }
+
+        @Override
+        public ArtPlaceholder placeholder(Bitmap cover) {
+            Bitmap scaled = Bitmap.createScaledBitmap(cover, ArtPlaceholder.SIZE * 4,
+                    ArtPlaceholder.SIZE * 4, true);
+            int width = scaled.getWidth();
+            int height = scaled.getHeight();
+            int[] pixels = new int[width * height];
+            scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+            if (scaled != cover) {
+                scaled.recycle();
             }
+            return ArtPlaceholder.fromPixels(pixels, width, height);
+        }
 
-            @Override
-            public void onBitmapFailed(Drawable errorDrawable) {
-                Log.e(TAG, "Failed to get album art.");
+        /**
+         * Sizes the cover for the display and derives its ambient variant from the sized art,
+         * so the watch does no image processing of its own. This is the cover's last use, so
+         * it is recycled too.
+         */
+        @Override
+        public AlbumArtPipeline.EncodedArtPair encode(Bitmap cover, WatchDisplay display) {
+            AlbumArtPair art = prepareArt(cover, display);
+            try {
+                return new AlbumArtPipeline.EncodedArtPair(encodeArt(art.mAlbumArt),
+                        AlbumArtEncoder.encodeLossless(art.mAmbientAlbumArt));
+            } finally {
+                if (art.mAlbumArt != cover) {
+                    art.mAlbumArt.recycle();
+                }
+                art.mAmbientAlbumArt.recycle();
+                cover.recycle();
             }
+        }
 
-            @Override
-            public void onPrepareLoad(Drawable placeHolderDrawable) {
+        @Override
+        public boolean isConnected() {
+            WearableConnection connection = getConnection(mContext);
+            if (connection.isConnected()) {
+                return true;
             }
-        });
+            connection.connect();
+            return false;
+        }
+
+        @Override
+        public void putPlaceholder(String cacheKey, ArtPlaceholder placeholder,
+                                   long traceStartMillis) {
+            sDataLayer.putPlaceholder(cacheKey, placeholder, traceStartMillis);
+        }
+
+        @Override
+        public void putPlayback(PlaybackState state, boolean urgent) {
+            sDataLayer.putPlayback(state, urgent);
+        }
     }
 
-    private static Asset createAssetFromBitmap(Bitmap bitmap) {
-        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 80, byteStream);
-        return Asset.createFromBytes(byteStream.toByteArray());
+    private static AlbumArtPair prepareArt(Bitmap cover, WatchDisplay display) {
+        Bitmap albumArt = AlbumArtEncoder.prepare(cover, display);
+        int width = albumArt.getWidth();
+        int height = albumArt.getHeight();
+        int[] pixels = new int[width * height];
+        albumArt.getPixels(pixels, 0, width, 0, 0, width, height);
+        int[] ambientPixels = AmbientArtFilter.apply(pixels, width, height, display.lowBitAmbient,
+                display.burnInProtection);
+        Bitmap ambientAlbumArt = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        ambientAlbumArt.setPixels(ambientPixels, 0, width, 0, 0, width, height);
+        return new AlbumArtPair(albumArt, ambientAlbumArt);
     }
 
-    private void syncAssetToWatch(Asset asset) {
-        // lazily instantiate GoogleApiClient
-        initializeGoogleApiClientSync();
-        if (!mGoogleApiClient.isConnected()) {
-            Log.e(TAG, "mGoogleApiClient not connected");
-            return;
-        }
-        PutDataMapRequest dataMap = PutDataMapRequest.createWithAutoAppendedId("/albumart");
-        dataMap.getDataMap().putAsset("albumArt", asset);
-        PutDataRequest request = dataMap.asPutDataRequest().setUrgent();
-        Wearable.DataApi.putDataItem(mGoogleApiClient, request);
+    private static byte[] encodeArt(Bitmap bitmap) {
+        EncodedArt art = sEncoder.encode(bitmap);
+        Log.d(TAG, "Encoded album art as " + art + "\n" + sEncoder.getStats());
+        return art.bytes;
     }
 
     @Override
-    protected void onHandleIntent(final Intent intent) {
-        if (intent != null) {
-            final String action = intent.getAction();
-            if (BroadcastTypes.PLAYBACK_STATE_CHANGED.equals(action)) {
-                Log.d(TAG, "Playback state changed.");
-            } else if (BroadcastTypes.METADATA_CHANGED.equals(action)) {
-                Log.d(TAG, "Metadata changed");
-                String trackId = intent.getStringExtra("id");
-                String artistName = intent.getStringExtra("artist");
-                String albumName = intent.getStringExtra("album");
-                String trackName = intent.getStringExtra("track");
-                Log.d(TAG, String.format("%s - %s - %s", artistName, trackName, albumName));
-                try {
-                    processTrack(extractTrackId(trackId));
-                } catch (IllegalArgumentException e) {
-                    Log.e(TAG, e.toString());
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Runs on the main thread as each broadcast arrives, so the coalescer learns about a
+        // newer track while the pipeline is still busy with an older one. The pipeline is
+        // handed the track on the control thread, where it is built.
+        mLastStartId = startId;
+        final String action = intent != null ? intent.getAction() : null;
+        if (BroadcastTypes.METADATA_CHANGED.equals(action)) {
+            Log.d(TAG, "Metadata changed");
+            String artistName = intent.getStringExtra("artist");
+            String albumName = intent.getStringExtra("album");
+            String trackName = intent.getStringExtra("track");
+            Log.d(TAG, String.format("%s - %s - %s", artistName, trackName, albumName));
+            try {
+                final String trackId = TrackIds.fromUri(intent.getStringExtra("id"));
+                final long generation = getCoalescer(this).submit(trackId);
+                if (generation != TrackCoalescer.DUPLICATE) {
+                    final long traceId = intent.getLongExtra(EXTRA_TRACE_ID, 0);
+                    final long traceStart = intent.getLongExtra(EXTRA_TRACE_START, 0);
+                    final Runnable job = newJob();
+                    mOutstandingJobs++;
+                    runControl(new Runnable() {
+                        @Override
+                        public void run() {
+                            getPipeline(getApplicationContext()).submitTrack(trackId, generation,
+                                    traceId, traceStart, job);
+                        }
+                    });
                 }
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, e.toString());
             }
+        } else if (ACTION_SEND_ART.equals(action)) {
+            final String cacheKey = intent.getStringExtra(EXTRA_CACHE_KEY);
+            final long generation = getCoalescer(this).generation();
+            final Runnable job = newJob();
+            mOutstandingJobs++;
+            runControl(new Runnable() {
+                @Override
+                public void run() {
+                    getPipeline(getApplicationContext()).submitResend(cacheKey, generation, job);
+                }
+            });
+        } else if (BroadcastTypes.PLAYBACK_STATE_CHANGED.equals(action)) {
+            Log.d(TAG, "Playback state changed.");
+            final PlaybackState state = new PlaybackState(
+                    intent.getBooleanExtra("playing", true),
+                    intent.getIntExtra("playbackPosition", 0),
+                    intent.getLongExtra("timeSent", System.currentTimeMillis()));
+            runControl(new Runnable() {
+                @Override
+                public void run() {
+                    getPipeline(getApplicationContext()).updatePlaybackState(state);
+                }
+            });
+        } else if (BroadcastTypes.QUEUE_CHANGED.equals(action)) {
+            Log.d(TAG, "Queue changed.");
+            runControl(new Runnable() {
+                @Override
+                public void run() {
+                    getPipeline(getApplicationContext()).onQueueChanged();
+                }
+            });
         }
+        stopIfIdle();
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Dumps the pipeline, caches and latency histograms, for
+     * adb shell dumpsys activity service uk.co.yojan.nowplaying/.AlbumArtService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        AlbumArtPipeline<Bitmap> pipeline = getPipeline(this);
+        writer.println(pipeline);
+        writer.println(getArtCache(this));
+        writer.println(getMetadataResolver(this));
+        writer.println(sSpotifyClient);
+        writer.println(HttpStack.get(this));
+        writer.println(getCoverDecoder(this));
+        writer.println(pipeline.prefetcher());
+        writer.println(sSyncStore);
+        writer.println(getOutbox(this));
+        writer.println(getConnection(this));
+        writer.println(pipeline.playbackState());
+        writer.println(pipeline.syncStats());
+        writer.println("Latency since the track change, by stage:");
+        writer.print(pipeline.tracer().dump());
     }
 
     /**
-     * Inconsistent spotify track id formats.
-     * Extract the actual id from the intent trackId for the web API.
+     * Returns the callback for a pipeline job, which counts as outstanding until it runs.
      */
-    private static String extractTrackId(String spotifyTrackId) throws IllegalArgumentException {
-        if(spotifyTrackId != null && !spotifyTrackId.isEmpty()) {
-            String[] trackIdParts = spotifyTrackId.split(":");
-            if (trackIdParts.length == 3) {
-                return spotifyTrackId.split(":")[2];
+    private Runnable newJob() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onJobFinished();
+                    }
+                });
             }
-        }
+        };
+    }
 
-        throw new IllegalArgumentException("Illegal spotify track id: " + spotifyTrackId);
+    private void runControl(final Runnable runnable) {
+        mOutstandingJobs++;
+        sControlExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    sMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onJobFinished();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void onJobFinished() {
+        mOutstandingJobs--;
+        stopIfIdle();
+    }
+
+    private void stopIfIdle() {
+        if (mOutstandingJobs == 0) {
+            stopSelf(mLastStartId);
+        }
     }
 }
@@ -0,0 +1,143 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the album art synced to the watch in a fixed number of data items.
+ *
+ * Items are written to the slots in turn, each replacing whatever the slot held before, so the
+ * data layer never holds more than a fixed number of album art items however many tracks are
+ * played. More than one slot lets the watch finish reading the assets of the previous item while
+ * the next one arrives. Items are also deleted, oldest first, whenever the attached art would
+ * take the total over the byte cap, and anything else under {@link AlbumArtItem#PATH}, such as
+ * the auto appended items of older versions, is deleted on first use. The slots themselves are
+ * left alone then, as they hold the art the watch is showing.
+ *
+ * Calls the data layer drops, such as while it is disconnected, leave the slots as they were.
+ */
+public class AlbumArtSyncStore {
+
+    /**
+     * The parts of the wearable data api that the store needs.
+     */
+    public interface DataLayer {
+        /** Creates or replaces the item at the path. Returns false if the put was dropped. */
+        boolean put(String path, ArtSyncItem item);
+
+        /** Deletes the item at the path, if any. Returns false if the delete was dropped. */
+        boolean delete(String path);
+
+        /**
+         * Returns the path of every item whose path starts with the prefix, or null if the call
+         * was dropped.
+         */
+        List<String> paths(String pathPrefix);
+    }
+
+    private final DataLayer mDataLayer;
+    private final long mMaxBytes;
+
+    // Bytes attached to the item in each slot, -1 for an empty slot.
+    private final long[] mSlotBytes;
+    private int mNextSlot;
+    private boolean mCollectedGarbage;
+
+    private long mPutCount;
+    private long mDroppedCount;
+    private long mDeleteCount;
+
+    public AlbumArtSyncStore(DataLayer dataLayer, int slots, long maxBytes) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("slots must be positive: " + slots);
+        }
+        mDataLayer = dataLayer;
+        mMaxBytes = maxBytes;
+        mSlotBytes = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            mSlotBytes[i] = -1;
+        }
+    }
+
+    /**
+     * Writes the item to the next slot, deleting older items as needed to stay under the byte
+     * cap. The newest item is always kept. Returns false if the data layer dropped the put, in
+     * which case the slot is written by the next put instead.
+     */
+    public synchronized boolean put(ArtSyncItem item) {
+        if (!mCollectedGarbage) {
+            mCollectedGarbage = collectGarbage();
+        }
+
+        int slot = mNextSlot;
+        if (!mDataLayer.put(pathFor(slot), item)) {
+            mDroppedCount++;
+            return false;
+        }
+        mNextSlot = (mNextSlot + 1) % mSlotBytes.length;
+        mSlotBytes[slot] = item.assetBytes();
+        mPutCount++;
+
+        // The oldest slot is the one that will be written next.
+        for (int i = 0; i < mSlotBytes.length - 1 && totalBytes() > mMaxBytes; i++) {
+            int oldest = (mNextSlot + i) % mSlotBytes.length;
+            if (mSlotBytes[oldest] > 0 && mDataLayer.delete(pathFor(oldest))) {
+                mSlotBytes[oldest] = -1;
+                mDeleteCount++;
+            }
+        }
+        return true;
+    }
+
+    public synchronized long totalBytes() {
+        long total = 0;
+        for (long bytes : mSlotBytes) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    public synchronized int itemCount() {
+        int count = 0;
+        for (long bytes : mSlotBytes) {
+            if (bytes >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AlbumArtSyncStore[items=%d/%d, bytes=%d/%d, puts=%d (%d dropped), "
+                        + "deletes=%d]", itemCount(), mSlotBytes.length, totalBytes(), mMaxBytes,
+                mPutCount, mDroppedCount, mDeleteCount);
+    }
+
+    /**
+     * Deletes the items under {@link AlbumArtItem#PATH} that are not slots. Returns false if
+     * the data layer dropped a call, so that it is tried again.
+     */
+    private boolean collectGarbage() {
+        List<String> paths = mDataLayer.paths(AlbumArtItem.PATH + "/");
+        if (paths == null) {
+            return false;
+        }
+        Set<String> slots = new HashSet<>();
+        for (int i = 0; i < mSlotBytes.length; i++) {
+            slots.add(pathFor(i));
+        }
+        boolean collected = true;
+        for (String path : paths) {
+            if (!slots.contains(path) && !mDataLayer.delete(path)) {
+                collected = false;
+            }
+        }
+        return collected;
+    }
+
+    static String pathFor(int slot) {
+        return AlbumArtItem.PATH + "/" + slot;
+    }
+}
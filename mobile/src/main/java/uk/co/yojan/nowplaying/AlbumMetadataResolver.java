@@ -0,0 +1,314 @@
+package uk.co.yojan.nowplaying;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import kaaes.spotify.webapi.android.models.Image;
+import kaaes.spotify.webapi.android.models.Track;
+import retrofit.RetrofitError;
+
+/**
+ * Maps a Spotify track id to the album it belongs to and the album art url to download.
+ *
+ * Lookups are answered from a bounded in-memory map first, then from a small persistent index
+ * whose entries expire after a fixed time to live, and only then from the Spotify web api.
+ * Repeat plays, skipping back and looping a playlist therefore need no api round trip. Both
+ * caches honour the time to live. The index is written outside the lock, so lookups never wait
+ * on the disk.
+ */
+public class AlbumMetadataResolver {
+
+    private static final char SEPARATOR = '\t';
+
+    public static class AlbumInfo {
+        public final String albumId;
+        public final String imageUrl;
+
+        public AlbumInfo(String albumId, String imageUrl) {
+            this.albumId = albumId;
+            this.imageUrl = imageUrl;
+        }
+    }
+
+    private static class IndexEntry {
+        final AlbumInfo info;
+        final long expiresAt;
+
+        IndexEntry(AlbumInfo info, long expiresAt) {
+            this.info = info;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final SpotifyClient mSpotifyClient;
+    private final File mIndexFile;
+    private final long mTtlMillis;
+    private final int mMaxIndexEntries;
+    private final Clock mClock;
+    private int mTargetSize;
+
+    private final Map<String, IndexEntry> mMemory;
+    private final Map<String, IndexEntry> mIndex = new LinkedHashMap<>();
+    // Version of the index in memory, and of the one last written, so that a slow write never
+    // replaces a newer one. The second is guarded by mWriteLock rather than this.
+    private long mIndexVersion;
+    private long mWrittenVersion;
+    private final Object mWriteLock = new Object();
+
+    private long mMemoryHitCount;
+    private long mIndexHitCount;
+    private long mMissCount;
+    private long mLookupNanos;
+    private long mMaxLookupNanos;
+
+    public AlbumMetadataResolver(SpotifyClient spotifyClient, File indexFile, int targetSize,
+                                 final int maxMemoryEntries, int maxIndexEntries, long ttlMillis,
+                                 Clock clock) {
+        mSpotifyClient = spotifyClient;
+        mIndexFile = indexFile;
+        mTargetSize = targetSize;
+        mMaxIndexEntries = maxIndexEntries;
+        mTtlMillis = ttlMillis;
+        mClock = clock;
+        mMemory = new LinkedHashMap<String, IndexEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IndexEntry> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+        readIndex();
+    }
+
+    /**
+     * Returns the album for the track, calling the Spotify web api only if neither cache has an
+     * unexpired entry. Blocks on the network in that case, so must not be called on the main
+     * thread.
+     *
+     * @return the album, or null if the track has no album art
+     * @throws RetrofitError if the web api request fails
+     * @throws SpotifyClient.RateLimitedException if a speculative lookup is rate limited
+     */
+    public AlbumInfo resolve(String trackId, SpotifyClient.Priority priority)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            AlbumInfo info = lookupCached(trackId);
+            if (info != null) {
+                return info;
+            }
+
+            Track track = mSpotifyClient.getTrack(trackId, priority);
+            if (track == null || track.album == null) {
+                return null;
+            }
+            Image albumArt = chooseAlbumArt(track.album.images, mTargetSize);
+            if (albumArt == null) {
+                return null;
+            }
+            info = new AlbumInfo(track.album.id, albumArt.url);
+            store(trackId, info);
+            return info;
+        } finally {
+            recordLookup(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the cached album for the track without touching the network.
+     */
+    public synchronized AlbumInfo lookupCached(String trackId) {
+        long now = mClock.now();
+        IndexEntry entry = mMemory.get(trackId);
+        if (entry != null) {
+            if (entry.expiresAt > now) {
+                mMemoryHitCount++;
+                return entry.info;
+            }
+            mMemory.remove(trackId);
+        }
+
+        entry = mIndex.get(trackId);
+        if (entry != null) {
+            if (entry.expiresAt > now) {
+                mIndexHitCount++;
+                mMemory.put(trackId, entry);
+                return entry.info;
+            }
+            mIndex.remove(trackId);
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Changes the size that album art is chosen for. Cached urls were chosen for the old size,
+     * so both caches are cleared when it changes.
+     */
+    public void setTargetSize(int targetSize) {
+        long version;
+        synchronized (this) {
+            if (targetSize == mTargetSize) {
+                return;
+            }
+            mTargetSize = targetSize;
+            mMemory.clear();
+            mIndex.clear();
+            version = ++mIndexVersion;
+        }
+        writeIndex(new LinkedHashMap<String, IndexEntry>(), version);
+    }
+
+    /**
+     * Returns the image to download for the target size, see {@link ImageSelection#choose}.
+     */
+    public static Image chooseAlbumArt(List<Image> images, int targetSize) {
+        if (images == null) {
+            return null;
+        }
+        int[] heights = new int[images.size()];
+        for (int i = 0; i < heights.length; i++) {
+            Integer height = images.get(i).height;
+            heights[i] = height != null ? height : 0;
+        }
+        int chosen = ImageSelection.choose(heights, targetSize);
+        return chosen < 0 ? null : images.get(chosen);
+    }
+
+    public synchronized long memoryHitCount() {
+        return mMemoryHitCount;
+    }
+
+    public synchronized long indexHitCount() {
+        return mIndexHitCount;
+    }
+
+    public synchronized long missCount() {
+        return mMissCount;
+    }
+
+    public synchronized double hitRate() {
+        long lookups = mMemoryHitCount + mIndexHitCount + mMissCount;
+        return lookups == 0 ? 0 : (mMemoryHitCount + mIndexHitCount) / (double) lookups;
+    }
+
+    public synchronized double averageLookupMillis() {
+        long lookups = mMemoryHitCount + mIndexHitCount + mMissCount;
+        return lookups == 0 ? 0 : mLookupNanos / 1e6 / lookups;
+    }
+
+    public synchronized double maxLookupMillis() {
+        return mMaxLookupNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AlbumMetadataResolver[memoryHits=%d, indexHits=%d, misses=%d, "
+                        + "hitRate=%.2f, avgLookup=%.2fms, maxLookup=%.2fms]",
+                mMemoryHitCount, mIndexHitCount, mMissCount, hitRate(), averageLookupMillis(),
+                maxLookupMillis());
+    }
+
+    private synchronized void recordLookup(long nanos) {
+        mLookupNanos += nanos;
+        mMaxLookupNanos = Math.max(mMaxLookupNanos, nanos);
+    }
+
+    private void store(String trackId, AlbumInfo info) {
+        Map<String, IndexEntry> index;
+        long version;
+        synchronized (this) {
+            IndexEntry entry = new IndexEntry(info, mClock.now() + mTtlMillis);
+            mMemory.put(trackId, entry);
+            mIndex.remove(trackId);
+            mIndex.put(trackId, entry);
+            trimIndex();
+            index = new LinkedHashMap<>(mIndex);
+            version = ++mIndexVersion;
+        }
+        writeIndex(index, version);
+    }
+
+    /**
+     * Drops expired entries, then the oldest entries until the index fits.
+     */
+    private void trimIndex() {
+        long now = mClock.now();
+        Iterator<IndexEntry> it = mIndex.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+            }
+        }
+        it = mIndex.values().iterator();
+        while (mIndex.size() > mMaxIndexEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void readIndex() {
+        if (mIndexFile == null || !mIndexFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(mIndexFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(String.valueOf(SEPARATOR));
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    long expiresAt = Long.parseLong(fields[3]);
+                    mIndex.put(fields[0],
+                            new IndexEntry(new AlbumInfo(fields[1], fields[2]), expiresAt));
+                } catch (NumberFormatException e) {
+                    // Skip the corrupt line.
+                }
+            }
+        } catch (IOException e) {
+            mIndex.clear();
+        }
+        trimIndex();
+    }
+
+    /**
+     * Writes a copy of the index taken at the given version, unless a newer one was written
+     * meanwhile. Called without holding this.
+     */
+    private void writeIndex(Map<String, IndexEntry> index, long version) {
+        if (mIndexFile == null) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            if (version <= mWrittenVersion) {
+                return;
+            }
+            mWrittenVersion = version;
+            File temp = new File(mIndexFile.getPath() + ".tmp");
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+                for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+                    AlbumInfo info = entry.getValue().info;
+                    writer.append(entry.getKey()).append(SEPARATOR)
+                            .append(info.albumId).append(SEPARATOR)
+                            .append(info.imageUrl).append(SEPARATOR)
+                            .append(Long.toString(entry.getValue().expiresAt))
+                            .append('\n');
+                }
+            } catch (IOException e) {
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(mIndexFile)) {
+                temp.delete();
+            }
+        }
+    }
+}
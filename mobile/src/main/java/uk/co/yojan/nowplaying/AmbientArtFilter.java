@@ -0,0 +1,105 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Derives the ambient mode variant of album art on the phone, so the watch does no image
+ * processing when it enters ambient mode.
+ *
+ * The art is converted to greyscale and darkened with a steep curve so that most of the screen
+ * stays black for burn-in protection. For low-bit ambient displays it is then ordered dithered
+ * down to black and white, where the dither pattern rather than the level sets the brightness.
+ * Displays that need burn-in protection also have the inside of solid regions thinned to a
+ * checkerboard, keeping their outlines.
+ */
+public class AmbientArtFilter {
+
+    // Brightest grey the ambient art may use.
+    static final int MAX_LEVEL = 0x80;
+    // Low-bit displays only show pixels fully on or off.
+    static final int LOW_BIT_LEVEL = 0xff;
+
+    private static final int[] BAYER_4X4 = {
+            0, 8, 2, 10,
+            12, 4, 14, 6,
+            3, 11, 1, 9,
+            15, 7, 13, 5
+    };
+
+    private AmbientArtFilter() { }
+
+    /**
+     * Returns the ambient variant of the ARGB pixels, which are left untouched.
+     */
+    public static int[] apply(int[] argb, int width, int height, boolean lowBit,
+                              boolean burnInProtection) {
+        if (argb.length != width * height) {
+            throw new IllegalArgumentException("Expected " + width * height + " pixels");
+        }
+        int[] levels = new int[argb.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                int level = darken(luminance(argb[i]));
+                if (lowBit) {
+                    // Light the pixel if its level beats the threshold for its dither cell.
+                    int threshold = (BAYER_4X4[(y & 3) * 4 + (x & 3)] * 2 + 1) * MAX_LEVEL / 32;
+                    level = level > threshold ? LOW_BIT_LEVEL : 0;
+                }
+                levels[i] = level;
+            }
+        }
+
+        int[] ambient = new int[argb.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                int level = levels[i];
+                if (burnInProtection && ((x + y) & 1) != 0
+                        && isInterior(levels, width, height, x, y)) {
+                    level = 0;
+                }
+                ambient[i] = 0xff000000 | (level << 16) | (level << 8) | level;
+            }
+        }
+        return ambient;
+    }
+
+    /**
+     * Whether the pixel and its four neighbours are all lit.
+     */
+    private static boolean isInterior(int[] levels, int width, int height, int x, int y) {
+        return levels[y * width + x] != 0
+                && x > 0 && levels[y * width + x - 1] != 0
+                && x < width - 1 && levels[y * width + x + 1] != 0
+                && y > 0 && levels[(y - 1) * width + x] != 0
+                && y < height - 1 && levels[(y + 1) * width + x] != 0;
+    }
+
+    /**
+     * Fraction of pixels that are not black, useful for checking burn-in exposure.
+     */
+    public static double litFraction(int[] argb) {
+        int lit = 0;
+        for (int pixel : argb) {
+            if ((pixel & 0xffffff) != 0) {
+                lit++;
+            }
+        }
+        return argb.length == 0 ? 0 : lit / (double) argb.length;
+    }
+
+    static int luminance(int argb) {
+        int r = (argb >> 16) & 0xff;
+        int g = (argb >> 8) & 0xff;
+        int b = argb & 0xff;
+        // Rec. 601 luma in fixed point.
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+
+    /**
+     * Squares the normalised luminance so that mid tones fall towards black, then scales it to
+     * the ambient brightness cap.
+     */
+    static int darken(int luminance) {
+        return luminance * luminance * MAX_LEVEL / (255 * 255);
+    }
+}
@@ -0,0 +1,175 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches and encodes album art for tracks that are likely to play next, so that a track change
+ * only costs a local cache lookup.
+ *
+ * Work runs on a low priority executor and is bounded both per trigger and per hour. A new
+ * trigger cancels whatever the previous one had not got round to.
+ */
+public class ArtPrefetcher {
+
+    private static final long BUDGET_WINDOW_MS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_REMEMBERED = 100;
+
+    public interface Loader {
+        /**
+         * Resolves, downloads, encodes and caches the art for the track. Called on the
+         * prefetch executor.
+         */
+        void prefetch(String trackId) throws Exception;
+    }
+
+    private final Loader mLoader;
+    private final Executor mExecutor;
+    private final int mMaxTracksPerTrigger;
+    private final int mMaxPrefetchesPerHour;
+    private final Clock mClock;
+
+    private long mGeneration;
+    private final Deque<Long> mRecentPrefetches = new ArrayDeque<>();
+    private final Map<String, Boolean> mPrefetched = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_REMEMBERED;
+        }
+    };
+
+    private long mCompletedCount;
+    private long mFailedCount;
+    private long mCancelledCount;
+    private long mOverBudgetCount;
+    private long mHitCount;
+    private long mMissCount;
+
+    public ArtPrefetcher(Loader loader, Executor executor, int maxTracksPerTrigger,
+                         int maxPrefetchesPerHour, Clock clock) {
+        mLoader = loader;
+        mExecutor = executor;
+        mMaxTracksPerTrigger = maxTracksPerTrigger;
+        mMaxPrefetchesPerHour = maxPrefetchesPerHour;
+        mClock = clock;
+    }
+
+    /**
+     * Prefetches the first few of the tracks, most likely first, cancelling any earlier prefetch
+     * that has not finished.
+     */
+    public void prefetch(List<String> trackIds) {
+        final long generation;
+        final List<String> wanted = new ArrayList<>();
+        synchronized (this) {
+            generation = ++mGeneration;
+            for (String trackId : trackIds) {
+                if (wanted.size() >= mMaxTracksPerTrigger) {
+                    break;
+                }
+                if (!mPrefetched.containsKey(trackId)) {
+                    wanted.add(trackId);
+                }
+            }
+        }
+        if (wanted.isEmpty()) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < wanted.size(); i++) {
+                    if (!startPrefetch(generation, wanted.size() - i)) {
+                        return;
+                    }
+                    String trackId = wanted.get(i);
+                    try {
+                        mLoader.prefetch(trackId);
+                        finishPrefetch(trackId, true);
+                    } catch (Exception e) {
+                        finishPrefetch(trackId, false);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels outstanding prefetches, for example when playback stops.
+     */
+    public synchronized void cancel() {
+        mGeneration++;
+    }
+
+    /**
+     * Records that a track started playing, for the hit rate.
+     */
+    public synchronized void recordPlay(String trackId) {
+        if (mPrefetched.remove(trackId) != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+    }
+
+    public synchronized double hitRate() {
+        long plays = mHitCount + mMissCount;
+        return plays == 0 ? 0 : mHitCount / (double) plays;
+    }
+
+    public synchronized long completedCount() {
+        return mCompletedCount;
+    }
+
+    public synchronized long cancelledCount() {
+        return mCancelledCount;
+    }
+
+    public synchronized long overBudgetCount() {
+        return mOverBudgetCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ArtPrefetcher[completed=%d, failed=%d, cancelled=%d, overBudget=%d, "
+                        + "hits=%d, misses=%d, hitRate=%.2f]", mCompletedCount, mFailedCount,
+                mCancelledCount, mOverBudgetCount, mHitCount, mMissCount, hitRate());
+    }
+
+    /**
+     * Returns whether the next prefetch of the generation may go ahead, charging it to the
+     * hourly budget if so.
+     */
+    private synchronized boolean startPrefetch(long generation, int remaining) {
+        if (generation != mGeneration) {
+            mCancelledCount += remaining;
+            return false;
+        }
+        long now = mClock.now();
+        while (!mRecentPrefetches.isEmpty()
+                && mRecentPrefetches.peekFirst() <= now - BUDGET_WINDOW_MS) {
+            mRecentPrefetches.pollFirst();
+        }
+        if (mRecentPrefetches.size() >= mMaxPrefetchesPerHour) {
+            mOverBudgetCount += remaining;
+            return false;
+        }
+        mRecentPrefetches.addLast(now);
+        return true;
+    }
+
+    private synchronized void finishPrefetch(String trackId, boolean success) {
+        if (success) {
+            mCompletedCount++;
+            mPrefetched.put(trackId, Boolean.TRUE);
+        } else {
+            mFailedCount++;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package uk.co.yojan.nowplaying;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Contents of one album art data item, either a reference by content hash or, if the art is
+ * attached, the full item.
+ */
+public class ArtSyncItem {
+
+    public final String cacheKey;
+    public final String albumArtHash;
+    public final String ambientAlbumArtHash;
+    /** Null for a reference. */
+    public final byte[] albumArt;
+    /** Null for a reference. */
+    public final byte[] ambientAlbumArt;
+    /** 0 if the item is not traced. */
+    public final long traceId;
+    public final long traceStartMillis;
+    /** False once a placeholder has been shown for the art, so it can wait for the link. */
+    public final boolean urgent;
+
+    private ArtSyncItem(String cacheKey, String albumArtHash, String ambientAlbumArtHash,
+                        byte[] albumArt, byte[] ambientAlbumArt, long traceId,
+                        long traceStartMillis, boolean urgent) {
+        this.cacheKey = cacheKey;
+        this.albumArtHash = albumArtHash;
+        this.ambientAlbumArtHash = ambientAlbumArtHash;
+        this.albumArt = albumArt;
+        this.ambientAlbumArt = ambientAlbumArt;
+        this.traceId = traceId;
+        this.traceStartMillis = traceStartMillis;
+        this.urgent = urgent;
+    }
+
+    public static ArtSyncItem reference(String cacheKey, byte[] albumArt, byte[] ambientAlbumArt) {
+        return new ArtSyncItem(cacheKey, AlbumArtItem.hash(albumArt),
+                AlbumArtItem.hash(ambientAlbumArt), null, null, 0, 0, true);
+    }
+
+    public static ArtSyncItem full(String cacheKey, byte[] albumArt, byte[] ambientAlbumArt) {
+        return new ArtSyncItem(cacheKey, AlbumArtItem.hash(albumArt),
+                AlbumArtItem.hash(ambientAlbumArt), albumArt, ambientAlbumArt, 0, 0, true);
+    }
+
+    /**
+     * Returns a copy of the item that carries the trace on to the watch.
+     */
+    public ArtSyncItem traced(long traceId, long traceStartMillis) {
+        return new ArtSyncItem(cacheKey, albumArtHash, ambientAlbumArtHash, albumArt,
+                ambientAlbumArt, traceId, traceStartMillis, urgent);
+    }
+
+    /**
+     * Returns a copy of the item that the data layer may batch with other non-urgent items.
+     */
+    public ArtSyncItem notUrgent() {
+        return new ArtSyncItem(cacheKey, albumArtHash, ambientAlbumArtHash, albumArt,
+                ambientAlbumArt, traceId, traceStartMillis, false);
+    }
+
+    /**
+     * Writes the item so that {@link #readFrom} can restore it after a process restart.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(cacheKey);
+        out.writeUTF(albumArtHash);
+        out.writeUTF(ambientAlbumArtHash);
+        out.writeBoolean(!isReference());
+        if (!isReference()) {
+            writeBytes(out, albumArt);
+            writeBytes(out, ambientAlbumArt);
+        }
+        out.writeLong(traceId);
+        out.writeLong(traceStartMillis);
+        out.writeBoolean(urgent);
+    }
+
+    public static ArtSyncItem readFrom(DataInputStream in) throws IOException {
+        String cacheKey = in.readUTF();
+        String albumArtHash = in.readUTF();
+        String ambientAlbumArtHash = in.readUTF();
+        byte[] albumArt = null;
+        byte[] ambientAlbumArt = null;
+        if (in.readBoolean()) {
+            albumArt = readBytes(in);
+            ambientAlbumArt = readBytes(in);
+        }
+        return new ArtSyncItem(cacheKey, albumArtHash, ambientAlbumArtHash, albumArt,
+                ambientAlbumArt, in.readLong(), in.readLong(), in.readBoolean());
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 4 * 1024 * 1024) {
+            throw new IOException("Corrupt item: " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public boolean isReference() {
+        return albumArt == null;
+    }
+
+    /**
+     * Returns the size of the attached art, which is what the item costs on the data layer.
+     */
+    public long assetBytes() {
+        return isReference() ? 0 : albumArt.length + ambientAlbumArt.length;
+    }
+}
@@ -0,0 +1,226 @@
+package uk.co.yojan.nowplaying;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the album art to sync while the data layer is not connected, and syncs it once it is.
+ *
+ * Only the current track's art matters to the watch, so a newer item replaces the one waiting
+ * rather than queueing behind it, and nothing superseded is ever transferred. Items are ordered
+ * by the generation of the track change they are for, not by when they are offered, so art
+ * that finishes late never replaces a later track's. Offering never blocks on connecting: the
+ * connection is only asked to start, and calls {@link #flush} when it is up. The waiting item
+ * is persisted, so it is still synced if the process dies first. While held, such as when
+ * playback is paused, items wait even if connected.
+ */
+public class ArtSyncOutbox {
+
+    /**
+     * The connection to the data layer.
+     */
+    public interface Connection {
+        boolean isConnected();
+
+        /** Starts connecting if not already, without blocking. */
+        void connect();
+
+        /**
+         * Called whenever the waiting item has been synced, however the flush came about, so
+         * that the connection need no longer be kept up for it. Called holding the outbox.
+         */
+        void onDrained();
+    }
+
+    private static final int MAGIC = 0x4e504f42;
+    private static final int VERSION = 1;
+    private static final int LATENCY_WINDOW = 100;
+    // As much encoded art as the watch face keeps, see NowPlayingWatchface.ART_STORE_BYTES.
+    private static final long WATCH_ART_STORE_BYTES = 4 * 1024 * 1024;
+
+    private final File mFile;
+    private final Connection mConnection;
+    private final AlbumArtSyncStore mSyncStore;
+    private final Clock mClock;
+    private final LatencyHistogram mFlushLatency = new LatencyHistogram(LATENCY_WINDOW);
+
+    private ArtSyncItem mPending;
+    private long mPendingSince;
+    // Generation of the newest item offered. Generations restart with the process, so a
+    // restored item is older than anything offered since.
+    private long mLatestGeneration;
+    private boolean mHeld;
+    // Bytes of the art synced in full by cache key, least recently synced first, as far as the
+    // watch would still have it. Art from before the process started is sent in full again.
+    private final LinkedHashMap<String, Long> mSynced = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSyncedBytes;
+
+    private long mOfferCount;
+    private long mSupersededCount;
+    private long mStaleCount;
+    private long mFlushCount;
+    private long mRestoredCount;
+
+    public ArtSyncOutbox(File file, Connection connection, AlbumArtSyncStore syncStore,
+                         Clock clock) {
+        mFile = file;
+        mConnection = connection;
+        mSyncStore = syncStore;
+        mClock = clock;
+        read();
+    }
+
+    /**
+     * Syncs the item now if connected, otherwise keeps it in place of any item still waiting.
+     * An item of the same generation as the newest replaces it, so art can be sent again.
+     *
+     * @return false if the item was dropped, as an item of a later generation was offered before
+     */
+    public synchronized boolean offer(ArtSyncItem item, long generation) {
+        mOfferCount++;
+        if (generation < mLatestGeneration) {
+            mStaleCount++;
+            return false;
+        }
+        mLatestGeneration = generation;
+        if (mPending != null) {
+            mSupersededCount++;
+        }
+        mPending = item;
+        mPendingSince = mClock.now();
+        if (!flush()) {
+            write();
+        }
+        return true;
+    }
+
+    /**
+     * Holds items back, or syncs the waiting item once no longer held.
+     */
+    public synchronized void setHeld(boolean held) {
+        mHeld = held;
+        if (!held) {
+            flush();
+        }
+    }
+
+    /**
+     * Syncs the waiting item, if any, or starts connecting if not connected. Returns whether
+     * nothing is left waiting.
+     */
+    public synchronized boolean flush() {
+        if (mPending == null) {
+            return true;
+        }
+        if (mHeld) {
+            return false;
+        }
+        if (!mConnection.isConnected()) {
+            mConnection.connect();
+            return false;
+        }
+        if (!mSyncStore.put(mPending)) {
+            // Disconnected while putting, so the item was never written.
+            mConnection.connect();
+            return false;
+        }
+        mFlushLatency.record(mClock.now() - mPendingSince);
+        mFlushCount++;
+        recordSynced(mPending);
+        mPending = null;
+        mFile.delete();
+        mConnection.onDrained();
+        return true;
+    }
+
+    /**
+     * Returns whether the art for the cache key was synced in full recently enough that the
+     * watch should still have it, so that a reference to it will do.
+     */
+    public synchronized boolean hasSynced(String cacheKey) {
+        return mSynced.containsKey(cacheKey);
+    }
+
+    /**
+     * Returns the number of items waiting, at most one.
+     */
+    public synchronized int depth() {
+        return mPending == null ? 0 : 1;
+    }
+
+    /**
+     * Returns how long items waited before they were synced, 0 for items synced straight away.
+     */
+    public LatencyHistogram flushLatency() {
+        return mFlushLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ArtSyncOutbox[depth=%d%s, offered=%d, superseded=%d, stale=%d, "
+                        + "flushed=%d, restored=%d, flushLatency=%s]", depth(),
+                mHeld ? " held" : "", mOfferCount, mSupersededCount, mStaleCount, mFlushCount,
+                mRestoredCount, mFlushLatency);
+    }
+
+    private void recordSynced(ArtSyncItem item) {
+        if (item.isReference()) {
+            // The watch showed it again, so keeps it the longest.
+            mSynced.get(item.cacheKey);
+            return;
+        }
+        Long previous = mSynced.put(item.cacheKey, item.assetBytes());
+        mSyncedBytes += item.assetBytes() - (previous == null ? 0 : previous);
+        Iterator<Map.Entry<String, Long>> it = mSynced.entrySet().iterator();
+        while (mSyncedBytes > WATCH_ART_STORE_BYTES && it.hasNext()) {
+            mSyncedBytes -= it.next().getValue();
+            it.remove();
+        }
+    }
+
+    private void read() {
+        if (!mFile.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                mFile.delete();
+                return;
+            }
+            mPendingSince = in.readLong();
+            mPending = ArtSyncItem.readFrom(in);
+            mRestoredCount++;
+        } catch (IOException | RuntimeException e) {
+            // Truncated by process death, the next track replaces it.
+            mPending = null;
+            mFile.delete();
+        }
+    }
+
+    private void write() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mPendingSince);
+            mPending.writeTo(out);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Counts what syncing album art to the watch by reference saves over always sending the assets.
+ */
+public class ArtSyncStats {
+
+    private long mReferenceCount;
+    private long mMissCount;
+    private long mFullCount;
+    private long mReferencedBytes;
+    private long mMissBytes;
+    private long mFullBytes;
+
+    /**
+     * Records a reference sent in place of art of the given size.
+     */
+    public synchronized void recordReference(long bytes) {
+        mReferenceCount++;
+        mReferencedBytes += bytes;
+    }
+
+    /**
+     * Records art of the given size sent because the watch did not have a referenced album.
+     */
+    public synchronized void recordMiss(long bytes) {
+        mMissCount++;
+        mMissBytes += bytes;
+    }
+
+    /**
+     * Records art of the given size sent up front, without a reference first.
+     */
+    public synchronized void recordFull(long bytes) {
+        mFullCount++;
+        mFullBytes += bytes;
+    }
+
+    public synchronized long referenceCount() {
+        return mReferenceCount;
+    }
+
+    public synchronized long missCount() {
+        return mMissCount;
+    }
+
+    public synchronized long bytesSent() {
+        return mMissBytes + mFullBytes;
+    }
+
+    public synchronized long bytesSaved() {
+        return Math.max(0, mReferencedBytes - mMissBytes);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ArtSyncStats[references=%d, misses=%d, full=%d, bytesSent=%d, "
+                        + "bytesSaved=%d]", mReferenceCount, mMissCount, mFullCount, bytesSent(),
+                bytesSaved());
+    }
+}
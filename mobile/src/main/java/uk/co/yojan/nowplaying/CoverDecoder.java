@@ -0,0 +1,141 @@
+package uk.co.yojan.nowplaying;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes covers straight off the network, subsampled by the largest power of two that still
+ * covers the display, so a full resolution cover never exists in memory. The art is scaled to
+ * the exact size once, when it is prepared for encoding.
+ *
+ * The bounds are read first from the start of the stream, which is then rewound for the decode.
+ * Should the headers run past what was buffered, the cover is requested again, which the http
+ * cache answers. Each request's call is attached to the download, so that cancelling it aborts
+ * the read.
+ */
+public class CoverDecoder {
+
+    /**
+     * Whether to subsample. Turn off to compare the decode time and memory with decoding at full
+     * resolution.
+     */
+    private static final boolean SUBSAMPLE = true;
+
+    // Well past the headers of the jpegs Spotify serves, which come before any pixels.
+    private static final int MARK_LIMIT = 64 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final OkHttpClient mClient;
+    private final DecodeStats mStats = new DecodeStats();
+
+    public CoverDecoder(OkHttpClient client) {
+        mClient = client;
+    }
+
+    /**
+     * Downloads and decodes the cover, no smaller than the display.
+     */
+    public Bitmap decode(String imageUrl, WatchDisplay display,
+                         AlbumArtPipeline.Download download) throws IOException {
+        InputStream in = open(imageUrl, download);
+        try {
+            // From the response headers on, so this includes reading the body.
+            long start = System.nanoTime();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            in.mark(MARK_LIMIT);
+            BitmapFactory.decodeStream(in, null, options);
+            int width = options.outWidth;
+            int height = options.outHeight;
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Not an image: " + imageUrl);
+            }
+            try {
+                in.reset();
+            } catch (IOException e) {
+                // Read past the mark. Reading to the end commits the cover to the http cache,
+                // which then answers the second request.
+                skipToEnd(in);
+                in.close();
+                in = open(imageUrl, download);
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = SUBSAMPLE
+                    ? ImageSelection.sampleSize(width, height, display.width, display.height) : 1;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            long heapBefore = usedHeapBytes();
+            Bitmap cover = BitmapFactory.decodeStream(in, null, options);
+            if (cover == null) {
+                throw new IOException("Could not decode " + imageUrl);
+            }
+            mStats.record(System.nanoTime() - start, cover.getByteCount(),
+                    (long) width * height * BYTES_PER_PIXEL, artBytes(display),
+                    usedHeapBytes() - heapBefore);
+            return cover;
+        } finally {
+            in.close();
+        }
+    }
+
+    public DecodeStats stats() {
+        return mStats;
+    }
+
+    /**
+     * Returns the java and native heap in use, as bitmap pixels live on either depending on the
+     * Android version.
+     */
+    private static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+
+    /**
+     * Returns the memory of the art and its ambient variant prepared for the display.
+     */
+    static long artBytes(WatchDisplay display) {
+        return 2L * display.width * display.height * BYTES_PER_PIXEL;
+    }
+
+    private static void skipToEnd(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+            // Discarded.
+        }
+    }
+
+    private InputStream open(String imageUrl, AlbumArtPipeline.Download download)
+            throws IOException {
+        final Call call = mClient.newCall(new Request.Builder().url(imageUrl).build());
+        download.attach(new Closeable() {
+            @Override
+            public void close() {
+                call.cancel();
+            }
+        });
+        Response response = call.execute();
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException("HTTP " + response.code() + " for " + imageUrl);
+        }
+        return new BufferedInputStream(response.body().byteStream(), BUFFER_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return mStats.toString();
+    }
+}
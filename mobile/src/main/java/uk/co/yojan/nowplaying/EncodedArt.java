@@ -0,0 +1,73 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.List;
+
+/**
+ * Album art encoded by one strategy, along with how faithful and how expensive the encode was.
+ */
+public class EncodedArt {
+
+    public final String strategy;
+    public final byte[] bytes;
+    public final double psnr;
+    public final long encodeNanos;
+
+    public EncodedArt(String strategy, byte[] bytes, double psnr, long encodeNanos) {
+        this.strategy = strategy;
+        this.bytes = bytes;
+        this.psnr = psnr;
+        this.encodeNanos = encodeNanos;
+    }
+
+    /**
+     * Picks the smallest payload whose quality meets the threshold, or the most faithful one if
+     * none do.
+     */
+    public static EncodedArt chooseSmallest(List<EncodedArt> candidates, double minPsnr) {
+        EncodedArt smallest = null;
+        EncodedArt best = null;
+        for (EncodedArt candidate : candidates) {
+            if (candidate.psnr >= minPsnr
+                    && (smallest == null || candidate.bytes.length < smallest.bytes.length)) {
+                smallest = candidate;
+            }
+            if (best == null || candidate.psnr > best.psnr) {
+                best = candidate;
+            }
+        }
+        return smallest != null ? smallest : best;
+    }
+
+    /**
+     * Peak signal to noise ratio in decibels between two ARGB images of the same size, over the
+     * colour channels. Identical images have an infinite PSNR.
+     */
+    public static double psnr(int[] expected, int[] actual) {
+        if (expected.length != actual.length) {
+            throw new IllegalArgumentException("Images differ in size");
+        }
+        if (expected.length == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        long squaredError = 0;
+        for (int i = 0; i < expected.length; i++) {
+            int e = expected[i];
+            int a = actual[i];
+            int dr = ((e >> 16) & 0xff) - ((a >> 16) & 0xff);
+            int dg = ((e >> 8) & 0xff) - ((a >> 8) & 0xff);
+            int db = (e & 0xff) - (a & 0xff);
+            squaredError += dr * dr + dg * dg + db * db;
+        }
+        if (squaredError == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double mse = squaredError / (3.0 * expected.length);
+        return 10 * Math.log10(255 * 255 / mse);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d bytes, %.1f dB, %.2f ms",
+                strategy, bytes.length, psnr, encodeNanos / 1e6);
+    }
+}
@@ -0,0 +1,67 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Running totals of payload size and encode time for each encoding strategy.
+ */
+public class EncoderStats {
+
+    private static class Totals {
+        long encodes;
+        long chosen;
+        long bytes;
+        long nanos;
+    }
+
+    private final Map<String, Totals> mTotals = new LinkedHashMap<>();
+
+    public synchronized void recordEncode(EncodedArt art) {
+        Totals totals = totalsFor(art.strategy);
+        totals.encodes++;
+        totals.bytes += art.bytes.length;
+        totals.nanos += art.encodeNanos;
+    }
+
+    public synchronized void recordChosen(EncodedArt art) {
+        totalsFor(art.strategy).chosen++;
+    }
+
+    public synchronized long averageBytes(String strategy) {
+        Totals totals = mTotals.get(strategy);
+        return totals == null || totals.encodes == 0 ? 0 : totals.bytes / totals.encodes;
+    }
+
+    public synchronized double averageEncodeMillis(String strategy) {
+        Totals totals = mTotals.get(strategy);
+        return totals == null || totals.encodes == 0 ? 0 : totals.nanos / 1e6 / totals.encodes;
+    }
+
+    public synchronized long chosenCount(String strategy) {
+        Totals totals = mTotals.get(strategy);
+        return totals == null ? 0 : totals.chosen;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("EncoderStats");
+        for (Map.Entry<String, Totals> entry : mTotals.entrySet()) {
+            Totals totals = entry.getValue();
+            builder.append(String.format(
+                    "\n  %-10s encodes=%d chosen=%d avgBytes=%d avgEncode=%.2fms", entry.getKey(),
+                    totals.encodes, totals.chosen, totals.bytes / Math.max(1, totals.encodes),
+                    totals.nanos / 1e6 / Math.max(1, totals.encodes)));
+        }
+        return builder.toString();
+    }
+
+    private Totals totalsFor(String strategy) {
+        Totals totals = mTotals.get(strategy);
+        if (totals == null) {
+            totals = new Totals();
+            mTotals.put(strategy, totals);
+        }
+        return totals;
+    }
+}
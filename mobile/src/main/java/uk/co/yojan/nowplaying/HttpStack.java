@@ -0,0 +1,148 @@
+package uk.co.yojan.nowplaying;
+
+import android.content.Context;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import kaaes.spotify.webapi.android.SpotifyApi;
+import kaaes.spotify.webapi.android.SpotifyService;
+import retrofit.RestAdapter;
+import retrofit.client.OkClient;
+
+/**
+ * The phone's one http client, shared by the Spotify web api and the cover downloads, so that
+ * both draw on one connection pool and one bounded disk cache.
+ *
+ * Stale cached responses are revalidated with If-None-Match or If-Modified-Since, so a cover
+ * that has not changed costs a 304 rather than the image. HTTP/2 is negotiated where the server
+ * supports it, and each host then needs a single connection. Counts per host how requests were
+ * answered and whether their connections were reused.
+ */
+public class HttpStack {
+
+    // The api and the image cdn need one connection each over HTTP/2, a few over HTTP/1.1.
+    // Kept idle for longer than a track, so the next track change finds them open.
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static HttpStack sInstance;
+
+    private final Cache mCache;
+    private final HttpStats mStats = new HttpStats();
+    private final OkHttpClient mClient;
+    private final SpotifyService mSpotifyService;
+
+    public static synchronized HttpStack get(Context context) {
+        if (sInstance == null) {
+            sInstance = new HttpStack(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private HttpStack(Context context) {
+        mCache = new Cache(new File(context.getCacheDir(), "http"),
+                context.getResources().getInteger(R.integer.http_cache_max_bytes));
+        mClient = newClient(mCache, mStats);
+        mSpotifyService = newSpotifyService(mClient, SpotifyApi.SPOTIFY_WEB_API_ENDPOINT);
+    }
+
+    /**
+     * Returns a client with the pool, protocols and cache the phone uses, recording into the
+     * stats.
+     */
+    static OkHttpClient newClient(Cache cache, final HttpStats stats) {
+        OkHttpClient client = new OkHttpClient();
+        client.setCache(cache);
+        client.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS));
+        client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        // Sees what the caller gets, after the cache had its say.
+        client.interceptors().add(new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                Response response = chain.proceed(chain.request());
+                stats.recordOutcome(chain.request().httpUrl().host(), outcome(response));
+                return response;
+            }
+        });
+        // Sees each exchange with the server, on the connection it went over.
+        final Set<Connection> seen =
+                Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+        client.networkInterceptors().add(new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                Connection connection = chain.connection();
+                boolean reused;
+                synchronized (seen) {
+                    reused = !seen.add(connection);
+                }
+                stats.recordExchange(chain.request().httpUrl().host(), reused,
+                        connection.getProtocol() == Protocol.HTTP_2);
+                return chain.proceed(chain.request());
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Returns the Spotify web api at the endpoint, over the client.
+     */
+    static SpotifyService newSpotifyService(OkHttpClient client, String endpoint) {
+        return new RestAdapter.Builder()
+                .setEndpoint(endpoint)
+                .setClient(new OkClient(client))
+                .build()
+                .create(SpotifyService.class);
+    }
+
+    private static HttpStats.Outcome outcome(Response response) {
+        Response cached = response.cacheResponse();
+        Response network = response.networkResponse();
+        if (cached == null) {
+            return HttpStats.Outcome.NETWORK;
+        }
+        if (network == null) {
+            return HttpStats.Outcome.CACHED;
+        }
+        return network.code() == 304
+                ? HttpStats.Outcome.NOT_MODIFIED : HttpStats.Outcome.MODIFIED;
+    }
+
+    public SpotifyService spotifyService() {
+        return mSpotifyService;
+    }
+
+    public OkHttpClient client() {
+        return mClient;
+    }
+
+    public HttpStats stats() {
+        return mStats;
+    }
+
+    @Override
+    public String toString() {
+        long size;
+        try {
+            size = mCache.getSize();
+        } catch (IOException e) {
+            size = -1;
+        }
+        return String.format("HttpStack[cache=%d/%d, requests=%d, network=%d, hits=%d] %s",
+                size, mCache.getMaxSize(), mCache.getRequestCount(), mCache.getNetworkCount(),
+                mCache.getHitCount(), mStats);
+    }
+}
@@ -0,0 +1,371 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs jobs through a fixed sequence of stages. Each stage has its own executor, sized for the
+ * kind of work it does, and a bounded queue in front of it.
+ *
+ * When a stage's queue is full the oldest queued job is dropped, since newer tracks supersede
+ * older ones. This load shedding is deliberate: submitting never blocks the caller, which is the
+ * main thread, and is never refused. Dropped jobs are reported like any other.
+ *
+ * Jobs are checked for cancellation before every stage. A stage that runs past its timeout is
+ * interrupted, and cancelled if it is a {@link CancellableStage}, since blocking socket reads
+ * ignore interrupts. Its job is abandoned if the stage then fails, while a stage that returns
+ * anyway keeps its result. Every submitted job is reported to the listener exactly once, however
+ * it ended.
+ */
+public class Pipeline<T> {
+
+    public interface Stage<T> {
+        /**
+         * Does this stage's work on the job.
+         *
+         * @return true to pass the job on to the next stage, false if there is nothing left to do
+         */
+        boolean process(T job) throws Exception;
+    }
+
+    /**
+     * A stage whose work can be aborted from another thread, e.g. by closing its connection.
+     */
+    public interface CancellableStage<T> extends Stage<T> {
+        /**
+         * Called when the stage's job timed out, while {@link #process} is still running. Should
+         * make it fail promptly.
+         */
+        void cancel(T job);
+    }
+
+    public interface Cancellation<T> {
+        boolean isCancelled(T job);
+    }
+
+    public enum Outcome {
+        /** Went through every stage. */
+        COMPLETED,
+        /** A stage had nothing left to do. */
+        STOPPED,
+        CANCELLED,
+        /** Pushed out of a full queue by a newer job. */
+        DROPPED,
+        TIMED_OUT,
+        FAILED
+    }
+
+    public interface Listener<T> {
+        /**
+         * @param stage the stage the job ended in
+         * @param error the exception the stage failed with, if any
+         */
+        void onFinished(T job, Outcome outcome, String stage, Exception error);
+    }
+
+    private final Cancellation<T> mCancellation;
+    private final Listener<T> mListener;
+    private final List<StageRunner> mStages = new ArrayList<>();
+    private final ScheduledExecutorService mTimer =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pipeline-timer"));
+
+    public Pipeline(Cancellation<T> cancellation, Listener<T> listener) {
+        mCancellation = cancellation;
+        mListener = listener;
+    }
+
+    /**
+     * Appends a stage. All stages must be added before the first job is submitted.
+     *
+     * @param timeoutMillis how long the stage may spend on a job, or 0 for no limit
+     */
+    public Pipeline<T> addStage(String name, int threads, int queueCapacity, long timeoutMillis,
+                                Stage<T> stage) {
+        mStages.add(new StageRunner(name, mStages.size(), threads, queueCapacity, timeoutMillis,
+                stage));
+        return this;
+    }
+
+    public void submit(T job) {
+        if (mStages.isEmpty()) {
+            throw new IllegalStateException("Pipeline has no stages");
+        }
+        mStages.get(0).enqueue(job);
+    }
+
+    public void shutdown() {
+        for (StageRunner stage : mStages) {
+            stage.mExecutor.shutdownNow();
+        }
+        mTimer.shutdownNow();
+    }
+
+    /**
+     * Returns a snapshot of the named stage's counters, or null if there is no such stage.
+     */
+    public StageStats stats(String stageName) {
+        for (StageRunner stage : mStages) {
+            if (stage.mName.equals(stageName)) {
+                return stage.snapshot();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Pipeline[");
+        for (int i = 0; i < mStages.size(); i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(mStages.get(i).snapshot());
+        }
+        return builder.append(']').toString();
+    }
+
+    public static class StageStats {
+        public final String name;
+        public final int queueDepth;
+        public final long processedCount;
+        public final long failedCount;
+        public final long timedOutCount;
+        public final long droppedCount;
+        public final long cancelledCount;
+        public final double averageMillis;
+        public final double maxMillis;
+        public final double averageWaitMillis;
+
+        StageStats(String name, int queueDepth, long processedCount, long failedCount,
+                   long timedOutCount, long droppedCount, long cancelledCount,
+                   double averageMillis, double maxMillis, double averageWaitMillis) {
+            this.name = name;
+            this.queueDepth = queueDepth;
+            this.processedCount = processedCount;
+            this.failedCount = failedCount;
+            this.timedOutCount = timedOutCount;
+            this.droppedCount = droppedCount;
+            this.cancelledCount = cancelledCount;
+            this.averageMillis = averageMillis;
+            this.maxMillis = maxMillis;
+            this.averageWaitMillis = averageWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[queued=%d, processed=%d, failed=%d, timedOut=%d, dropped=%d, "
+                            + "cancelled=%d, avg=%.1fms, max=%.1fms, avgWait=%.1fms]", name,
+                    queueDepth, processedCount, failedCount, timedOutCount, droppedCount,
+                    cancelledCount, averageMillis, maxMillis, averageWaitMillis);
+        }
+    }
+
+    private void finish(T job, Outcome outcome, String stage, Exception error) {
+        if (mListener != null) {
+            mListener.onFinished(job, outcome, stage, error);
+        }
+    }
+
+    private class StageRunner {
+        final String mName;
+        final int mIndex;
+        final long mTimeoutMillis;
+        final Stage<T> mStage;
+        final ThreadPoolExecutor mExecutor;
+
+        long mProcessedCount;
+        long mFailedCount;
+        long mTimedOutCount;
+        long mDroppedCount;
+        long mCancelledCount;
+        long mTotalNanos;
+        long mMaxNanos;
+        long mWaitCount;
+        long mTotalWaitNanos;
+
+        StageRunner(String name, int index, int threads, int queueCapacity, long timeoutMillis,
+                    Stage<T> stage) {
+            mName = name;
+            mIndex = index;
+            mTimeoutMillis = timeoutMillis;
+            mStage = stage;
+            mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), new NamedThreadFactory(name),
+                    new RejectedExecutionHandler() {
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public void rejectedExecution(Runnable runnable,
+                                                      ThreadPoolExecutor executor) {
+                            if (executor.isShutdown()) {
+                                drop(((StageTask) runnable).mJob);
+                                return;
+                            }
+                            StageTask oldest = (StageTask) executor.getQueue().poll();
+                            if (oldest != null) {
+                                drop(oldest.mJob);
+                            }
+                            // Not execute(), which would come back here if another producer
+                            // took the slot. The newer job loses that race.
+                            if (!executor.getQueue().offer(runnable)) {
+                                drop(((StageTask) runnable).mJob);
+                            }
+                        }
+                    });
+        }
+
+        void enqueue(T job) {
+            mExecutor.execute(new StageTask(this, job));
+        }
+
+        boolean isLast() {
+            return mIndex == mStages.size() - 1;
+        }
+
+        void drop(T job) {
+            synchronized (this) {
+                mDroppedCount++;
+            }
+            finish(job, Outcome.DROPPED, mName, null);
+        }
+
+        synchronized void recordWait(long nanos) {
+            mWaitCount++;
+            mTotalWaitNanos += nanos;
+        }
+
+        synchronized void recordRun(long nanos, Outcome outcome) {
+            mProcessedCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+            if (outcome == Outcome.FAILED) {
+                mFailedCount++;
+            } else if (outcome == Outcome.TIMED_OUT) {
+                mTimedOutCount++;
+            }
+        }
+
+        synchronized void recordCancelled() {
+            mCancelledCount++;
+        }
+
+        synchronized StageStats snapshot() {
+            return new StageStats(mName, mExecutor.getQueue().size(), mProcessedCount,
+                    mFailedCount, mTimedOutCount, mDroppedCount, mCancelledCount,
+                    mProcessedCount == 0 ? 0 : mTotalNanos / 1e6 / mProcessedCount,
+                    mMaxNanos / 1e6,
+                    mWaitCount == 0 ? 0 : mTotalWaitNanos / 1e6 / mWaitCount);
+        }
+    }
+
+    private class StageTask implements Runnable {
+        final StageRunner mRunner;
+        final T mJob;
+        final long mEnqueuedAt = System.nanoTime();
+
+        // Guards the race between the stage finishing and its timeout cancelling it.
+        private boolean mFinished;
+        private boolean mTimedOut;
+
+        StageTask(StageRunner runner, T job) {
+            mRunner = runner;
+            mJob = job;
+        }
+
+        @Override
+        public void run() {
+            mRunner.recordWait(System.nanoTime() - mEnqueuedAt);
+            if (mCancellation != null && mCancellation.isCancelled(mJob)) {
+                mRunner.recordCancelled();
+                finish(mJob, Outcome.CANCELLED, mRunner.mName, null);
+                return;
+            }
+
+            final Thread worker = Thread.currentThread();
+            ScheduledFuture<?> timeout = null;
+            if (mRunner.mTimeoutMillis > 0) {
+                timeout = mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (StageTask.this) {
+                            if (mFinished) {
+                                return;
+                            }
+                            mTimedOut = true;
+                            worker.interrupt();
+                            if (mRunner.mStage instanceof CancellableStage) {
+                                ((CancellableStage<T>) mRunner.mStage).cancel(mJob);
+                            }
+                        }
+                    }
+                }, mRunner.mTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+
+            long start = System.nanoTime();
+            boolean proceed = false;
+            Exception error = null;
+            try {
+                proceed = mRunner.mStage.process(mJob);
+            } catch (Exception e) {
+                error = e;
+            }
+            boolean timedOut;
+            synchronized (this) {
+                mFinished = true;
+                timedOut = mTimedOut;
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (timedOut) {
+                // Don't let the interrupt leak into the next job on this thread.
+                Thread.interrupted();
+            }
+
+            Outcome outcome;
+            if (timedOut && error != null) {
+                // Failed because it was cancelled. One that returned just as the timeout fired
+                // keeps its result.
+                outcome = Outcome.TIMED_OUT;
+            } else if (error != null) {
+                outcome = Outcome.FAILED;
+            } else if (!proceed) {
+                outcome = Outcome.STOPPED;
+            } else if (mRunner.isLast()) {
+                outcome = Outcome.COMPLETED;
+            } else {
+                outcome = null;
+            }
+            mRunner.recordRun(System.nanoTime() - start, outcome);
+            if (outcome == null) {
+                mStages.get(mRunner.mIndex + 1).enqueue(mJob);
+            } else {
+                finish(mJob, outcome, mRunner.mName, error);
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
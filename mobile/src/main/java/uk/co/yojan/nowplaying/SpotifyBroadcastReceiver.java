@@ -6,6 +6,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import java.util.UUID;
+
 public class SpotifyBroadcastReceiver extends BroadcastReceiver {
     public SpotifyBroadcastReceiver() {
     }
@@ -13,7 +15,16 @@ public class SpotifyBroadcastReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.d("SpotifyReceiver", intent.getAction());
-        if(BroadcastTypes.METADATA_CHANGED.equals(intent.getAction())) {
+        String action = intent.getAction();
+        if (BroadcastTypes.METADATA_CHANGED.equals(action)
+                || BroadcastTypes.PLAYBACK_STATE_CHANGED.equals(action)
+                || BroadcastTypes.QUEUE_CHANGED.equals(action)) {
+            if (BroadcastTypes.METADATA_CHANGED.equals(action)) {
+                // Start the latency trace as early as we can.
+                intent.putExtra(AlbumArtService.EXTRA_TRACE_ID,
+                        UUID.randomUUID().getMostSignificantBits());
+                intent.putExtra(AlbumArtService.EXTRA_TRACE_START, System.currentTimeMillis());
+            }
             // make the intent explicit
             intent.setComponent(new ComponentName(context, AlbumArtService.class));
             context.startService(intent);
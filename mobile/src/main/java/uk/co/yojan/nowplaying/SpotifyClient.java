@@ -0,0 +1,282 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import kaaes.spotify.webapi.android.SpotifyService;
+import kaaes.spotify.webapi.android.models.Track;
+import retrofit.RetrofitError;
+import retrofit.client.Header;
+import retrofit.client.Response;
+
+/**
+ * Calls the Spotify web api for the track lookups of the pipeline and prefetcher, spending as
+ * few requests as possible and backing off when Spotify asks us to.
+ *
+ * - Concurrent lookups of the same track share one request.
+ * - Requests are rate limited by a token bucket, and speculative lookups leave a reserve of
+ * tokens for the current track.
+ * - A 429 stops every request until its Retry-After has passed. Lookups for the current track
+ * then retry, as they do after server and network errors, with a jittered exponential backoff
+ * that never retries before Retry-After. Speculative lookups fail straight away instead of
+ * waiting, and a lookup for the current track that joins a speculative one makes it current.
+ */
+public class SpotifyClient {
+
+    public enum Priority { CURRENT, SPECULATIVE }
+
+    /**
+     * Thrown in place of a speculative lookup that would have had to wait for the rate limit.
+     */
+    public static class RateLimitedException extends RuntimeException {
+        public RateLimitedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Waits out backoffs and the rate limit, so that retries can be tested without sleeping.
+     */
+    public interface Sleeper {
+        Sleeper SYSTEM = new Sleeper() {
+            @Override
+            public void sleep(long millis) throws InterruptedException {
+                Thread.sleep(millis);
+            }
+        };
+
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long MAX_BACKOFF_MS = 30 * 1000;
+    // Retries wait up to this much longer than they have to, so clients do not retry in step.
+    private static final double JITTER = 0.25;
+
+    /**
+     * One request to the web api, shared by every lookup of its track while it is in flight.
+     */
+    private static class Flight {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean current;
+        Track track;
+        // Whatever the request ended with instead, including the leader being interrupted.
+        Throwable error;
+    }
+
+    private final SpotifyService mSpotifyService;
+    private final TokenBucket mBucket;
+    private final int mSpeculativeReserve;
+    private final int mMaxAttempts;
+    private final long mBaseBackoffMillis;
+    private final Clock mClock;
+    private final Sleeper mSleeper;
+    private final Random mRandom = new Random();
+
+    private final Map<String, Flight> mFlights = new HashMap<>();
+    private long mBlockedUntil;
+
+    private long mLookupCount;
+    private long mMergedCount;
+    private long mRequestCount;
+    private long mTooManyRequestsCount;
+    private long mRetryCount;
+    private long mThrottledCount;
+    private long mRejectedCount;
+
+    public SpotifyClient(SpotifyService spotifyService, TokenBucket bucket, int speculativeReserve,
+                         int maxAttempts, long baseBackoffMillis, Clock clock, Sleeper sleeper) {
+        mSpotifyService = spotifyService;
+        mBucket = bucket;
+        mSpeculativeReserve = speculativeReserve;
+        mMaxAttempts = maxAttempts;
+        mBaseBackoffMillis = baseBackoffMillis;
+        mClock = clock;
+        mSleeper = sleeper;
+    }
+
+    /**
+     * Returns the track, sharing the request with any lookup of the same track in flight.
+     * Blocks on the network and, for the current track, on the rate limit.
+     *
+     * @throws RetrofitError if the request fails for good
+     * @throws RateLimitedException if a speculative lookup would have had to wait
+     */
+    public Track getTrack(String trackId, Priority priority) throws InterruptedException {
+        synchronized (this) {
+            mLookupCount++;
+        }
+        while (true) {
+            Flight flight;
+            boolean leader = false;
+            synchronized (this) {
+                flight = mFlights.get(trackId);
+                if (flight == null) {
+                    flight = new Flight();
+                    mFlights.put(trackId, flight);
+                    leader = true;
+                } else {
+                    mMergedCount++;
+                }
+            }
+            if (priority == Priority.CURRENT) {
+                flight.current = true;
+            }
+
+            if (leader) {
+                try {
+                    flight.track = fetch(trackId, flight);
+                    return flight.track;
+                } catch (Throwable t) {
+                    flight.error = t;
+                    throw t;
+                } finally {
+                    synchronized (this) {
+                        mFlights.remove(trackId);
+                    }
+                    flight.done.countDown();
+                }
+            }
+
+            flight.done.await();
+            Throwable error = flight.error;
+            if (error == null) {
+                return flight.track;
+            }
+            if (error instanceof InterruptedException) {
+                // The leader's thread was interrupted, not ours, so look the track up ourselves.
+                continue;
+            }
+            if (error instanceof RateLimitedException && priority == Priority.CURRENT) {
+                // Joined a speculative lookup just as it gave way, so look the track up ourselves.
+                continue;
+            }
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            throw (RuntimeException) error;
+        }
+    }
+
+    private Track fetch(String trackId, Flight flight) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            acquire(flight);
+            try {
+                synchronized (this) {
+                    mRequestCount++;
+                }
+                return mSpotifyService.getTrack(trackId);
+            } catch (RetrofitError e) {
+                Response response = e.getResponse();
+                int status = e.getKind() == RetrofitError.Kind.HTTP && response != null
+                        ? response.getStatus() : 0;
+                long retryAfter = 0;
+                if (status == TOO_MANY_REQUESTS) {
+                    retryAfter = retryAfterMillis(response);
+                    synchronized (this) {
+                        mTooManyRequestsCount++;
+                        mBlockedUntil = Math.max(mBlockedUntil, mClock.now() + retryAfter);
+                    }
+                }
+                boolean retryable = status == TOO_MANY_REQUESTS || status >= 500
+                        || e.getKind() == RetrofitError.Kind.NETWORK;
+                if (!retryable || !flight.current || attempt >= mMaxAttempts) {
+                    throw e;
+                }
+                synchronized (this) {
+                    mRetryCount++;
+                }
+                mSleeper.sleep(backoffMillis(attempt, retryAfter));
+            }
+        }
+    }
+
+    /**
+     * Waits for Retry-After to pass and for a token, or gives way if the lookup is speculative.
+     */
+    private void acquire(Flight flight) throws InterruptedException {
+        boolean throttled = false;
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = mBlockedUntil - mClock.now();
+            }
+            int reserve = flight.current ? 0 : mSpeculativeReserve;
+            if (wait <= 0) {
+                if (mBucket.tryAcquire(reserve)) {
+                    return;
+                }
+                wait = Math.max(1, mBucket.millisUntilAvailable(reserve));
+            }
+            if (!flight.current) {
+                synchronized (this) {
+                    mRejectedCount++;
+                }
+                throw new RateLimitedException("Rate limited for another " + wait + "ms");
+            }
+            if (!throttled) {
+                throttled = true;
+                synchronized (this) {
+                    mThrottledCount++;
+                }
+            }
+            mSleeper.sleep(wait);
+        }
+    }
+
+    private long backoffMillis(int attempt, long retryAfterMillis) {
+        long backoff = Math.min(MAX_BACKOFF_MS, mBaseBackoffMillis << Math.min(attempt - 1, 16));
+        long wait = Math.max(backoff, retryAfterMillis);
+        double jitter;
+        synchronized (mRandom) {
+            jitter = mRandom.nextDouble() * JITTER;
+        }
+        return wait + (long) (wait * jitter);
+    }
+
+    /**
+     * Returns the wait the response asks for, 0 if it does not say.
+     */
+    static long retryAfterMillis(Response response) {
+        if (response.getHeaders() == null) {
+            return 0;
+        }
+        for (Header header : response.getHeaders()) {
+            if ("Retry-After".equalsIgnoreCase(header.getName()) && header.getValue() != null) {
+                try {
+                    return Math.max(0, Long.parseLong(header.getValue().trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    // An HTTP date, which Spotify does not send, so fall back on the backoff.
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    public synchronized long requestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long mergedCount() {
+        return mMergedCount;
+    }
+
+    public synchronized long tooManyRequestsCount() {
+        return mTooManyRequestsCount;
+    }
+
+    public synchronized long rejectedCount() {
+        return mRejectedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SpotifyClient[lookups=%d, merged=%d, requests=%d, 429s=%d, "
+                        + "retries=%d, throttled=%d, rejected=%d, %s]", mLookupCount,
+                mMergedCount, mRequestCount, mTooManyRequestsCount, mRetryCount, mThrottledCount,
+                mRejectedCount, mBucket);
+    }
+}
@@ -0,0 +1,159 @@
+package uk.co.yojan.nowplaying;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Learns which tracks tend to follow which from the listening history, so that art for the
+ * likely next tracks can be fetched ahead of time. Spotify's queue changed broadcast does not
+ * say what is queued, so this is the best predictor available on the phone.
+ *
+ * Both the number of tracks remembered and the successors kept per track are bounded, and the
+ * model is persisted so that it survives process death.
+ */
+public class TrackSuccessorModel {
+
+    private static final char SEPARATOR = '\t';
+    private static final String LAST_TRACK = "#last";
+
+    private final File mFile;
+    private final int mMaxSuccessors;
+
+    // track id -> (successor track id -> times it followed), least recently played first.
+    private final LinkedHashMap<String, Map<String, Integer>> mSuccessors;
+    private String mLastTrackId;
+
+    public TrackSuccessorModel(File file, final int maxTracks, int maxSuccessors) {
+        mFile = file;
+        mMaxSuccessors = maxSuccessors;
+        mSuccessors = new LinkedHashMap<String, Map<String, Integer>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Integer>> eldest) {
+                return size() > maxTracks;
+            }
+        };
+        read();
+    }
+
+    /**
+     * Records that the track started playing after the previously recorded one.
+     */
+    public synchronized void recordPlay(String trackId) {
+        if (trackId == null || trackId.equals(mLastTrackId)) {
+            return;
+        }
+        if (mLastTrackId != null) {
+            Map<String, Integer> successors = mSuccessors.get(mLastTrackId);
+            if (successors == null) {
+                successors = new HashMap<>();
+                mSuccessors.put(mLastTrackId, successors);
+            }
+            Integer count = successors.get(trackId);
+            successors.put(trackId, count == null ? 1 : count + 1);
+            if (successors.size() > mMaxSuccessors) {
+                successors.remove(leastFrequent(successors, trackId));
+            }
+        }
+        mLastTrackId = trackId;
+        write();
+    }
+
+    /**
+     * Returns up to n tracks likely to follow the given one, most likely first.
+     */
+    public synchronized List<String> predictNext(String trackId, int n) {
+        Map<String, Integer> successors = trackId == null ? null : mSuccessors.get(trackId);
+        if (successors == null || n <= 0) {
+            return Collections.emptyList();
+        }
+        final Map<String, Integer> counts = successors;
+        List<String> predictions = new ArrayList<>(counts.keySet());
+        Collections.sort(predictions, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return counts.get(rhs) - counts.get(lhs);
+            }
+        });
+        return predictions.size() > n ? new ArrayList<>(predictions.subList(0, n)) : predictions;
+    }
+
+    public synchronized String lastTrackId() {
+        return mLastTrackId;
+    }
+
+    private static String leastFrequent(Map<String, Integer> successors, String keep) {
+        String least = null;
+        for (Map.Entry<String, Integer> entry : successors.entrySet()) {
+            if (!entry.getKey().equals(keep)
+                    && (least == null || entry.getValue() < successors.get(least))) {
+                least = entry.getKey();
+            }
+        }
+        return least;
+    }
+
+    private void read() {
+        if (mFile == null || !mFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(mFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(String.valueOf(SEPARATOR));
+                if (fields.length == 2 && LAST_TRACK.equals(fields[0])) {
+                    mLastTrackId = fields[1];
+                } else if (fields.length == 3) {
+                    Map<String, Integer> successors = mSuccessors.get(fields[0]);
+                    if (successors == null) {
+                        successors = new HashMap<>();
+                        mSuccessors.put(fields[0], successors);
+                    }
+                    try {
+                        successors.put(fields[1], Integer.parseInt(fields[2]));
+                    } catch (NumberFormatException e) {
+                        // Skip the corrupt line.
+                    }
+                }
+            }
+        } catch (IOException e) {
+            mSuccessors.clear();
+        }
+    }
+
+    private void write() {
+        if (mFile == null) {
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            if (mLastTrackId != null) {
+                writer.append(LAST_TRACK).append(SEPARATOR).append(mLastTrackId).append('\n');
+            }
+            for (Map.Entry<String, Map<String, Integer>> track : mSuccessors.entrySet()) {
+                for (Map.Entry<String, Integer> successor : track.getValue().entrySet()) {
+                    writer.append(track.getKey()).append(SEPARATOR)
+                            .append(successor.getKey()).append(SEPARATOR)
+                            .append(Integer.toString(successor.getValue()))
+                            .append('\n');
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package uk.co.yojan.nowplaying;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.WearableListenerService;
+
+import java.nio.charset.Charset;
+
+/**
+ * Receives the data items and messages sent by the watch face.
+ */
+public class WatchDataListenerService extends WearableListenerService {
+
+    private static final String TAG = "WatchDataListener";
+    private static final String PREFS_NAME = "watch_display";
+
+    @Override
+    public void onDataChanged(DataEventBuffer dataEvents) {
+        for (DataEvent event : dataEvents) {
+            if (event.getType() == DataEvent.TYPE_CHANGED
+                    && WatchDisplay.PATH.equals(event.getDataItem().getUri().getPath())) {
+                DataMap dataMap = DataMapItem.fromDataItem(event.getDataItem()).getDataMap();
+                WatchDisplay display = new WatchDisplay(
+                        dataMap.getInt(WatchDisplay.KEY_WIDTH),
+                        dataMap.getInt(WatchDisplay.KEY_HEIGHT),
+                        dataMap.getBoolean(WatchDisplay.KEY_ROUND),
+                        dataMap.getInt(WatchDisplay.KEY_CHIN_HEIGHT),
+                        dataMap.getInt(WatchDisplay.KEY_DENSITY_DPI),
+                        dataMap.getBoolean(WatchDisplay.KEY_LOW_BIT_AMBIENT),
+                        dataMap.getBoolean(WatchDisplay.KEY_BURN_IN_PROTECTION));
+                Log.d(TAG, "Watch display changed: " + display);
+                saveWatchDisplay(this, display);
+            }
+        }
+    }
+
+    @Override
+    public void onMessageReceived(MessageEvent messageEvent) {
+        if (AlbumArtItem.REQUEST_PATH.equals(messageEvent.getPath())) {
+            String cacheKey = new String(messageEvent.getData(), Charset.forName("UTF-8"));
+            Log.d(TAG, "Watch is missing album art " + cacheKey);
+            Intent intent = new Intent(this, AlbumArtService.class)
+                    .setAction(AlbumArtService.ACTION_SEND_ART)
+                    .putExtra(AlbumArtService.EXTRA_CACHE_KEY, cacheKey);
+            startService(intent);
+        }
+    }
+
+    /**
+     * Returns the last display published by the watch face, or {@link WatchDisplay#DEFAULT}.
+     */
+    public static WatchDisplay loadWatchDisplay(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        WatchDisplay display = new WatchDisplay(
+                prefs.getInt(WatchDisplay.KEY_WIDTH, 0),
+                prefs.getInt(WatchDisplay.KEY_HEIGHT, 0),
+                prefs.getBoolean(WatchDisplay.KEY_ROUND, false),
+                prefs.getInt(WatchDisplay.KEY_CHIN_HEIGHT, 0),
+                prefs.getInt(WatchDisplay.KEY_DENSITY_DPI, 0),
+                prefs.getBoolean(WatchDisplay.KEY_LOW_BIT_AMBIENT, false),
+                prefs.getBoolean(WatchDisplay.KEY_BURN_IN_PROTECTION, false));
+        return display.isValid() ? display : WatchDisplay.DEFAULT;
+    }
+
+    private static void saveWatchDisplay(Context context, WatchDisplay display) {
+        if (!display.isValid()) {
+            return;
+        }
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(WatchDisplay.KEY_WIDTH, display.width)
+                .putInt(WatchDisplay.KEY_HEIGHT, display.height)
+                .putBoolean(WatchDisplay.KEY_ROUND, display.round)
+                .putInt(WatchDisplay.KEY_CHIN_HEIGHT, display.chinHeight)
+                .putInt(WatchDisplay.KEY_DENSITY_DPI, display.densityDpi)
+                .putBoolean(WatchDisplay.KEY_LOW_BIT_AMBIENT, display.lowBitAmbient)
+                .putBoolean(WatchDisplay.KEY_BURN_IN_PROTECTION, display.burnInProtection)
+                .apply();
+    }
+}
@@ -0,0 +1,154 @@
+package uk.co.yojan.nowplaying;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process wide {@link SharedConnection} to the wearable data layer. The service and the
+ * outbox hold references to it, rather than each service instance connecting its own client.
+ * Retries and lingering disconnects run on the main thread.
+ *
+ * The watch has its own copy of this wrapper, as core is plain Java and cannot hold a
+ * GoogleApiClient. The two differ in how long they linger, which here spans the gap between
+ * tracks, and only the watch waits on api results. The reference counting, retries and
+ * accounting they share are all in {@link SharedConnection}.
+ */
+public class WearableConnection {
+
+    private static final String TAG = "WearableConnection";
+
+    // Longer than a track, so that the service starting for the next one finds it connected.
+    private static final long LINGER_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long RETRY_MIN_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long RETRY_MAX_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static WearableConnection sInstance;
+
+    private final GoogleApiClient mClient;
+    private final SharedConnection mConnection;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            mConnection.connect();
+        }
+    };
+
+    private final Runnable mDisconnectIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnection.disconnectIfIdle()) {
+                Log.d(TAG, "Disconnected, " + mConnection);
+            }
+        }
+    };
+
+    public static synchronized WearableConnection get(Context context) {
+        if (sInstance == null) {
+            sInstance = new WearableConnection(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WearableConnection(Context context) {
+        mClient = new GoogleApiClient.Builder(context)
+                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+                    @Override
+                    public void onConnected(Bundle connectionHint) {
+                        mHandler.removeCallbacks(mRetry);
+                        mConnection.onConnected();
+                    }
+
+                    @Override
+                    public void onConnectionSuspended(int cause) {
+                        // The client reconnects by itself.
+                        Log.d(TAG, "onConnectionSuspended: " + cause);
+                        mConnection.onConnectionSuspended();
+                    }
+                })
+                .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
+                    @Override
+                    public void onConnectionFailed(ConnectionResult result) {
+                        Log.d(TAG, "onConnectionFailed: " + result);
+                        long delay = mConnection.onConnectionFailed();
+                        if (delay >= 0) {
+                            mHandler.postDelayed(mRetry, delay);
+                        }
+                    }
+                })
+                // Request access only to the Wearable API
+                .addApi(Wearable.API)
+                .build();
+        mConnection = new SharedConnection(new SharedConnection.Client() {
+            @Override
+            public boolean isConnected() {
+                return mClient.isConnected();
+            }
+
+            @Override
+            public boolean isConnecting() {
+                return mClient.isConnecting();
+            }
+
+            @Override
+            public void connect() {
+                mClient.connect();
+            }
+
+            @Override
+            public void disconnect() {
+                mClient.disconnect();
+            }
+        }, LINGER_MS, RETRY_MIN_MS, RETRY_MAX_MS, Clock.SYSTEM);
+    }
+
+    /**
+     * Returns the client, for api calls made while connected.
+     */
+    public GoogleApiClient client() {
+        return mClient;
+    }
+
+    public void acquire() {
+        mHandler.removeCallbacks(mDisconnectIfIdle);
+        mConnection.acquire();
+    }
+
+    public void release() {
+        long linger = mConnection.release();
+        if (linger >= 0) {
+            mHandler.removeCallbacks(mDisconnectIfIdle);
+            mHandler.postDelayed(mDisconnectIfIdle, linger);
+        }
+    }
+
+    public boolean isConnected() {
+        return mConnection.isConnected();
+    }
+
+    /**
+     * Starts connecting if referenced and not already, without blocking.
+     */
+    public void connect() {
+        mConnection.connect();
+    }
+
+    public void addListener(SharedConnection.Listener listener) {
+        mConnection.addListener(listener);
+    }
+
+    @Override
+    public String toString() {
+        return mConnection.toString();
+    }
+}
@@ -0,0 +1,161 @@
+package uk.co.yojan.nowplaying;
+
+import android.net.Uri;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link AlbumArtSyncStore.DataLayer} backed by the wearable data api. Calls are dropped while
+ * there is no connected client.
+ */
+public class WearableDataLayer implements AlbumArtSyncStore.DataLayer {
+
+    private static final long PATHS_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private volatile GoogleApiClient mGoogleApiClient;
+    // The watch orders art and placeholders by this, so no two items share a stamp.
+    private final AtomicLong mLastSentAt = new AtomicLong();
+
+    /**
+     * Sets the client to use, as the store outlives the service instances that connect them.
+     */
+    public void setClient(GoogleApiClient googleApiClient) {
+        mGoogleApiClient = googleApiClient;
+    }
+
+    @Override
+    public boolean put(String path, ArtSyncItem item) {
+        GoogleApiClient client = mGoogleApiClient;
+        if (client == null || !client.isConnected()) {
+            return false;
+        }
+        PutDataMapRequest request = PutDataMapRequest.create(path);
+        DataMap dataMap = request.getDataMap();
+        dataMap.putString(AlbumArtItem.KEY_CACHE_KEY, item.cacheKey);
+        dataMap.putString(AlbumArtItem.KEY_ALBUM_ART_HASH, item.albumArtHash);
+        dataMap.putString(AlbumArtItem.KEY_AMBIENT_ALBUM_ART_HASH, item.ambientAlbumArtHash);
+        dataMap.putLong(AlbumArtItem.KEY_SENT_AT, nextSentAt());
+        if (item.traceId != 0) {
+            dataMap.putLong(AlbumArtItem.KEY_TRACE_ID, item.traceId);
+            dataMap.putLong(AlbumArtItem.KEY_TRACE_START, item.traceStartMillis);
+        }
+        if (!item.isReference()) {
+            dataMap.putAsset(AlbumArtItem.KEY_ALBUM_ART, Asset.createFromBytes(item.albumArt));
+            dataMap.putAsset(AlbumArtItem.KEY_AMBIENT_ALBUM_ART,
+                    Asset.createFromBytes(item.ambientAlbumArt));
+        }
+        PutDataRequest putRequest = request.asPutDataRequest();
+        Wearable.DataApi.putDataItem(client, item.urgent ? putRequest.setUrgent() : putRequest);
+        return true;
+    }
+
+    /**
+     * Urgently replaces the placeholder shown until the art for the cache key arrives.
+     */
+    public void putPlaceholder(String cacheKey, ArtPlaceholder placeholder, long traceStartMillis) {
+        GoogleApiClient client = mGoogleApiClient;
+        if (client == null || !client.isConnected()) {
+            return;
+        }
+        PutDataMapRequest request = PutDataMapRequest.create(AlbumArtItem.PLACEHOLDER_PATH);
+        DataMap dataMap = request.getDataMap();
+        dataMap.putString(AlbumArtItem.KEY_CACHE_KEY, cacheKey);
+        dataMap.putInt(AlbumArtItem.KEY_COLOR, placeholder.color);
+        dataMap.putInt(AlbumArtItem.KEY_THUMBNAIL_WIDTH, placeholder.width);
+        dataMap.putInt(AlbumArtItem.KEY_THUMBNAIL_HEIGHT, placeholder.height);
+        dataMap.putByteArray(AlbumArtItem.KEY_THUMBNAIL, placeholder.thumbnail);
+        dataMap.putLong(AlbumArtItem.KEY_SENT_AT, nextSentAt());
+        if (traceStartMillis != 0) {
+            dataMap.putLong(AlbumArtItem.KEY_TRACE_START, traceStartMillis);
+        }
+        Wearable.DataApi.putDataItem(client, request.asPutDataRequest().setUrgent());
+    }
+
+    /**
+     * Replaces the playback state on the watch, urgently if it went from playing to paused or
+     * back.
+     */
+    public void putPlayback(PlaybackState state, boolean urgent) {
+        GoogleApiClient client = mGoogleApiClient;
+        if (client == null || !client.isConnected()) {
+            return;
+        }
+        PutDataMapRequest request = PutDataMapRequest.create(PlaybackState.PATH);
+        DataMap dataMap = request.getDataMap();
+        dataMap.putBoolean(PlaybackState.KEY_PLAYING, state.playing);
+        dataMap.putLong(PlaybackState.KEY_POSITION, state.positionMillis);
+        dataMap.putLong(PlaybackState.KEY_UPDATED_AT, state.updatedAtMillis);
+        PutDataRequest putRequest = request.asPutDataRequest();
+        Wearable.DataApi.putDataItem(client, urgent ? putRequest.setUrgent() : putRequest);
+    }
+
+    /**
+     * Returns the current time, or one past the last stamp if the clock has not moved on or has
+     * gone back.
+     */
+    private long nextSentAt() {
+        while (true) {
+            long last = mLastSentAt.get();
+            long sentAt = Math.max(System.currentTimeMillis(), last + 1);
+            if (mLastSentAt.compareAndSet(last, sentAt)) {
+                return sentAt;
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return delete(path, DataApi.FILTER_LITERAL);
+    }
+
+    /**
+     * Blocks until the data api answers, so must not be called on the main thread.
+     */
+    @Override
+    public List<String> paths(String pathPrefix) {
+        GoogleApiClient client = mGoogleApiClient;
+        if (client == null || !client.isConnected()) {
+            return null;
+        }
+        DataItemBuffer items = Wearable.DataApi.getDataItems(client, uri(pathPrefix),
+                DataApi.FILTER_PREFIX).await(PATHS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        try {
+            if (!items.getStatus().isSuccess()) {
+                return null;
+            }
+            List<String> paths = new ArrayList<>();
+            for (DataItem item : items) {
+                paths.add(item.getUri().getPath());
+            }
+            return paths;
+        } finally {
+            items.release();
+        }
+    }
+
+    private boolean delete(String path, int filterType) {
+        GoogleApiClient client = mGoogleApiClient;
+        if (client == null || !client.isConnected()) {
+            return false;
+        }
+        Wearable.DataApi.deleteDataItems(client, uri(path), filterType);
+        return true;
+    }
+
+    private static Uri uri(String path) {
+        return new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME).path(path).build();
+    }
+}
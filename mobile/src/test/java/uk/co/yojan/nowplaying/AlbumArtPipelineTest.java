@@ -0,0 +1,193 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AlbumArtPipelineTest {
+
+    private static final WatchDisplay DISPLAY = new WatchDisplay(64, 64, false, 0, 213, false,
+            false);
+
+    private File mDir;
+    private FakeSpotifyServer mSpotify;
+    private FakeDataLayer mDataLayer;
+    private AlbumMetadataResolver mResolver;
+    private ArtSyncOutbox mOutbox;
+    private final ExecutorService mPrefetchExecutor = Executors.newSingleThreadExecutor();
+    private AlbumArtPipeline<BufferedImage> mPipeline;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("pipeline", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mSpotify = new FakeSpotifyServer();
+        mSpotify.setAlbum("t1", "a1");
+        mSpotify.setAlbum("t2", "a2");
+        mDataLayer = new FakeDataLayer();
+        SpotifyClient spotifyClient = new SpotifyClient(mSpotify.spotifyService(),
+                new TokenBucket(10, 10, Clock.SYSTEM), 0, 1, 0, Clock.SYSTEM,
+                SpotifyClient.Sleeper.SYSTEM);
+        mResolver = new AlbumMetadataResolver(spotifyClient, new File(mDir, "album_index"),
+                DISPLAY.maxDimension(), 8, 8, TimeUnit.DAYS.toMillis(1), Clock.SYSTEM);
+        mOutbox = new ArtSyncOutbox(new File(mDir, "art_outbox"), mDataLayer,
+                new AlbumArtSyncStore(mDataLayer, 2, 1024 * 1024), Clock.SYSTEM);
+        mPipeline = newPipeline(10);
+    }
+
+    private AlbumArtPipeline<BufferedImage> newPipeline(long quietWindowMs) {
+        AlbumArtPipeline<BufferedImage> pipeline = new AlbumArtPipeline<>(
+                new JvmArtPlatform(DISPLAY, mDataLayer, true),
+                new TrackCoalescer(quietWindowMs, Clock.SYSTEM), mResolver,
+                new AlbumArtDiskCache(new File(mDir, "albumart"), 1024 * 1024),
+                new TrackSuccessorModel(new File(mDir, "track_successors"), 8, 2), mOutbox,
+                mPrefetchExecutor, Clock.SYSTEM);
+        pipeline.updatePlaybackState(new PlaybackState(true, 0, System.currentTimeMillis()));
+        return pipeline;
+    }
+
+    @After
+    public void tearDown() {
+        mPipeline.shutdown();
+        mPrefetchExecutor.shutdownNow();
+        mSpotify.stop();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void resendOfEarlierTrackIsDropped() throws InterruptedException {
+        play("t1");
+        play("t2");
+        long puts = mDataLayer.putCount();
+
+        resend(DISPLAY.cacheKey("a1"));
+
+        assertEquals(puts, mDataLayer.putCount());
+        assertEquals(DISPLAY.cacheKey("a2"), mDataLayer.lastCacheKey());
+    }
+
+    @Test
+    public void resendOfCurrentTrackIsSent() throws InterruptedException {
+        play("t1");
+        long puts = mDataLayer.putCount();
+
+        resend(DISPLAY.cacheKey("a1"));
+
+        assertEquals(puts + 1, mDataLayer.putCount());
+        assertEquals(DISPLAY.cacheKey("a1"), mDataLayer.lastCacheKey());
+    }
+
+    @Test
+    public void resendWhileDisconnectedNeverReplacesLaterArt() throws InterruptedException {
+        play("t1");
+        mDataLayer.setConnected(false);
+        play("t2");
+
+        resend(DISPLAY.cacheKey("a1"));
+        mDataLayer.setConnected(true);
+        mOutbox.flush();
+
+        assertEquals(DISPLAY.cacheKey("a2"), mDataLayer.lastCacheKey());
+    }
+
+    @Test
+    public void sendsArtTheWatchHasByReference() throws InterruptedException {
+        play("t1");
+        play("t2");
+        long syncedBytes = mDataLayer.syncedBytes();
+
+        play("t1");
+
+        assertEquals(syncedBytes, mDataLayer.syncedBytes());
+        assertEquals(DISPLAY.cacheKey("a1"), mDataLayer.lastCacheKey());
+        assertEquals(0, mDataLayer.missCount());
+    }
+
+    @Test
+    public void sendsCachedArtThatNeverReachedTheWatchInFull() throws InterruptedException {
+        mDataLayer.setConnected(false);
+        play("t1");
+        play("t2");
+        mDataLayer.setConnected(true);
+        mOutbox.flush();
+
+        // Cached, but superseded while waiting to sync.
+        play("t1");
+
+        assertEquals(DISPLAY.cacheKey("a1"), mDataLayer.lastCacheKey());
+        assertEquals(0, mDataLayer.missCount());
+    }
+
+    @Test
+    public void resendDoesNotWaitForTheQuietWindow() throws InterruptedException {
+        mPipeline.shutdown();
+        mPipeline = newPipeline(TimeUnit.SECONDS.toMillis(30));
+        CountDownLatch track = new CountDownLatch(1);
+        assertTrue(mPipeline.submitTrack("t1", 0, System.currentTimeMillis(), countDown(track)));
+
+        long start = System.nanoTime();
+        resend(DISPLAY.cacheKey("a1"));
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, track.getCount());
+    }
+
+    @Test
+    public void burstOfSkipsAbortsStaleDownloads() throws InterruptedException {
+        // Each track is resolved while the previous track's cover is still downloading.
+        mSpotify.imageDelayMillis = 1000;
+        for (int i = 0; i < 49; i++) {
+            assertTrue(mPipeline.submitTrack("track" + i, 0, System.currentTimeMillis(),
+                    countDown(new CountDownLatch(1))));
+            Thread.sleep(60);
+        }
+        long start = System.nanoTime();
+        play("track49");
+
+        assertEquals(DISPLAY.cacheKey(mSpotify.albumOf("track49")), mDataLayer.lastCacheKey());
+        assertTrue("aborted " + mPipeline.abortedDownloadCount(),
+                mPipeline.abortedDownloadCount() >= 5);
+        // Aborted downloads gave up their threads rather than waiting out the cover.
+        assertTrue(mPipeline.stats("download").averageMillis < 500);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    private void play(String trackId) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(1);
+        assertTrue(mPipeline.submitTrack(trackId, 0, System.currentTimeMillis(),
+                countDown(finished)));
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+    }
+
+    private void resend(String cacheKey) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(1);
+        mPipeline.submitResend(cacheKey, countDown(finished));
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
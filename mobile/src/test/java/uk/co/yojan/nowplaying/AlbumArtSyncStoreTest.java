@@ -0,0 +1,179 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AlbumArtSyncStoreTest {
+
+    /** In-memory stand-in for the wearable data layer. */
+    private static class FakeDataLayer implements AlbumArtSyncStore.DataLayer {
+        final Map<String, ArtSyncItem> items = new LinkedHashMap<>();
+        int maxItems;
+        boolean connected = true;
+
+        @Override
+        public boolean put(String path, ArtSyncItem item) {
+            if (!connected) {
+                return false;
+            }
+            items.put(path, item);
+            maxItems = Math.max(maxItems, items.size());
+            return true;
+        }
+
+        @Override
+        public boolean delete(String path) {
+            if (!connected) {
+                return false;
+            }
+            items.remove(path);
+            return true;
+        }
+
+        @Override
+        public List<String> paths(String pathPrefix) {
+            if (!connected) {
+                return null;
+            }
+            List<String> paths = new ArrayList<>();
+            for (String path : items.keySet()) {
+                if (path.startsWith(pathPrefix)) {
+                    paths.add(path);
+                }
+            }
+            return paths;
+        }
+
+        long assetBytes() {
+            long total = 0;
+            for (ArtSyncItem item : items.values()) {
+                total += item.assetBytes();
+            }
+            return total;
+        }
+    }
+
+    @Test
+    public void itemCountStaysConstantOverLongSession() {
+        FakeDataLayer dataLayer = new FakeDataLayer();
+        AlbumArtSyncStore store = new AlbumArtSyncStore(dataLayer, 2, 1024 * 1024);
+
+        for (int track = 0; track < 1000; track++) {
+            byte[] art = new byte[40 * 1024];
+            byte[] ambientArt = new byte[8 * 1024];
+            art[0] = (byte) track;
+            // Every third track is an album we have seen before.
+            store.put(track % 3 == 0
+                    ? ArtSyncItem.reference("album" + track, art, ambientArt)
+                    : ArtSyncItem.full("album" + track, art, ambientArt));
+            assertEquals(Math.min(track + 1, 2), dataLayer.items.size());
+        }
+
+        assertEquals(2, dataLayer.maxItems);
+        assertEquals(2, store.itemCount());
+        assertEquals("album999", dataLayer.items.get(AlbumArtSyncStore.pathFor(1)).cacheKey);
+    }
+
+    @Test
+    public void deletesItemsLeftByEarlierVersions() {
+        FakeDataLayer dataLayer = new FakeDataLayer();
+        for (int i = 0; i < 300; i++) {
+            dataLayer.put("/albumart/legacy" + i,
+                    ArtSyncItem.full("old", new byte[10], new byte[1]));
+        }
+        dataLayer.put(WatchDisplay.PATH,
+                ArtSyncItem.reference("display", new byte[1], new byte[1]));
+
+        AlbumArtSyncStore store = new AlbumArtSyncStore(dataLayer, 2, 1024);
+        store.put(ArtSyncItem.reference("album", new byte[10], new byte[1]));
+
+        assertEquals(2, dataLayer.items.size());
+        assertTrue(dataLayer.items.containsKey(WatchDisplay.PATH));
+        assertTrue(dataLayer.items.containsKey(AlbumArtSyncStore.pathFor(0)));
+    }
+
+    @Test
+    public void newStoreKeepsTheSlotsOfTheLastOne() {
+        FakeDataLayer dataLayer = new FakeDataLayer();
+        AlbumArtSyncStore store = new AlbumArtSyncStore(dataLayer, 2, 1024);
+        store.put(ArtSyncItem.full("a", new byte[10], new byte[1]));
+        store.put(ArtSyncItem.full("b", new byte[10], new byte[1]));
+        dataLayer.put("/albumart/legacy", ArtSyncItem.full("old", new byte[10], new byte[1]));
+
+        // e.g. after the process was restarted.
+        AlbumArtSyncStore restarted = new AlbumArtSyncStore(dataLayer, 2, 1024);
+        restarted.put(ArtSyncItem.full("c", new byte[10], new byte[1]));
+
+        assertEquals("c", dataLayer.items.get(AlbumArtSyncStore.pathFor(0)).cacheKey);
+        assertEquals("b", dataLayer.items.get(AlbumArtSyncStore.pathFor(1)).cacheKey);
+        assertFalse(dataLayer.items.containsKey("/albumart/legacy"));
+        assertEquals(2, dataLayer.items.size());
+    }
+
+    @Test
+    public void deletesOldestItemsOverByteCap() {
+        FakeDataLayer dataLayer = new FakeDataLayer();
+        AlbumArtSyncStore store = new AlbumArtSyncStore(dataLayer, 3, 100);
+
+        store.put(ArtSyncItem.full("a", new byte[50], new byte[10]));
+        store.put(ArtSyncItem.reference("b", new byte[50], new byte[10]));
+        assertEquals(2, dataLayer.items.size());
+
+        // a and c together are over the cap, so a goes.
+        store.put(ArtSyncItem.full("c", new byte[50], new byte[10]));
+        assertEquals(2, dataLayer.items.size());
+        assertFalse(dataLayer.items.containsKey(AlbumArtSyncStore.pathFor(0)));
+        assertEquals(60, dataLayer.assetBytes());
+        assertEquals(60, store.totalBytes());
+    }
+
+    @Test
+    public void keepsNewestItemEvenIfOverByteCap() {
+        FakeDataLayer dataLayer = new FakeDataLayer();
+        AlbumArtSyncStore store = new AlbumArtSyncStore(dataLayer, 2, 10);
+        store.put(ArtSyncItem.full("a", new byte[50], new byte[10]));
+        assertEquals(1, dataLayer.items.size());
+        assertEquals(1, store.itemCount());
+    }
+
+    @Test
+    public void droppedPutLeavesTheSlotFree() {
+        FakeDataLayer dataLayer = new FakeDataLayer();
+        AlbumArtSyncStore store = new AlbumArtSyncStore(dataLayer, 2, 100);
+        assertTrue(store.put(ArtSyncItem.full("a", new byte[50], new byte[10])));
+
+        dataLayer.connected = false;
+        assertFalse(store.put(ArtSyncItem.full("b", new byte[50], new byte[10])));
+        assertEquals(1, store.itemCount());
+        assertEquals(60, store.totalBytes());
+
+        // The next put goes to the slot the dropped one was meant for, and a is kept.
+        dataLayer.connected = true;
+        assertTrue(store.put(ArtSyncItem.full("c", new byte[20], new byte[10])));
+        assertEquals("c", dataLayer.items.get(AlbumArtSyncStore.pathFor(1)).cacheKey);
+        assertEquals("a", dataLayer.items.get(AlbumArtSyncStore.pathFor(0)).cacheKey);
+        assertEquals(90, store.totalBytes());
+        assertEquals(dataLayer.assetBytes(), store.totalBytes());
+    }
+
+    @Test
+    public void collectsGarbageOnceConnected() {
+        FakeDataLayer dataLayer = new FakeDataLayer();
+        dataLayer.put("/albumart/legacy", ArtSyncItem.full("old", new byte[10], new byte[1]));
+        dataLayer.connected = false;
+        AlbumArtSyncStore store = new AlbumArtSyncStore(dataLayer, 2, 100);
+        assertFalse(store.put(ArtSyncItem.full("a", new byte[50], new byte[10])));
+
+        // Items of older versions are collected on the first put that gets through.
+        dataLayer.connected = true;
+        assertTrue(store.put(ArtSyncItem.full("a", new byte[50], new byte[10])));
+        assertFalse(dataLayer.items.containsKey("/albumart/legacy"));
+        assertEquals(1, dataLayer.items.size());
+    }
+}
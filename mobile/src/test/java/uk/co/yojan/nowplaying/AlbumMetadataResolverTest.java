@@ -0,0 +1,152 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.SpotifyService;
+import kaaes.spotify.webapi.android.models.AlbumSimple;
+import kaaes.spotify.webapi.android.models.Image;
+import kaaes.spotify.webapi.android.models.Track;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AlbumMetadataResolverTest {
+
+    private static final long TTL = 1000;
+
+    private SpotifyService mSpotifyService;
+    private File mIndexFile;
+    private long mNow;
+
+    private final Clock mClock = new Clock() {
+        @Override
+        public long now() {
+            return mNow;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mSpotifyService = mock(SpotifyService.class);
+        when(mSpotifyService.getTrack("track1")).thenReturn(track("album1"));
+        when(mSpotifyService.getTrack("track2")).thenReturn(track("album2"));
+        mIndexFile = File.createTempFile("album_index", "");
+        mIndexFile.delete();
+        mNow = 0;
+    }
+
+    @After
+    public void tearDown() {
+        mIndexFile.delete();
+    }
+
+    @Test
+    public void repeatLookupsSkipTheApi() throws Exception {
+        AlbumMetadataResolver resolver = newResolver();
+        for (int i = 0; i < 10; i++) {
+            AlbumMetadataResolver.AlbumInfo info =
+                    resolver.resolve("track1", SpotifyClient.Priority.CURRENT);
+            assertEquals("album1", info.albumId);
+            assertEquals("https://i.scdn.co/album1/300", info.imageUrl);
+        }
+
+        verify(mSpotifyService, times(1)).getTrack("track1");
+        assertEquals(9, resolver.memoryHitCount());
+        assertEquals(1, resolver.missCount());
+        assertEquals(0.9, resolver.hitRate(), 1e-9);
+        assertTrue(resolver.averageLookupMillis() >= 0);
+    }
+
+    @Test
+    public void persistentIndexSurvivesRestart() throws Exception {
+        newResolver().resolve("track1", SpotifyClient.Priority.CURRENT);
+
+        AlbumMetadataResolver restarted = newResolver();
+        assertEquals("album1",
+                restarted.resolve("track1", SpotifyClient.Priority.CURRENT).albumId);
+        verify(mSpotifyService, times(1)).getTrack("track1");
+        assertEquals(1, restarted.indexHitCount());
+    }
+
+    @Test
+    public void expiredEntriesGoBackToTheApi() throws Exception {
+        newResolver().resolve("track1", SpotifyClient.Priority.CURRENT);
+
+        mNow = TTL + 1;
+        AlbumMetadataResolver restarted = newResolver();
+        assertNull(restarted.lookupCached("track1"));
+        restarted.resolve("track1", SpotifyClient.Priority.CURRENT);
+        verify(mSpotifyService, times(2)).getTrack("track1");
+    }
+
+    @Test
+    public void memoryEntriesExpireToo() throws Exception {
+        AlbumMetadataResolver resolver = newResolver();
+        resolver.resolve("track1", SpotifyClient.Priority.CURRENT);
+        mNow = TTL - 1;
+        assertNotNull(resolver.lookupCached("track1"));
+
+        mNow = TTL + 1;
+        assertNull(resolver.lookupCached("track1"));
+        resolver.resolve("track1", SpotifyClient.Priority.CURRENT);
+        verify(mSpotifyService, times(2)).getTrack("track1");
+        assertEquals(1, resolver.memoryHitCount());
+    }
+
+    @Test
+    public void cachesAreBounded() throws Exception {
+        AlbumMetadataResolver resolver = new AlbumMetadataResolver(client(), null, 300, 1, 1,
+                TTL, mClock);
+        resolver.resolve("track1", SpotifyClient.Priority.CURRENT);
+        resolver.resolve("track2", SpotifyClient.Priority.CURRENT);
+        // track1 was evicted from both the memory map and the index.
+        resolver.resolve("track1", SpotifyClient.Priority.CURRENT);
+        verify(mSpotifyService, times(2)).getTrack("track1");
+    }
+
+    @Test
+    public void choosesSmallestImageAboveTarget() {
+        List<Image> images = new ArrayList<>();
+        images.add(image(640));
+        images.add(image(300));
+        images.add(image(64));
+        assertEquals(300, (int) AlbumMetadataResolver.chooseAlbumArt(images, 300).height);
+        assertEquals(640, (int) AlbumMetadataResolver.chooseAlbumArt(images, 400).height);
+        assertNull(AlbumMetadataResolver.chooseAlbumArt(new ArrayList<Image>(), 300));
+    }
+
+    private AlbumMetadataResolver newResolver() {
+        return new AlbumMetadataResolver(client(), mIndexFile, 300, 10, 10, TTL, mClock);
+    }
+
+    private SpotifyClient client() {
+        return new SpotifyClient(mSpotifyService, new TokenBucket(100, 100, mClock), 0, 1, 0,
+                mClock, SpotifyClient.Sleeper.SYSTEM);
+    }
+
+    private static Track track(String albumId) {
+        Track track = new Track();
+        track.album = new AlbumSimple();
+        track.album.id = albumId;
+        track.album.images = new ArrayList<>();
+        for (int size : new int[]{640, 300, 64}) {
+            Image image = image(size);
+            image.url = "https://i.scdn.co/" + albumId + "/" + size;
+            track.album.images.add(image);
+        }
+        return track;
+    }
+
+    private static Image image(int size) {
+        Image image = new Image();
+        image.width = size;
+        image.height = size;
+        return image;
+    }
+}
@@ -0,0 +1,108 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AmbientArtFilterTest {
+
+    private static final int SIZE = 64;
+
+    @Test
+    public void outputIsGreyAndCapped() {
+        int[] ambient = AmbientArtFilter.apply(randomArt(), SIZE, SIZE, false, false);
+        for (int pixel : ambient) {
+            int r = (pixel >> 16) & 0xff;
+            assertEquals(r, (pixel >> 8) & 0xff);
+            assertEquals(r, pixel & 0xff);
+            assertTrue(r <= AmbientArtFilter.MAX_LEVEL);
+            assertEquals(0xff, pixel >>> 24);
+        }
+    }
+
+    @Test
+    public void lowBitUsesTwoLevels() {
+        int[] ambient = AmbientArtFilter.apply(randomArt(), SIZE, SIZE, true, false);
+        for (int pixel : ambient) {
+            int level = pixel & 0xff;
+            assertTrue(level == 0 || level == AmbientArtFilter.LOW_BIT_LEVEL);
+        }
+    }
+
+    @Test
+    public void lowBitIsMostlyBlack() {
+        int[] ambient = AmbientArtFilter.apply(randomArt(), SIZE, SIZE, true, false);
+        assertTrue(AmbientArtFilter.litFraction(ambient) < 0.5);
+    }
+
+    @Test
+    public void ditherTracksBrightness() {
+        int[] white = new int[SIZE * SIZE];
+        int[] grey = new int[SIZE * SIZE];
+        for (int i = 0; i < white.length; i++) {
+            white[i] = 0xffffffff;
+            grey[i] = 0xffb0b0b0;
+        }
+        double whiteLit = AmbientArtFilter.litFraction(
+                AmbientArtFilter.apply(white, SIZE, SIZE, true, false));
+        double greyLit = AmbientArtFilter.litFraction(
+                AmbientArtFilter.apply(grey, SIZE, SIZE, true, false));
+        assertEquals(1.0, whiteLit, 1e-9);
+        assertTrue(greyLit > 0 && greyLit < whiteLit);
+    }
+
+    @Test
+    public void blackStaysBlack() {
+        int[] black = new int[SIZE * SIZE];
+        for (int i = 0; i < black.length; i++) {
+            black[i] = 0xff000000;
+        }
+        for (boolean lowBit : new boolean[]{true, false}) {
+            for (boolean burnIn : new boolean[]{true, false}) {
+                assertEquals(0, AmbientArtFilter.litFraction(
+                        AmbientArtFilter.apply(black, SIZE, SIZE, lowBit, burnIn)), 0);
+            }
+        }
+    }
+
+    @Test
+    public void burnInProtectionThinsSolidRegions() {
+        int[] white = new int[SIZE * SIZE];
+        for (int i = 0; i < white.length; i++) {
+            white[i] = 0xffffffff;
+        }
+        int[] ambient = AmbientArtFilter.apply(white, SIZE, SIZE, true, true);
+        double lit = AmbientArtFilter.litFraction(ambient);
+        assertTrue(lit > 0.5 && lit < 0.6);
+        // The outline is kept whole.
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(AmbientArtFilter.LOW_BIT_LEVEL, ambient[i] & 0xff);
+            assertEquals(AmbientArtFilter.LOW_BIT_LEVEL, ambient[i * SIZE] & 0xff);
+        }
+        // Inside, only every other pixel is lit.
+        assertEquals(AmbientArtFilter.LOW_BIT_LEVEL, ambient[SIZE + 1] & 0xff);
+        assertEquals(0, ambient[SIZE + 2] & 0xff);
+    }
+
+    @Test
+    public void burnInProtectionKeepsDitheredPixels() {
+        int[] grey = new int[SIZE * SIZE];
+        for (int i = 0; i < grey.length; i++) {
+            grey[i] = 0xffb0b0b0;
+        }
+        // Dithered mid tones have no solid regions to thin.
+        assertArrayEquals(AmbientArtFilter.apply(grey, SIZE, SIZE, true, false),
+                AmbientArtFilter.apply(grey, SIZE, SIZE, true, true));
+    }
+
+    private static int[] randomArt() {
+        Random random = new Random(7);
+        int[] argb = new int[SIZE * SIZE];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return argb;
+    }
+}
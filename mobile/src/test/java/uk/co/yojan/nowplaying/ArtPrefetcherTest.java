@@ -0,0 +1,152 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ArtPrefetcherTest {
+
+    private static class RecordingLoader implements ArtPrefetcher.Loader {
+        final List<String> loaded = new ArrayList<>();
+
+        @Override
+        public void prefetch(String trackId) throws Exception {
+            if (trackId.startsWith("bad")) {
+                throw new Exception("no art");
+            }
+            loaded.add(trackId);
+        }
+    }
+
+    /** Holds on to submitted work until the test runs it. */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> pending = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            pending.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> work = new ArrayList<>(pending);
+            pending.clear();
+            for (Runnable runnable : work) {
+                runnable.run();
+            }
+        }
+    }
+
+    private static class FakeClock implements Clock {
+        long now;
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void prefetchesAtMostTheTracksPerTrigger() {
+        RecordingLoader loader = new RecordingLoader();
+        ArtPrefetcher prefetcher = new ArtPrefetcher(loader, DIRECT, 2, 100, new FakeClock());
+        prefetcher.prefetch(Arrays.asList("a", "b", "c"));
+        assertEquals(Arrays.asList("a", "b"), loader.loaded);
+        assertEquals(2, prefetcher.completedCount());
+    }
+
+    @Test
+    public void newTriggerCancelsOutstandingWork() {
+        RecordingLoader loader = new RecordingLoader();
+        ManualExecutor executor = new ManualExecutor();
+        ArtPrefetcher prefetcher = new ArtPrefetcher(loader, executor, 3, 100, new FakeClock());
+        prefetcher.prefetch(Arrays.asList("a", "b", "c"));
+        prefetcher.prefetch(Arrays.asList("x", "y"));
+        executor.runAll();
+
+        assertEquals(Arrays.asList("x", "y"), loader.loaded);
+        assertEquals(3, prefetcher.cancelledCount());
+    }
+
+    @Test
+    public void cancelStopsOutstandingWork() {
+        RecordingLoader loader = new RecordingLoader();
+        ManualExecutor executor = new ManualExecutor();
+        ArtPrefetcher prefetcher = new ArtPrefetcher(loader, executor, 3, 100, new FakeClock());
+        prefetcher.prefetch(Arrays.asList("a", "b"));
+        prefetcher.cancel();
+        executor.runAll();
+
+        assertTrue(loader.loaded.isEmpty());
+        assertEquals(2, prefetcher.cancelledCount());
+    }
+
+    @Test
+    public void hourlyBudgetIsEnforced() {
+        RecordingLoader loader = new RecordingLoader();
+        FakeClock clock = new FakeClock();
+        ArtPrefetcher prefetcher = new ArtPrefetcher(loader, DIRECT, 3, 4, clock);
+        prefetcher.prefetch(Arrays.asList("a", "b", "c"));
+        prefetcher.prefetch(Arrays.asList("d", "e", "f"));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), loader.loaded);
+        assertEquals(2, prefetcher.overBudgetCount());
+
+        clock.now += 60 * 60 * 1000;
+        prefetcher.prefetch(Arrays.asList("e", "f"));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), loader.loaded);
+    }
+
+    @Test
+    public void skipsTracksAlreadyPrefetched() {
+        RecordingLoader loader = new RecordingLoader();
+        ArtPrefetcher prefetcher = new ArtPrefetcher(loader, DIRECT, 3, 100, new FakeClock());
+        prefetcher.prefetch(Arrays.asList("a", "b"));
+        prefetcher.prefetch(Arrays.asList("b", "c"));
+        assertEquals(Arrays.asList("a", "b", "c"), loader.loaded);
+    }
+
+    @Test
+    public void hitRateCountsPlaysOfPrefetchedTracks() {
+        RecordingLoader loader = new RecordingLoader();
+        ArtPrefetcher prefetcher = new ArtPrefetcher(loader, DIRECT, 3, 100, new FakeClock());
+        prefetcher.prefetch(Arrays.asList("a", "bad1"));
+
+        prefetcher.recordPlay("a");
+        prefetcher.recordPlay("bad1");
+        prefetcher.recordPlay("z");
+        prefetcher.recordPlay("a");
+
+        assertEquals(0.25, prefetcher.hitRate(), 1e-9);
+    }
+
+    @Test
+    public void successorPredictionsWarmTheNextTrack() {
+        TrackSuccessorModel model = new TrackSuccessorModel(null, 100, 4);
+        RecordingLoader loader = new RecordingLoader();
+        ArtPrefetcher prefetcher = new ArtPrefetcher(loader, DIRECT, 2, 100, new FakeClock());
+
+        // A playlist on repeat, prefetching after every play as the service does.
+        List<String> playlist = Arrays.asList("t1", "t2", "t3", "t4", "t5");
+        for (int loop = 0; loop < 3; loop++) {
+            for (String trackId : playlist) {
+                prefetcher.recordPlay(trackId);
+                model.recordPlay(trackId);
+                prefetcher.prefetch(model.predictNext(trackId, 2));
+            }
+        }
+
+        // Cold the first time round, and the wrap back to t1 is only learned on the second.
+        assertEquals(9 / 15.0, prefetcher.hitRate(), 1e-9);
+    }
+}
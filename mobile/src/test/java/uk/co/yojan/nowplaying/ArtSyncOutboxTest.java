@@ -0,0 +1,312 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ArtSyncOutboxTest {
+
+    /** A connection that is up or down as the test says, and drops puts while down. */
+    private static class FlappingConnection implements ArtSyncOutbox.Connection,
+            AlbumArtSyncStore.DataLayer {
+        final Map<String, ArtSyncItem> items = new HashMap<>();
+        final List<String> sent = new ArrayList<>();
+        boolean connected;
+        // Drops the connection during the next put, before it is written.
+        boolean dropOnPut;
+        int connectCount;
+        int drainedCount;
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void connect() {
+            connectCount++;
+        }
+
+        @Override
+        public void onDrained() {
+            drainedCount++;
+        }
+
+        @Override
+        public boolean put(String path, ArtSyncItem item) {
+            if (dropOnPut) {
+                connected = false;
+                dropOnPut = false;
+            }
+            if (connected) {
+                items.put(path, item);
+                sent.add(item.cacheKey);
+            }
+            return connected;
+        }
+
+        @Override
+        public boolean delete(String path) {
+            if (connected) {
+                items.remove(path);
+            }
+            return connected;
+        }
+
+        @Override
+        public List<String> paths(String pathPrefix) {
+            return connected ? new ArrayList<String>() : null;
+        }
+    }
+
+    private static class FakeClock implements Clock {
+        long now = 1000;
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    private File mFile;
+    private FlappingConnection mConnection;
+    private AlbumArtSyncStore mSyncStore;
+    private FakeClock mClock;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("art_outbox", "");
+        mFile.delete();
+        mConnection = new FlappingConnection();
+        mSyncStore = new AlbumArtSyncStore(mConnection, 1, 1024 * 1024);
+        mClock = new FakeClock();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private ArtSyncOutbox newOutbox() {
+        return new ArtSyncOutbox(mFile, mConnection, mSyncStore, mClock);
+    }
+
+    private static ArtSyncItem art(String cacheKey) {
+        byte[] albumArt = new byte[1024];
+        albumArt[0] = (byte) cacheKey.hashCode();
+        return ArtSyncItem.full(cacheKey, albumArt, new byte[64]);
+    }
+
+    private ArtSyncItem current() {
+        return mConnection.items.get(AlbumArtSyncStore.pathFor(0));
+    }
+
+    @Test
+    public void syncsStraightAwayWhenConnected() {
+        mConnection.connected = true;
+        ArtSyncOutbox outbox = newOutbox();
+        assertTrue(outbox.offer(art("a"), 1));
+
+        assertEquals("a", current().cacheKey);
+        assertEquals(0, outbox.depth());
+        assertFalse(mFile.exists());
+        assertEquals(0, mConnection.connectCount);
+    }
+
+    @Test
+    public void keepsOnlyLatestItemWhileDisconnected() {
+        ArtSyncOutbox outbox = newOutbox();
+        outbox.offer(art("a"), 1);
+        mClock.now += 500;
+        outbox.offer(art("b"), 2);
+        mClock.now += 1500;
+        outbox.offer(art("c"), 3);
+        assertEquals(1, outbox.depth());
+        assertTrue(mConnection.connectCount > 0);
+        assertTrue(mConnection.sent.isEmpty());
+
+        mClock.now += 3000;
+        mConnection.connected = true;
+        assertTrue(outbox.flush());
+
+        assertEquals(0, outbox.depth());
+        assertEquals("c", current().cacheKey);
+        assertEquals(1, mConnection.sent.size());
+        assertEquals(3000, outbox.flushLatency().percentile(50));
+    }
+
+    @Test
+    public void keepsItemDroppedDuringPut() {
+        mConnection.connected = true;
+        mConnection.dropOnPut = true;
+        ArtSyncOutbox outbox = newOutbox();
+        outbox.offer(art("a"), 1);
+        assertEquals(1, outbox.depth());
+
+        mConnection.connected = true;
+        outbox.flush();
+        assertEquals("a", current().cacheKey);
+        assertEquals(0, outbox.depth());
+    }
+
+    @Test
+    public void holdsItemsUntilReleased() {
+        mConnection.connected = true;
+        ArtSyncOutbox outbox = newOutbox();
+        outbox.setHeld(true);
+        outbox.offer(art("a"), 1);
+        outbox.offer(art("b"), 2);
+        assertFalse(outbox.flush());
+        assertTrue(mConnection.sent.isEmpty());
+        assertEquals(0, mConnection.connectCount);
+
+        outbox.setHeld(false);
+        assertEquals("b", current().cacheKey);
+        assertEquals(1, mConnection.sent.size());
+    }
+
+    @Test
+    public void reportsDrainedWhicheverFlushSyncedTheItem() {
+        ArtSyncOutbox outbox = newOutbox();
+        outbox.offer(art("a"), 1);
+        assertEquals(0, mConnection.drainedCount);
+
+        // Synced by the next offer after a failed put.
+        mConnection.connected = true;
+        mConnection.dropOnPut = true;
+        outbox.offer(art("b"), 2);
+        assertEquals(0, mConnection.drainedCount);
+        mConnection.connected = true;
+        outbox.offer(art("c"), 3);
+        assertEquals(1, mConnection.drainedCount);
+
+        // Synced when no longer held.
+        outbox.setHeld(true);
+        outbox.offer(art("d"), 4);
+        outbox.setHeld(false);
+        assertEquals("d", current().cacheKey);
+        assertEquals(2, mConnection.drainedCount);
+
+        // Nothing was waiting.
+        outbox.flush();
+        assertEquals(2, mConnection.drainedCount);
+    }
+
+    @Test
+    public void dropsItemsOfEarlierGenerations() {
+        ArtSyncOutbox outbox = newOutbox();
+        assertTrue(outbox.offer(art("b"), 2));
+        // Art for an earlier track that finished encoding late.
+        assertFalse(outbox.offer(art("a"), 1));
+        // The same track's art sent again.
+        assertTrue(outbox.offer(art("b2"), 2));
+
+        mConnection.connected = true;
+        assertTrue(outbox.flush());
+        assertEquals("b2", current().cacheKey);
+        assertEquals(1, mConnection.sent.size());
+        assertTrue(outbox.toString().contains("stale=1"));
+    }
+
+    @Test
+    public void restoresWaitingItemAfterRestart() {
+        newOutbox().offer(art("a"), 5);
+        assertTrue(mFile.exists());
+
+        ArtSyncOutbox restored = newOutbox();
+        assertEquals(1, restored.depth());
+        mConnection.connected = true;
+        restored.flush();
+
+        assertEquals("a", current().cacheKey);
+        assertEquals(1024, current().albumArt.length);
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void ignoresCorruptFile() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[]{1, 2, 3});
+        }
+        ArtSyncOutbox outbox = newOutbox();
+        assertEquals(0, outbox.depth());
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void remembersOnlyArtSyncedInFull() {
+        ArtSyncOutbox outbox = newOutbox();
+        outbox.offer(art("superseded"), 1);
+        outbox.offer(art("a"), 2);
+        assertFalse(outbox.hasSynced("a"));
+
+        mConnection.connected = true;
+        outbox.flush();
+        outbox.offer(ArtSyncItem.reference("b", new byte[1024], new byte[64]), 3);
+
+        assertTrue(outbox.hasSynced("a"));
+        assertFalse(outbox.hasSynced("superseded"));
+        assertFalse(outbox.hasSynced("b"));
+    }
+
+    @Test
+    public void forgetsArtTheWatchWouldHaveEvicted() {
+        mConnection.connected = true;
+        ArtSyncOutbox outbox = newOutbox();
+        // Far more art than the watch keeps, with the first album shown again halfway.
+        for (int track = 0; track < 6000; track++) {
+            outbox.offer(art(track == 3000 ? "album0" : "album" + track), track);
+        }
+
+        assertFalse(outbox.hasSynced("album1"));
+        assertTrue(outbox.hasSynced("album0"));
+        assertTrue(outbox.hasSynced("album5999"));
+    }
+
+    @Test
+    public void watchEndsUpWithCurrentArtOverFlappingConnection() {
+        Random random = new Random(42);
+        ArtSyncOutbox outbox = newOutbox();
+        String lastOffered = null;
+        for (int track = 0; track < 1000; track++) {
+            // The watch drifts in and out of range between and during track changes.
+            boolean wasConnected = mConnection.connected;
+            mConnection.connected = random.nextInt(3) != 0;
+            mConnection.dropOnPut = random.nextInt(10) == 0;
+            if (mConnection.connected && !wasConnected) {
+                outbox.flush();
+            }
+            if (random.nextBoolean()) {
+                lastOffered = "album" + track;
+                int sentBefore = mConnection.sent.size();
+                outbox.offer(art(lastOffered), track);
+                // Anything sent is the newest art, never something already superseded.
+                for (String sent : mConnection.sent.subList(sentBefore,
+                        mConnection.sent.size())) {
+                    assertEquals(lastOffered, sent);
+                }
+            }
+            mClock.now += 1000;
+        }
+        mConnection.connected = true;
+        mConnection.dropOnPut = false;
+        outbox.flush();
+
+        assertEquals(lastOffered, current().cacheKey);
+        assertEquals(0, outbox.depth());
+        // Each item went across at most once.
+        assertEquals(mConnection.sent.size(), new HashSet<>(mConnection.sent).size());
+    }
+}
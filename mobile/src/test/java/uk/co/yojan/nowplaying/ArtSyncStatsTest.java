@@ -0,0 +1,32 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ArtSyncStatsTest {
+
+    @Test
+    public void repeatAlbumsCostOnlyReferences() {
+        ArtSyncStats stats = new ArtSyncStats();
+        // First play of an album sends the art, every repeat only a reference.
+        stats.recordFull(50000);
+        for (int i = 0; i < 9; i++) {
+            stats.recordReference(50000);
+        }
+        assertEquals(9, stats.referenceCount());
+        assertEquals(50000, stats.bytesSent());
+        assertEquals(450000, stats.bytesSaved());
+    }
+
+    @Test
+    public void missesAreNotSaved() {
+        ArtSyncStats stats = new ArtSyncStats();
+        stats.recordReference(50000);
+        stats.recordReference(30000);
+        stats.recordMiss(30000);
+        assertEquals(1, stats.missCount());
+        assertEquals(30000, stats.bytesSent());
+        assertEquals(50000, stats.bytesSaved());
+    }
+}
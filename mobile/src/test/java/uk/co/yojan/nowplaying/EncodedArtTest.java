@@ -0,0 +1,64 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class EncodedArtTest {
+
+    @Test
+    public void identicalImagesHaveInfinitePsnr() {
+        int[] pixels = {0xff102030, 0xff405060};
+        assertEquals(Double.POSITIVE_INFINITY, EncodedArt.psnr(pixels, pixels.clone()), 0);
+    }
+
+    @Test
+    public void psnrOfKnownError() {
+        // Every channel off by one: mse = 1, psnr = 10 * log10(255^2).
+        int[] expected = {0xff101010};
+        int[] actual = {0xff111111};
+        assertEquals(48.13, EncodedArt.psnr(expected, actual), 0.01);
+    }
+
+    @Test
+    public void psnrIgnoresAlpha() {
+        assertEquals(Double.POSITIVE_INFINITY,
+                EncodedArt.psnr(new int[]{0xff123456}, new int[]{0x00123456}), 0);
+    }
+
+    @Test
+    public void choosesSmallestAboveThreshold() {
+        EncodedArt png = art("png", 10000, Double.POSITIVE_INFINITY);
+        EncodedArt jpeg = art("jpeg", 2000, 36);
+        EncodedArt webp = art("webp", 1500, 34);
+        EncodedArt tooLossy = art("webp-low", 500, 25);
+
+        assertSame(webp, EncodedArt.chooseSmallest(Arrays.asList(png, jpeg, webp, tooLossy), 32));
+        assertSame(jpeg, EncodedArt.chooseSmallest(Arrays.asList(png, jpeg, webp, tooLossy), 35));
+    }
+
+    @Test
+    public void fallsBackToMostFaithfulWhenNoneMeetThreshold() {
+        EncodedArt jpeg = art("jpeg", 2000, 30);
+        EncodedArt webp = art("webp", 1500, 28);
+        assertSame(jpeg, EncodedArt.chooseSmallest(Arrays.asList(webp, jpeg), 40));
+    }
+
+    @Test
+    public void statsAveragePerStrategy() {
+        EncoderStats stats = new EncoderStats();
+        stats.recordEncode(new EncodedArt("jpeg", new byte[100], 35, 2000000));
+        stats.recordEncode(new EncodedArt("jpeg", new byte[300], 35, 4000000));
+        stats.recordChosen(art("jpeg", 300, 35));
+        assertEquals(200, stats.averageBytes("jpeg"));
+        assertEquals(3.0, stats.averageEncodeMillis("jpeg"), 1e-9);
+        assertEquals(1, stats.chosenCount("jpeg"));
+        assertEquals(0, stats.chosenCount("png"));
+    }
+
+    private static EncodedArt art(String strategy, int size, double psnr) {
+        return new EncodedArt(strategy, new byte[size], psnr, 0);
+    }
+}
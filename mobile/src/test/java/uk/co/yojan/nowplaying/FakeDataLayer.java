@@ -0,0 +1,184 @@
+package uk.co.yojan.nowplaying;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stands in for the wearable data api and its connection, counting what would have been sent
+ * to the watch and how long after its track change each item got there. Like the watch, it
+ * reports references to art it was never sent in full.
+ */
+class FakeDataLayer implements AlbumArtSyncStore.DataLayer, ArtSyncOutbox.Connection {
+
+    /**
+     * Told of each reference to art the watch does not have, as the watch asks the phone.
+     */
+    interface MissListener {
+        void onMiss(String cacheKey);
+    }
+
+    private static final int LATENCY_WINDOW = 100000;
+
+    private final Map<String, ArtSyncItem> mItems = new HashMap<>();
+    // Cache keys of the art the watch was sent in full.
+    private final Set<String> mReceived = new HashSet<>();
+    private final LatencyHistogram mArtLatency = new LatencyHistogram(LATENCY_WINDOW);
+    private final LatencyHistogram mReferenceLatency = new LatencyHistogram(LATENCY_WINDOW);
+    private final LatencyHistogram mPlaceholderLatency = new LatencyHistogram(LATENCY_WINDOW);
+    private boolean mConnected = true;
+    private String mLastCacheKey;
+    private PlaybackState mPlaybackState;
+    private MissListener mMissListener;
+
+    private long mPutCount;
+    private long mReferenceCount;
+    private long mMissCount;
+    private long mSyncedBytes;
+    private long mDeleteCount;
+    private long mPlaceholderCount;
+    private long mPlaceholderBytes;
+    private long mPlaybackCount;
+    private long mConnectCount;
+
+    synchronized void setConnected(boolean connected) {
+        mConnected = connected;
+    }
+
+    synchronized void setMissListener(MissListener listener) {
+        mMissListener = listener;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public synchronized void connect() {
+        mConnectCount++;
+    }
+
+    @Override
+    public void onDrained() {
+        // Never held a reference.
+    }
+
+    @Override
+    public synchronized boolean put(String path, ArtSyncItem item) {
+        if (!mConnected) {
+            return false;
+        }
+        mItems.put(path, item);
+        mPutCount++;
+        mSyncedBytes += item.assetBytes();
+        if (item.isReference()) {
+            mReferenceCount++;
+            if (!mReceived.contains(item.cacheKey)) {
+                // The watch shows no art until it is sent in full.
+                mMissCount++;
+                mLastCacheKey = null;
+                if (mMissListener != null) {
+                    mMissListener.onMiss(item.cacheKey);
+                }
+                return true;
+            }
+        } else {
+            mReceived.add(item.cacheKey);
+        }
+        mLastCacheKey = item.cacheKey;
+        if (item.traceId != 0) {
+            long latency = System.currentTimeMillis() - item.traceStartMillis;
+            (item.isReference() ? mReferenceLatency : mArtLatency).record(latency);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(String path) {
+        if (mConnected && mItems.remove(path) != null) {
+            mDeleteCount++;
+        }
+        return mConnected;
+    }
+
+    @Override
+    public synchronized List<String> paths(String pathPrefix) {
+        if (!mConnected) {
+            return null;
+        }
+        List<String> paths = new ArrayList<>();
+        for (String path : mItems.keySet()) {
+            if (path.startsWith(pathPrefix)) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    synchronized void putPlaceholder(String cacheKey, ArtPlaceholder placeholder,
+                                     long traceStartMillis) {
+        if (!mConnected) {
+            return;
+        }
+        mPlaceholderCount++;
+        mPlaceholderBytes += placeholder.thumbnail.length;
+        if (traceStartMillis != 0) {
+            mPlaceholderLatency.record(System.currentTimeMillis() - traceStartMillis);
+        }
+    }
+
+    synchronized void putPlayback(PlaybackState state, boolean urgent) {
+        if (mConnected) {
+            mPlaybackState = state;
+            mPlaybackCount++;
+        }
+    }
+
+    /** Returns the cache key of the art the watch would show. */
+    synchronized String lastCacheKey() {
+        return mLastCacheKey;
+    }
+
+    synchronized PlaybackState playbackState() {
+        return mPlaybackState;
+    }
+
+    synchronized long putCount() {
+        return mPutCount;
+    }
+
+    /** Returns the number of references to art the watch did not have. */
+    synchronized long missCount() {
+        return mMissCount;
+    }
+
+    synchronized long syncedBytes() {
+        return mSyncedBytes;
+    }
+
+    /** Latency from the track change to its art, for tracks whose art was sent in full. */
+    LatencyHistogram artLatency() {
+        return mArtLatency;
+    }
+
+    /** Latency from the track change to its art, for tracks whose art was cached. */
+    LatencyHistogram referenceLatency() {
+        return mReferenceLatency;
+    }
+
+    LatencyHistogram placeholderLatency() {
+        return mPlaceholderLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("FakeDataLayer[puts=%d (%d references, %d missed), synced=%dKB, "
+                        + "deletes=%d, placeholders=%d (%dB), playback=%d, connects=%d]",
+                mPutCount, mReferenceCount, mMissCount, mSyncedBytes / 1024, mDeleteCount,
+                mPlaceholderCount, mPlaceholderBytes, mPlaybackCount, mConnectCount);
+    }
+}
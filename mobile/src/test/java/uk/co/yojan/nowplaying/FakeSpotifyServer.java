@@ -0,0 +1,294 @@
+package uk.co.yojan.nowplaying;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import kaaes.spotify.webapi.android.SpotifyService;
+import retrofit.RestAdapter;
+
+/**
+ * Stands in for Spotify's web api and image cdn on a local port.
+ *
+ * Tracks belong to the album they were given, or an album of their own. Each album has covers
+ * at the three sizes Spotify serves, rendered once as jpegs. Covers carry an ETag and a
+ * Last-Modified date, and conditional requests for a cover that has not changed since are
+ * answered 304. Tests can queue up errors for a track, which are answered before the track
+ * itself, and add latency to either server.
+ */
+class FakeSpotifyServer {
+
+    private static final int[] IMAGE_SIZES = {640, 300, 64};
+    private static final long COVERS_CREATED_AT = 1451606400000L;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Map<String, String> mAlbums = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> mRequests = new ConcurrentHashMap<>();
+    private final Map<String, Queue<int[]>> mErrors = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> mImages = new ConcurrentHashMap<>();
+    private final Map<String, Integer> mCoverVersions = new ConcurrentHashMap<>();
+    private final AtomicLong mApiRequestCount = new AtomicLong();
+    private final AtomicLong mImageRequestCount = new AtomicLong();
+    private final AtomicLong mImageBytes = new AtomicLong();
+    private final AtomicLong mNotModifiedCount = new AtomicLong();
+
+    volatile long apiDelayMillis;
+    volatile long imageDelayMillis;
+    /** Sent with covers, if not null. */
+    volatile String imageCacheControl;
+
+    FakeSpotifyServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/v1/tracks/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleTrack(exchange);
+            }
+        });
+        mServer.createContext("/images/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleImage(exchange);
+            }
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    /**
+     * Returns a client for the web api, the way the phone builds it but at the local port.
+     */
+    SpotifyService spotifyService() {
+        return new RestAdapter.Builder()
+                .setEndpoint(baseUrl() + "/v1")
+                .build()
+                .create(SpotifyService.class);
+    }
+
+    void setAlbum(String trackId, String albumId) {
+        mAlbums.put(trackId, albumId);
+    }
+
+    String albumOf(String trackId) {
+        String albumId = mAlbums.get(trackId);
+        return albumId != null ? albumId : "album-" + trackId;
+    }
+
+    /** Queues an error response, with a Retry-After in seconds if not negative. */
+    synchronized void fail(String trackId, int status, int retryAfterSeconds) {
+        Queue<int[]> queue = mErrors.get(trackId);
+        if (queue == null) {
+            queue = new LinkedList<>();
+            mErrors.put(trackId, queue);
+        }
+        queue.add(new int[]{status, retryAfterSeconds});
+    }
+
+    /** Replaces the album's covers with new ones, a day newer. */
+    void changeCover(String albumId) {
+        mCoverVersions.put(albumId, coverVersion(albumId) + 1);
+    }
+
+    int requests(String trackId) {
+        AtomicInteger count = mRequests.get(trackId);
+        return count == null ? 0 : count.get();
+    }
+
+    long apiRequestCount() {
+        return mApiRequestCount.get();
+    }
+
+    long imageRequestCount() {
+        return mImageRequestCount.get();
+    }
+
+    long imageBytesServed() {
+        return mImageBytes.get();
+    }
+
+    long notModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void handleTrack(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String trackId = path.substring(path.lastIndexOf('/') + 1);
+        mApiRequestCount.incrementAndGet();
+        synchronized (this) {
+            if (!mRequests.containsKey(trackId)) {
+                mRequests.put(trackId, new AtomicInteger());
+            }
+        }
+        mRequests.get(trackId).incrementAndGet();
+        sleep(apiDelayMillis);
+
+        int[] error;
+        synchronized (this) {
+            Queue<int[]> queue = mErrors.get(trackId);
+            error = queue == null ? null : queue.poll();
+        }
+        if (error != null) {
+            if (error[1] >= 0) {
+                exchange.getResponseHeaders().add("Retry-After", Integer.toString(error[1]));
+            }
+            exchange.sendResponseHeaders(error[0], -1);
+            exchange.close();
+            return;
+        }
+        String albumId = albumOf(trackId);
+        StringBuilder json = new StringBuilder()
+                .append("{\"id\":\"").append(trackId)
+                .append("\",\"album\":{\"id\":\"").append(albumId).append("\",\"images\":[");
+        for (int i = 0; i < IMAGE_SIZES.length; i++) {
+            int size = IMAGE_SIZES[i];
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"height\":").append(size).append(",\"width\":").append(size)
+                    .append(",\"url\":\"").append(baseUrl()).append("/images/").append(albumId)
+                    .append('/').append(size).append("\"}");
+        }
+        json.append("]}}");
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        send(exchange, json.toString().getBytes(Charset.forName("UTF-8")));
+    }
+
+    private void handleImage(HttpExchange exchange) throws IOException {
+        String[] parts = exchange.getRequestURI().getPath().split("/");
+        String albumId = parts[2];
+        int size = Integer.parseInt(parts[3]);
+        mImageRequestCount.incrementAndGet();
+        sleep(imageDelayMillis);
+        int version = coverVersion(albumId);
+        String etag = "\"" + albumId + "-" + size + "-" + version + "\"";
+        String lastModified = httpDate(COVERS_CREATED_AT + version * DAY_MS);
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.getResponseHeaders().add("Last-Modified", lastModified);
+        if (imageCacheControl != null) {
+            exchange.getResponseHeaders().add("Cache-Control", imageCacheControl);
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifNoneMatch != null ? ifNoneMatch.equals(etag) : lastModified.equals(ifModifiedSince)) {
+            mNotModifiedCount.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        String key = albumId + "/" + size + "/" + version;
+        byte[] image = mImages.get(key);
+        if (image == null) {
+            image = renderCover(albumId + "/" + version, size);
+            mImages.put(key, image);
+        }
+        mImageBytes.addAndGet(image.length);
+        exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+        send(exchange, image);
+    }
+
+    private int coverVersion(String albumId) {
+        Integer version = mCoverVersions.get(albumId);
+        return version == null ? 0 : version;
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    /**
+     * Renders a cover with gradients and a few shapes, so that it compresses about as well as
+     * album art does.
+     */
+    private static byte[] renderCover(String seed, int size) throws IOException {
+        Random random = new Random(seed.hashCode());
+        BufferedImage cover = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = cover.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xffffff)),
+                size, size, new Color(random.nextInt(0xffffff))));
+        graphics.fillRect(0, 0, size, size);
+        for (int i = 0; i < 12; i++) {
+            graphics.setColor(new Color(random.nextInt(0xffffff)));
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            int extent = 1 + random.nextInt(size / 2);
+            if (random.nextBoolean()) {
+                graphics.fillOval(x - extent / 2, y - extent / 2, extent, extent);
+            } else {
+                graphics.fillRect(x - extent / 2, y - extent / 4, extent, extent / 2);
+            }
+        }
+        // Film grain, which is what makes photos expensive to encode.
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int noise = random.nextInt(17) - 8;
+                int rgb = cover.getRGB(x, y);
+                cover.setRGB(x, y, (clamp((rgb >> 16 & 0xff) + noise) << 16)
+                        | (clamp((rgb >> 8 & 0xff) + noise) << 8) | clamp((rgb & 0xff) + noise));
+            }
+        }
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(cover, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static void send(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package uk.co.yojan.nowplaying;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import kaaes.spotify.webapi.android.SpotifyService;
+
+import static org.junit.Assert.*;
+
+public class HttpStackTest {
+
+    private static final String HOST = "127.0.0.1";
+
+    private FakeSpotifyServer mSpotify;
+    private Cache mCache;
+    private HttpStats mStats;
+    private OkHttpClient mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        mSpotify = new FakeSpotifyServer();
+        File cacheDir = Files.createTempDirectory("http").toFile();
+        mCache = new Cache(cacheDir, 1024 * 1024);
+        mStats = new HttpStats();
+        mClient = HttpStack.newClient(mCache, mStats);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSpotify.stop();
+        mCache.delete();
+    }
+
+    private byte[] fetchCover(String albumId) throws IOException {
+        return mClient.newCall(new Request.Builder()
+                .url(mSpotify.baseUrl() + "/images/" + albumId + "/640")
+                .build())
+                .execute()
+                .body()
+                .bytes();
+    }
+
+    @Test
+    public void apiAndCoversShareOneConnection() throws IOException {
+        SpotifyService spotify = HttpStack.newSpotifyService(mClient, mSpotify.baseUrl() + "/v1");
+        spotify.getTrack("t1");
+        spotify.getTrack("t2");
+        fetchCover("album-t1");
+        fetchCover("album-t2");
+
+        HttpStats.Host host = mStats.host(HOST);
+        assertEquals(4, host.requests());
+        assertEquals(1, host.newConnections());
+        assertEquals(3, host.reusedConnections());
+    }
+
+    @Test
+    public void staleCoverIsRevalidated() throws IOException {
+        mSpotify.imageCacheControl = "no-cache";
+        byte[] first = fetchCover("a1");
+        byte[] second = fetchCover("a1");
+
+        assertTrue(Arrays.equals(first, second));
+        assertEquals(2, mSpotify.imageRequestCount());
+        assertEquals(1, mSpotify.notModifiedCount());
+        assertEquals(first.length, mSpotify.imageBytesServed());
+        HttpStats.Host host = mStats.host(HOST);
+        assertEquals(1, host.count(HttpStats.Outcome.NETWORK));
+        assertEquals(1, host.count(HttpStats.Outcome.NOT_MODIFIED));
+        assertEquals(1, host.validationRate(), 1e-9);
+    }
+
+    @Test
+    public void changedCoverIsSentAgain() throws IOException {
+        mSpotify.imageCacheControl = "no-cache";
+        byte[] first = fetchCover("a1");
+        mSpotify.changeCover("a1");
+        byte[] second = fetchCover("a1");
+
+        assertFalse(Arrays.equals(first, second));
+        assertEquals(0, mSpotify.notModifiedCount());
+        HttpStats.Host host = mStats.host(HOST);
+        assertEquals(1, host.count(HttpStats.Outcome.MODIFIED));
+        assertEquals(0, host.validationRate(), 1e-9);
+
+        // The new cover replaced the old one in the cache.
+        assertTrue(Arrays.equals(second, fetchCover("a1")));
+        assertEquals(1, mSpotify.notModifiedCount());
+    }
+
+    @Test
+    public void freshCoverComesFromTheCache() throws IOException {
+        mSpotify.imageCacheControl = "max-age=3600";
+        fetchCover("a1");
+        fetchCover("a1");
+
+        assertEquals(1, mSpotify.imageRequestCount());
+        HttpStats.Host host = mStats.host(HOST);
+        assertEquals(1, host.count(HttpStats.Outcome.CACHED));
+        // Only the first request went over the network.
+        assertEquals(1, host.newConnections() + host.reusedConnections());
+    }
+
+    @Test
+    public void coverWithoutCacheControlIsFetchedInFullOnlyOnce() throws IOException {
+        byte[] first = fetchCover("a1");
+        fetchCover("a1");
+
+        // Heuristically fresh, or revalidated, but never downloaded twice.
+        assertEquals(first.length, mSpotify.imageBytesServed());
+    }
+}
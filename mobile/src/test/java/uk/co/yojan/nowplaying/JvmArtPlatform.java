@@ -0,0 +1,324 @@
+package uk.co.yojan.nowplaying;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Runs the pipeline's Android side on a JVM: covers are downloaded with HttpURLConnection,
+ * decoded as they stream in, subsampled the way {@link CoverDecoder} does unless told not to,
+ * and encoded with ImageIO the way {@link AlbumArtEncoder} encodes them, minus webp. The watch
+ * is a {@link FakeDataLayer}. Counts what was downloaded, and the cpu time and memory spent
+ * decoding and encoding.
+ */
+class JvmArtPlatform implements AlbumArtPipeline.Platform<BufferedImage> {
+
+    private static final int[] JPEG_QUALITIES = {85, 70};
+
+    private final WatchDisplay mDisplay;
+    private final FakeDataLayer mDataLayer;
+    private final boolean mSubsample;
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private final DecodeStats mDecodeStats = new DecodeStats();
+
+    private final AtomicLong mDownloadCount = new AtomicLong();
+    private final AtomicLong mSpeculativeDownloadCount = new AtomicLong();
+    private final AtomicLong mDownloadedBytes = new AtomicLong();
+    private final AtomicLong mEncodeCount = new AtomicLong();
+    private final AtomicLong mEncodeCpuNanos = new AtomicLong();
+
+    JvmArtPlatform(WatchDisplay display, FakeDataLayer dataLayer, boolean subsample) {
+        mDisplay = display;
+        mDataLayer = dataLayer;
+        mSubsample = subsample;
+        // Streams are decoded from memory, rather than spooled to temporary files.
+        ImageIO.setUseCache(false);
+    }
+
+    @Override
+    public WatchDisplay watchDisplay() {
+        return mDisplay;
+    }
+
+    /**
+     * Reads the size from the headers, then decodes the rest of the stream subsampled as
+     * {@link CoverDecoder} does, counting the cpu time.
+     */
+    @Override
+    public BufferedImage download(String imageUrl, WatchDisplay display, boolean speculative,
+                                  AlbumArtPipeline.Download download) throws IOException {
+        final HttpURLConnection connection =
+                (HttpURLConnection) new URL(imageUrl).openConnection();
+        download.attach(new Closeable() {
+            @Override
+            public void close() {
+                connection.disconnect();
+            }
+        });
+        try (CountingInputStream in = new CountingInputStream(connection.getInputStream());
+             ImageInputStream stream = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Not an image: " + imageUrl);
+            }
+            ImageReader reader = readers.next();
+            BufferedImage cover;
+            try {
+                long start = mThreads.getCurrentThreadCpuTime();
+                reader.setInput(stream, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int sampleSize = mSubsample
+                        ? ImageSelection.sampleSize(width, height, display.width, display.height)
+                        : 1;
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                Runtime runtime = Runtime.getRuntime();
+                long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+                cover = reader.read(0, param);
+                mDecodeStats.record(mThreads.getCurrentThreadCpuTime() - start,
+                        4L * cover.getWidth() * cover.getHeight(), 4L * width * height,
+                        CoverDecoder.artBytes(display),
+                        runtime.totalMemory() - runtime.freeMemory() - heapBefore);
+            } finally {
+                reader.dispose();
+            }
+            in.skipToEnd();
+            mDownloadCount.incrementAndGet();
+            if (speculative) {
+                mSpeculativeDownloadCount.incrementAndGet();
+            }
+            mDownloadedBytes.addAndGet(in.count);
+            return cover;
+        }
+    }
+
+    @Override
+    public ArtPlaceholder placeholder(BufferedImage cover) {
+        int size = ArtPlaceholder.SIZE * 4;
+        BufferedImage scaled = scale(cover, size, size, size);
+        return ArtPlaceholder.fromPixels(pixels(scaled), size, size);
+    }
+
+    @Override
+    public AlbumArtPipeline.EncodedArtPair encode(BufferedImage cover, WatchDisplay display) {
+        long start = mThreads.getCurrentThreadCpuTime();
+        try {
+            BufferedImage albumArt = scale(cover, display.width, display.height,
+                    display.visibleHeight());
+            if (display.round) {
+                albumArt = cropToCircle(albumArt);
+            }
+            int[] pixels = pixels(albumArt);
+            int[] ambientPixels = AmbientArtFilter.apply(pixels, display.width, display.height,
+                    display.lowBitAmbient, display.burnInProtection);
+            BufferedImage ambientAlbumArt = new BufferedImage(display.width, display.height,
+                    BufferedImage.TYPE_INT_ARGB);
+            ambientAlbumArt.setRGB(0, 0, display.width, display.height, ambientPixels, 0,
+                    display.width);
+            return new AlbumArtPipeline.EncodedArtPair(encodeSmallest(albumArt, pixels),
+                    png(ambientAlbumArt));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            mEncodeCount.incrementAndGet();
+            mEncodeCpuNanos.addAndGet(mThreads.getCurrentThreadCpuTime() - start);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        if (mDataLayer.isConnected()) {
+            return true;
+        }
+        mDataLayer.connect();
+        return false;
+    }
+
+    @Override
+    public void putPlaceholder(String cacheKey, ArtPlaceholder placeholder,
+                               long traceStartMillis) {
+        mDataLayer.putPlaceholder(cacheKey, placeholder, traceStartMillis);
+    }
+
+    @Override
+    public void putPlayback(PlaybackState state, boolean urgent) {
+        mDataLayer.putPlayback(state, urgent);
+    }
+
+    long downloadCount() {
+        return mDownloadCount.get();
+    }
+
+    long speculativeDownloadCount() {
+        return mSpeculativeDownloadCount.get();
+    }
+
+    long downloadedBytes() {
+        return mDownloadedBytes.get();
+    }
+
+    long encodeCount() {
+        return mEncodeCount.get();
+    }
+
+    long encodeCpuNanos() {
+        return mEncodeCpuNanos.get();
+    }
+
+    DecodeStats decodeStats() {
+        return mDecodeStats;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        /** Reads what the decoder left, such as trailing metadata. */
+        void skipToEnd() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // Counted.
+            }
+        }
+    }
+
+    /**
+     * Encodes as png and jpegs, and keeps the smallest that meets {@link AlbumArtEncoder}'s
+     * quality threshold.
+     */
+    private static byte[] encodeSmallest(BufferedImage art, int[] reference) throws IOException {
+        List<EncodedArt> candidates = new ArrayList<>();
+        candidates.add(candidate("png", png(art), reference));
+        BufferedImage rgb = new BufferedImage(art.getWidth(), art.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        rgb.setRGB(0, 0, art.getWidth(), art.getHeight(), reference, 0, art.getWidth());
+        for (int quality : JPEG_QUALITIES) {
+            candidates.add(candidate("jpeg-" + quality, jpeg(rgb, quality), reference));
+        }
+        return EncodedArt.chooseSmallest(candidates, AlbumArtEncoder.DEFAULT_MIN_PSNR).bytes;
+    }
+
+    private static EncodedArt candidate(String strategy, byte[] bytes, int[] reference)
+            throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes));
+        return new EncodedArt(strategy, bytes, EncodedArt.psnr(reference, pixels(decoded)), 0);
+    }
+
+    private static byte[] png(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] jpeg(BufferedImage image, int quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Scales the center of the image to fill the visible height, as {@link AlbumArtEncoder} does.
+     */
+    private static BufferedImage scale(BufferedImage source, int width, int height,
+                                       int visibleHeight) {
+        int sourceX = 0;
+        int sourceY = 0;
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        if ((long) sourceWidth * visibleHeight > (long) sourceHeight * width) {
+            sourceWidth = sourceHeight * width / visibleHeight;
+            sourceX = (source.getWidth() - sourceWidth) / 2;
+        } else {
+            sourceHeight = sourceWidth * visibleHeight / width;
+            sourceY = (source.getHeight() - sourceHeight) / 2;
+        }
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(0, 0, width, height);
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(source, 0, 0, width, visibleHeight, sourceX, sourceY,
+                sourceX + sourceWidth, sourceY + sourceHeight, null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    private static BufferedImage cropToCircle(BufferedImage source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        BufferedImage circle = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = circle.createGraphics();
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(0, 0, width, height);
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        int diameter = Math.min(width, height);
+        graphics.setClip(new Ellipse2D.Float((width - diameter) / 2f, (height - diameter) / 2f,
+                diameter, diameter));
+        graphics.drawImage(source, 0, 0, null);
+        graphics.dispose();
+        return circle;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                image.getWidth());
+    }
+}
@@ -0,0 +1,248 @@
+package uk.co.yojan.nowplaying;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The broadcasts Spotify sent during a listening session, with their timing, for the load test
+ * to replay.
+ *
+ * Sessions are either recorded, one broadcast per line as
+ * {@code <millis since start> <action> <extras>} separated by tabs, where the extras are the
+ * track uri for metadata changes and {@code <playing> <position millis>} for playback changes,
+ * or synthesised from a seed.
+ */
+class ListeningSession {
+
+    static class Event {
+        final long atMillis;
+        final String action;
+        /** Uri of the track, for metadata changes. */
+        final String trackUri;
+        /** For playback changes. */
+        final boolean playing;
+        final long positionMillis;
+
+        Event(long atMillis, String action, String trackUri, boolean playing,
+              long positionMillis) {
+            this.atMillis = atMillis;
+            this.action = action;
+            this.trackUri = trackUri;
+            this.playing = playing;
+            this.positionMillis = positionMillis;
+        }
+
+        @Override
+        public String toString() {
+            if (BroadcastTypes.METADATA_CHANGED.equals(action)) {
+                return atMillis + "\t" + action + "\t" + trackUri;
+            } else if (BroadcastTypes.PLAYBACK_STATE_CHANGED.equals(action)) {
+                return atMillis + "\t" + action + "\t" + playing + "\t" + positionMillis;
+            }
+            return atMillis + "\t" + action;
+        }
+    }
+
+    // How a synthetic listener gets from one track to the next.
+    private static final double SKIP = 0.2;
+    private static final double SKIP_BURST = 0.08;
+    private static final double PAUSE = 0.06;
+    private static final double QUEUE = 0.05;
+    private static final double NEW_PLAYLIST = 0.02;
+    private static final int PLAYLISTS = 20;
+    private static final int PLAYLIST_TRACKS = 40;
+    private static final int ALBUMS = 150;
+    private static final int ALBUM_TRACKS = 12;
+    private static final char[] BASE62 =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    private final List<Event> mEvents;
+    private final Map<String, String> mAlbums;
+
+    private ListeningSession(List<Event> events, Map<String, String> albums) {
+        mEvents = Collections.unmodifiableList(events);
+        mAlbums = Collections.unmodifiableMap(albums);
+    }
+
+    List<Event> events() {
+        return mEvents;
+    }
+
+    /**
+     * Returns the album of each track, for synthetic sessions. Recorded sessions leave each
+     * track on an album of its own.
+     */
+    Map<String, String> albums() {
+        return mAlbums;
+    }
+
+    long durationMillis() {
+        return mEvents.isEmpty() ? 0 : mEvents.get(mEvents.size() - 1).atMillis;
+    }
+
+    int count(String action) {
+        int count = 0;
+        for (Event event : mEvents) {
+            if (event.action.equals(action)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the id of the track playing at the end of the session.
+     */
+    String lastTrackId() {
+        for (int i = mEvents.size() - 1; i >= 0; i--) {
+            if (mEvents.get(i).trackUri != null) {
+                return TrackIds.fromUri(mEvents.get(i).trackUri);
+            }
+        }
+        return null;
+    }
+
+    static ListeningSession read(Reader reader) throws IOException {
+        List<Event> events = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            long at = Long.parseLong(fields[0]);
+            String action = fields[1];
+            if (BroadcastTypes.METADATA_CHANGED.equals(action)) {
+                events.add(new Event(at, action, fields[2], true, 0));
+            } else if (BroadcastTypes.PLAYBACK_STATE_CHANGED.equals(action)) {
+                events.add(new Event(at, action, null, Boolean.parseBoolean(fields[2]),
+                        Long.parseLong(fields[3])));
+            } else {
+                events.add(new Event(at, action, null, true, 0));
+            }
+        }
+        return new ListeningSession(events, new HashMap<String, String>());
+    }
+
+    void write(Writer writer) throws IOException {
+        for (Event event : mEvents) {
+            writer.write(event.toString());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Synthesises a session of about the given number of broadcasts. The listener mostly plays
+     * through a handful of playlists, so that tracks follow each other the way they do for real
+     * listeners, but also skips, sometimes several tracks in a row, pauses and queues tracks.
+     * Every track change comes with a playback change, as it does from Spotify, and the session
+     * ends with a track playing.
+     */
+    static ListeningSession synthesise(long seed, int events) {
+        Random random = new Random(seed);
+        Map<String, String> albums = new HashMap<>();
+        List<String> library = new ArrayList<>();
+        for (int album = 0; album < ALBUMS; album++) {
+            String albumId = randomId(random);
+            for (int track = 0; track < ALBUM_TRACKS; track++) {
+                String trackId = randomId(random);
+                albums.put(trackId, albumId);
+                library.add(trackId);
+            }
+        }
+        List<List<String>> playlists = new ArrayList<>();
+        for (int i = 0; i < PLAYLISTS; i++) {
+            // Playlists are mostly whole albums, with the odd stray track.
+            List<String> playlist = new ArrayList<>();
+            while (playlist.size() < PLAYLIST_TRACKS) {
+                if (random.nextDouble() < 0.2) {
+                    playlist.add(library.get(random.nextInt(library.size())));
+                } else {
+                    int start = random.nextInt(ALBUMS) * ALBUM_TRACKS;
+                    playlist.addAll(library.subList(start, start + ALBUM_TRACKS));
+                }
+            }
+            playlists.add(playlist);
+        }
+
+        List<Event> session = new ArrayList<>();
+        List<String> playlist = playlists.get(0);
+        int position = 0;
+        long now = 0;
+        while (session.size() < events - 2) {
+            if (position >= playlist.size() || random.nextDouble() < NEW_PLAYLIST) {
+                playlist = playlists.get(random.nextInt(playlists.size()));
+                position = random.nextBoolean() ? 0 : random.nextInt(playlist.size());
+            }
+            String trackId = playlist.get(position++);
+            now = changeTrack(session, now, trackId, random);
+
+            long length = trackLengthMillis(trackId);
+            double roll = random.nextDouble();
+            if (roll < SKIP_BURST) {
+                // Skipping through several tracks, faster than the quiet window.
+                for (int i = 1 + random.nextInt(5); i > 0 && position < playlist.size(); i--) {
+                    now += 150 + random.nextInt(450);
+                    now = changeTrack(session, now, playlist.get(position++), random);
+                }
+                now += 2000 + random.nextInt(60000);
+            } else if (roll < SKIP_BURST + SKIP) {
+                now += 1000 + random.nextInt(30000);
+            } else if (roll < SKIP_BURST + SKIP + PAUSE) {
+                long played = random.nextInt((int) length);
+                now += played;
+                session.add(new Event(now, BroadcastTypes.PLAYBACK_STATE_CHANGED, null, false,
+                        played));
+                now += TimeUnit.SECONDS.toMillis(10 + random.nextInt(1200));
+                session.add(new Event(now, BroadcastTypes.PLAYBACK_STATE_CHANGED, null, true,
+                        played));
+                now += length - played;
+            } else if (roll < SKIP_BURST + SKIP + PAUSE + QUEUE) {
+                long played = random.nextInt((int) length);
+                session.add(new Event(now + played, BroadcastTypes.QUEUE_CHANGED, null, true,
+                        0));
+                now += length;
+            } else {
+                now += length;
+            }
+        }
+        changeTrack(session, now, playlist.get(Math.min(position, playlist.size() - 1)), random);
+        return new ListeningSession(session, albums);
+    }
+
+    private static long changeTrack(List<Event> session, long now, String trackId,
+                                    Random random) {
+        session.add(new Event(now, BroadcastTypes.METADATA_CHANGED, "spotify:track:" + trackId,
+                true, 0));
+        // Spotify sends the playback change for the new track a moment later.
+        now += 20 + random.nextInt(80);
+        session.add(new Event(now, BroadcastTypes.PLAYBACK_STATE_CHANGED, null, true, 0));
+        return now;
+    }
+
+    /**
+     * Returns a length between two and a half and six minutes, always the same for the track.
+     */
+    private static long trackLengthMillis(String trackId) {
+        return TimeUnit.SECONDS.toMillis(150 + Math.abs(trackId.hashCode() % 210));
+    }
+
+    private static String randomId(Random random) {
+        char[] id = new char[22];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = BASE62[random.nextInt(BASE62.length)];
+        }
+        return new String(id);
+    }
+}
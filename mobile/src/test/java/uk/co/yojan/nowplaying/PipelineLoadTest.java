@@ -0,0 +1,304 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a listening session through the pipeline, with the phone's tuning, against a local
+ * stand-in for Spotify and a fake data layer, and reports what it cost.
+ *
+ * Broadcasts are delivered the way {@link AlbumArtService} handles them. Time in the session is
+ * sped up, and the time spent listening between track changes is cut short, so that thousands
+ * of broadcasts replay in a minute or two. The quiet window and Spotify's rate limit are sped up
+ * to match, and the prefetcher's hourly budget runs on session time. Latencies are real time.
+ *
+ * Skipped unless a session is given, so it stays out of every other test run. To compare
+ * builds, replay the same session with each, e.g.
+ * ./gradlew :mobile:testDebugUnitTest --tests '*PipelineLoadTest' -Dloadtest.events=5000
+ * or -Dloadtest.session=<file> for a recorded session, see {@link ListeningSession}. Add
+ * -Dloadtest.fullDecode=true to decode covers at full resolution, as the phone used to.
+ */
+public class PipelineLoadTest {
+
+    private static final int EVENTS = Integer.getInteger("loadtest.events", 600);
+    private static final long SEED = Long.getLong("loadtest.seed", 1);
+    private static final String SESSION = System.getProperty("loadtest.session");
+    private static final int SPEED_UP = Integer.getInteger("loadtest.speedUp", 4);
+    private static final long MAX_GAP_MS = Long.getLong("loadtest.maxGapMillis", 200);
+    private static final boolean FULL_DECODE = Boolean.getBoolean("loadtest.fullDecode");
+
+    // As on the phone, see integers.xml.
+    private static final long QUIET_WINDOW_MS = 400;
+    private static final long ART_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+    private static final long METADATA_TTL_MS = TimeUnit.DAYS.toMillis(7);
+    // A round watch with a chin, like the Moto 360.
+    private static final WatchDisplay DISPLAY = new WatchDisplay(320, 320, true, 30, 213, false,
+            false);
+    private static final long DRAIN_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Session time, running faster than real time and jumping ahead over the listening that the
+     * replay cuts short.
+     */
+    private static class SessionClock implements Clock {
+        private final long mStart = System.currentTimeMillis();
+        private long mSessionMillis;
+        private long mRealMillis = mStart;
+
+        synchronized void advanceTo(long sessionMillis) {
+            mSessionMillis = Math.max(now() - mStart, sessionMillis);
+            mRealMillis = System.currentTimeMillis();
+        }
+
+        @Override
+        public synchronized long now() {
+            return mStart + mSessionMillis + (System.currentTimeMillis() - mRealMillis) * SPEED_UP;
+        }
+    }
+
+    private File mDir;
+    private FakeSpotifyServer mSpotify;
+    private FakeDataLayer mDataLayer;
+    private JvmArtPlatform mPlatform;
+    private SpotifyClient mSpotifyClient;
+    private AlbumMetadataResolver mResolver;
+    private AlbumArtDiskCache mArtCache;
+    private ArtSyncOutbox mOutbox;
+    private SessionClock mSessionClock;
+    private AlbumArtPipeline<BufferedImage> mPipeline;
+    private final ExecutorService mControlExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mPrefetchExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger mOutstandingJobs = new AtomicInteger();
+
+    @BeforeClass
+    public static void onlyWhenAskedFor() {
+        Assume.assumeTrue(System.getProperty("loadtest.events") != null || SESSION != null);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("loadtest", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mSpotify = new FakeSpotifyServer();
+        mDataLayer = new FakeDataLayer();
+        mPlatform = new JvmArtPlatform(DISPLAY, mDataLayer, !FULL_DECODE);
+        mSpotifyClient = new SpotifyClient(mSpotify.spotifyService(),
+                new TokenBucket(AlbumArtService.SPOTIFY_BURST,
+                        AlbumArtService.SPOTIFY_REQUESTS_PER_SECOND * SPEED_UP, Clock.SYSTEM),
+                AlbumArtService.SPOTIFY_SPECULATIVE_RESERVE, AlbumArtService.SPOTIFY_MAX_ATTEMPTS,
+                AlbumArtService.SPOTIFY_BACKOFF_MS / SPEED_UP, Clock.SYSTEM,
+                SpotifyClient.Sleeper.SYSTEM);
+        mResolver = new AlbumMetadataResolver(mSpotifyClient, new File(mDir, "album_index"),
+                DISPLAY.maxDimension(), AlbumArtService.METADATA_MEMORY_ENTRIES,
+                AlbumArtService.METADATA_INDEX_ENTRIES, METADATA_TTL_MS, Clock.SYSTEM);
+        mArtCache = new AlbumArtDiskCache(new File(mDir, "albumart"), ART_CACHE_MAX_BYTES);
+        mOutbox = new ArtSyncOutbox(new File(mDir, "art_outbox"), mDataLayer,
+                new AlbumArtSyncStore(mDataLayer, AlbumArtService.SYNC_SLOTS,
+                        AlbumArtService.SYNC_MAX_BYTES), Clock.SYSTEM);
+        mSessionClock = new SessionClock();
+        mPipeline = new AlbumArtPipeline<>(mPlatform,
+                new TrackCoalescer(QUIET_WINDOW_MS / SPEED_UP, Clock.SYSTEM), mResolver,
+                mArtCache, new TrackSuccessorModel(new File(mDir, "track_successors"),
+                AlbumArtService.SUCCESSOR_TRACKS, AlbumArtService.SUCCESSORS_PER_TRACK),
+                mOutbox, mPrefetchExecutor, mSessionClock);
+        // The watch asks for art it was sent a reference to but does not have.
+        mDataLayer.setMissListener(new FakeDataLayer.MissListener() {
+            @Override
+            public void onMiss(final String cacheKey) {
+                mOutstandingJobs.incrementAndGet();
+                mControlExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPipeline.submitResend(cacheKey, new Runnable() {
+                            @Override
+                            public void run() {
+                                mOutstandingJobs.decrementAndGet();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mPipeline.shutdown();
+        mControlExecutor.shutdownNow();
+        mPrefetchExecutor.shutdownNow();
+        mSpotify.stop();
+        delete(mDir);
+    }
+
+    @Test
+    public void replaysListeningSession() throws Exception {
+        ListeningSession session;
+        if (SESSION != null) {
+            try (FileReader reader = new FileReader(SESSION)) {
+                session = ListeningSession.read(reader);
+            }
+        } else {
+            session = ListeningSession.synthesise(SEED, EVENTS);
+        }
+        for (Map.Entry<String, String> entry : session.albums().entrySet()) {
+            mSpotify.setAlbum(entry.getKey(), entry.getValue());
+        }
+
+        long start = System.currentTimeMillis();
+        replay(session);
+        long replayed = System.currentTimeMillis() - start;
+        assertTrue("Jobs still running: " + mOutstandingJobs, awaitJobs());
+        long drained = System.currentTimeMillis() - start;
+
+        Set<String> tracks = new HashSet<>();
+        Set<String> albums = new HashSet<>();
+        for (ListeningSession.Event event : session.events()) {
+            if (event.trackUri != null) {
+                String trackId = TrackIds.fromUri(event.trackUri);
+                tracks.add(trackId);
+                albums.add(mSpotify.albumOf(trackId));
+            }
+        }
+        System.out.println(report(session, tracks.size(), albums.size(), replayed, drained));
+
+        // Only art known to be on the watch is sent by reference.
+        assertEquals(0, mDataLayer.missCount());
+        for (String stage : new String[]{"resolve", "download", "encode", "sync"}) {
+            Pipeline.StageStats stats = mPipeline.stats(stage);
+            assertEquals(stats.toString(), 0, stats.failedCount + stats.timedOutCount);
+        }
+        // Lookups are shared and cached, so no track is looked up twice.
+        assertTrue(mSpotify.apiRequestCount() + " lookups for " + tracks.size() + " tracks",
+                mSpotify.apiRequestCount() <= tracks.size());
+        if (mPipeline.playbackState().playing) {
+            String lastTrackId = session.lastTrackId();
+            assertEquals(DISPLAY.cacheKey(mSpotify.albumOf(lastTrackId)),
+                    mDataLayer.lastCacheKey());
+            assertEquals(0, mOutbox.depth());
+        }
+    }
+
+    /**
+     * Delivers each broadcast at its time in the sped up session, on this thread, which stands
+     * in for the main thread.
+     */
+    private void replay(ListeningSession session) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long replayAt = 0;
+        long previousAt = 0;
+        long traceId = 0;
+        for (ListeningSession.Event event : session.events()) {
+            replayAt += Math.min((event.atMillis - previousAt) / SPEED_UP, MAX_GAP_MS);
+            previousAt = event.atMillis;
+            long wait = start + replayAt - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            mSessionClock.advanceTo(event.atMillis);
+
+            if (BroadcastTypes.METADATA_CHANGED.equals(event.action)) {
+                mOutstandingJobs.incrementAndGet();
+                if (!mPipeline.submitTrack(TrackIds.fromUri(event.trackUri), ++traceId,
+                        System.currentTimeMillis(), new Runnable() {
+                            @Override
+                            public void run() {
+                                mOutstandingJobs.decrementAndGet();
+                            }
+                        })) {
+                    mOutstandingJobs.decrementAndGet();
+                }
+            } else if (BroadcastTypes.PLAYBACK_STATE_CHANGED.equals(event.action)) {
+                final PlaybackState state = new PlaybackState(event.playing,
+                        event.positionMillis, System.currentTimeMillis());
+                mControlExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPipeline.updatePlaybackState(state);
+                    }
+                });
+            } else if (BroadcastTypes.QUEUE_CHANGED.equals(event.action)) {
+                mControlExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPipeline.onQueueChanged();
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean awaitJobs() throws Exception {
+        // Playback changes go through the control executor, after which the jobs finish.
+        mControlExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (mOutstandingJobs.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return mOutstandingJobs.get() == 0;
+    }
+
+    private String report(ListeningSession session, int tracks, int albums, long replayedMillis,
+                          long drainedMillis) {
+        long encodes = mPlatform.encodeCount();
+        return String.format(Locale.US, "Replayed %d broadcasts (%d track, %d playback and "
+                        + "%d queue changes) of %d distinct tracks on %d albums, from a %.1fh "
+                        + "session, in %.1fs at %dx, drained after %.1fs\n"
+                        + "Spotify api calls: %d, %s\n"
+                        + "Covers downloaded: %d (%d prefetched), %.1fKB\n"
+                        + "Covers decoded: %s\n"
+                        + "Covers encoded: %d, %.1fms cpu each, %.1fs cpu in all\n"
+                        + "Synced: %.1fKB, %s, %s\n"
+                        + "Latency to new art on the watch: %s, max %dms\n"
+                        + "Latency to cached art on the watch: %s, max %dms\n"
+                        + "Latency to placeholder: %s, max %dms\n"
+                        + "%s\n%s\n%s\n%s\n%s",
+                session.events().size(), session.count(BroadcastTypes.METADATA_CHANGED),
+                session.count(BroadcastTypes.PLAYBACK_STATE_CHANGED),
+                session.count(BroadcastTypes.QUEUE_CHANGED), tracks, albums,
+                session.durationMillis() / 3600000.0, replayedMillis / 1000.0, SPEED_UP,
+                drainedMillis / 1000.0,
+                mSpotify.apiRequestCount(), mSpotifyClient,
+                mPlatform.downloadCount(), mPlatform.speculativeDownloadCount(),
+                mPlatform.downloadedBytes() / 1024.0, mPlatform.decodeStats(),
+                encodes, encodes == 0 ? 0 : mPlatform.encodeCpuNanos() / 1e6 / encodes,
+                mPlatform.encodeCpuNanos() / 1e9,
+                mDataLayer.syncedBytes() / 1024.0, mDataLayer, mPipeline.syncStats(),
+                mDataLayer.artLatency(), mDataLayer.artLatency().percentile(100),
+                mDataLayer.referenceLatency(), mDataLayer.referenceLatency().percentile(100),
+                mDataLayer.placeholderLatency(), mDataLayer.placeholderLatency().percentile(100),
+                mPipeline, mResolver, mPipeline.prefetcher(), mArtCache, mOutbox);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
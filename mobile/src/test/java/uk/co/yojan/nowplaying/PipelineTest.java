@@ -0,0 +1,323 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PipelineTest {
+
+    private static class Job {
+        final int id;
+        final List<String> stages = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean cancelled;
+
+        Job(int id) {
+            this.id = id;
+        }
+    }
+
+    /** Records how each job ended and lets the test wait for all of them. */
+    private static class RecordingListener implements Pipeline.Listener<Job> {
+        final Map<Integer, Pipeline.Outcome> outcomes = new HashMap<>();
+        final Map<Integer, String> stages = new HashMap<>();
+        final CountDownLatch finished;
+
+        RecordingListener(int jobs) {
+            finished = new CountDownLatch(jobs);
+        }
+
+        @Override
+        public synchronized void onFinished(Job job, Pipeline.Outcome outcome, String stage,
+                                            Exception error) {
+            assertNull("finished twice: " + job.id, outcomes.put(job.id, outcome));
+            stages.put(job.id, stage);
+            finished.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("jobs did not finish", finished.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static Pipeline.Stage<Job> record(final String name) {
+        return new Pipeline.Stage<Job>() {
+            @Override
+            public boolean process(Job job) {
+                job.stages.add(name);
+                return true;
+            }
+        };
+    }
+
+    private static final Pipeline.Cancellation<Job> CANCELLATION =
+            new Pipeline.Cancellation<Job>() {
+                @Override
+                public boolean isCancelled(Job job) {
+                    return job.cancelled;
+                }
+            };
+
+    private Pipeline<Job> mPipeline;
+
+    @After
+    public void tearDown() {
+        if (mPipeline != null) {
+            mPipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void runsJobThroughStagesInOrder() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        mPipeline = new Pipeline<>(CANCELLATION, listener)
+                .addStage("resolve", 1, 4, 0, record("resolve"))
+                .addStage("download", 2, 4, 0, record("download"))
+                .addStage("encode", 1, 4, 0, record("encode"))
+                .addStage("sync", 1, 4, 0, record("sync"));
+        Job job = new Job(1);
+        mPipeline.submit(job);
+        listener.await();
+
+        assertEquals(Pipeline.Outcome.COMPLETED, listener.outcomes.get(1));
+        assertEquals(Arrays.asList("resolve", "download", "encode", "sync"), job.stages);
+        for (String stage : new String[]{"resolve", "download", "encode", "sync"}) {
+            assertEquals(1, mPipeline.stats(stage).processedCount);
+        }
+    }
+
+    @Test
+    public void stageCanStopJob() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        mPipeline = new Pipeline<>(CANCELLATION, listener)
+                .addStage("resolve", 1, 4, 0, new Pipeline.Stage<Job>() {
+                    @Override
+                    public boolean process(Job job) {
+                        return false;
+                    }
+                })
+                .addStage("sync", 1, 4, 0, record("sync"));
+        Job job = new Job(1);
+        mPipeline.submit(job);
+        listener.await();
+
+        assertEquals(Pipeline.Outcome.STOPPED, listener.outcomes.get(1));
+        assertTrue(job.stages.isEmpty());
+    }
+
+    @Test
+    public void fullQueueDropsOldestJob() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener(5);
+        mPipeline = new Pipeline<>(CANCELLATION, listener)
+                .addStage("download", 1, 2, 0, new Pipeline.Stage<Job>() {
+                    @Override
+                    public boolean process(Job job) throws Exception {
+                        started.countDown();
+                        release.await();
+                        return true;
+                    }
+                });
+        mPipeline.submit(new Job(0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // Job 0 holds the only thread, so the rest queue behind it.
+        for (int i = 1; i <= 4; i++) {
+            mPipeline.submit(new Job(i));
+        }
+        assertEquals(2, mPipeline.stats("download").queueDepth);
+        release.countDown();
+        listener.await();
+
+        assertEquals(Pipeline.Outcome.COMPLETED, listener.outcomes.get(0));
+        assertEquals(Pipeline.Outcome.DROPPED, listener.outcomes.get(1));
+        assertEquals(Pipeline.Outcome.DROPPED, listener.outcomes.get(2));
+        assertEquals(Pipeline.Outcome.COMPLETED, listener.outcomes.get(3));
+        assertEquals(Pipeline.Outcome.COMPLETED, listener.outcomes.get(4));
+        assertEquals(2, mPipeline.stats("download").droppedCount);
+    }
+
+    @Test
+    public void concurrentProducersOnAFullQueueReportEveryJobOnce() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final int producers = 4;
+        final int jobsEach = 50;
+        RecordingListener listener = new RecordingListener(producers * jobsEach);
+        mPipeline = new Pipeline<>(CANCELLATION, listener)
+                .addStage("download", 1, 2, 0, new Pipeline.Stage<Job>() {
+                    @Override
+                    public boolean process(Job job) throws Exception {
+                        release.await();
+                        return true;
+                    }
+                });
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int first = p * jobsEach;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = first; i < first + jobsEach; i++) {
+                        mPipeline.submit(new Job(i));
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        release.countDown();
+        listener.await();
+
+        assertEquals(producers * jobsEach, listener.outcomes.size());
+        Pipeline.StageStats stats = mPipeline.stats("download");
+        assertEquals(producers * jobsEach, stats.processedCount + stats.droppedCount);
+    }
+
+    @Test
+    public void slowStageTimesOut() throws Exception {
+        RecordingListener listener = new RecordingListener(2);
+        mPipeline = new Pipeline<>(CANCELLATION, listener)
+                .addStage("download", 1, 4, 50, new Pipeline.Stage<Job>() {
+                    @Override
+                    public boolean process(Job job) throws Exception {
+                        if (job.id == 1) {
+                            Thread.sleep(10000);
+                        }
+                        return true;
+                    }
+                })
+                .addStage("sync", 1, 4, 0, record("sync"));
+        Job slow = new Job(1);
+        Job fast = new Job(2);
+        mPipeline.submit(slow);
+        mPipeline.submit(fast);
+        listener.await();
+
+        assertEquals(Pipeline.Outcome.TIMED_OUT, listener.outcomes.get(1));
+        assertEquals("download", listener.stages.get(1));
+        assertTrue(slow.stages.isEmpty());
+        // The interrupt must not leak into the next job on the same thread.
+        assertEquals(Pipeline.Outcome.COMPLETED, listener.outcomes.get(2));
+        assertEquals(1, mPipeline.stats("download").timedOutCount);
+        assertTrue(mPipeline.stats("download").maxMillis < 5000);
+    }
+
+    @Test
+    public void timeoutCancelsStageThatIgnoresInterrupts() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        final CountDownLatch connection = new CountDownLatch(1);
+        mPipeline = new Pipeline<>(CANCELLATION, listener)
+                .addStage("download", 1, 4, 50, new Pipeline.CancellableStage<Job>() {
+                    @Override
+                    public boolean process(Job job) throws Exception {
+                        // Like a socket read, which only closing the connection ends.
+                        while (true) {
+                            try {
+                                connection.await();
+                                throw new IOException("Canceled");
+                            } catch (InterruptedException e) {
+                                job.stages.add("interrupted");
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void cancel(Job job) {
+                        connection.countDown();
+                    }
+                })
+                .addStage("sync", 1, 4, 0, record("sync"));
+        Job job = new Job(1);
+        mPipeline.submit(job);
+        listener.await();
+
+        assertEquals(Pipeline.Outcome.TIMED_OUT, listener.outcomes.get(1));
+        assertFalse(job.stages.contains("sync"));
+        assertTrue(mPipeline.stats("download").maxMillis < 5000);
+    }
+
+    @Test
+    public void stageThatReturnsDespiteTimeoutKeepsItsResult() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        mPipeline = new Pipeline<>(CANCELLATION, listener)
+                .addStage("encode", 1, 4, 20, new Pipeline.Stage<Job>() {
+                    @Override
+                    public boolean process(Job job) {
+                        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+                        while (System.nanoTime() < end) {
+                            // Busy, and never checks for the interrupt.
+                        }
+                        return true;
+                    }
+                })
+                .addStage("sync", 1, 4, 0, record("sync"));
+        Job job = new Job(1);
+        mPipeline.submit(job);
+        listener.await();
+
+        assertEquals(Pipeline.Outcome.COMPLETED, listener.outcomes.get(1));
+        assertEquals(Collections.singletonList("sync"), job.stages);
+        assertEquals(0, mPipeline.stats("encode").timedOutCount);
+    }
+
+    @Test
+    public void cancelledJobStopsBeforeNextStage() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        mPipeline = new Pipeline<>(CANCELLATION, listener)
+                .addStage("resolve", 1, 4, 0, new Pipeline.Stage<Job>() {
+                    @Override
+                    public boolean process(Job job) {
+                        job.stages.add("resolve");
+                        // e.g. the track was skipped while it was being resolved.
+                        job.cancelled = true;
+                        return true;
+                    }
+                })
+                .addStage("download", 1, 4, 0, record("download"));
+        Job job = new Job(1);
+        mPipeline.submit(job);
+        listener.await();
+
+        assertEquals(Pipeline.Outcome.CANCELLED, listener.outcomes.get(1));
+        assertEquals("download", listener.stages.get(1));
+        assertEquals(Collections.singletonList("resolve"), job.stages);
+        assertEquals(1, mPipeline.stats("download").cancelledCount);
+    }
+
+    @Test
+    public void failingStageReportsError() throws Exception {
+        final Exception failure = new Exception("network");
+        final Exception[] reported = new Exception[1];
+        final CountDownLatch finished = new CountDownLatch(1);
+        mPipeline = new Pipeline<>(CANCELLATION, new Pipeline.Listener<Job>() {
+            @Override
+            public void onFinished(Job job, Pipeline.Outcome outcome, String stage,
+                                   Exception error) {
+                reported[0] = error;
+                finished.countDown();
+            }
+        }).addStage("resolve", 1, 4, 0, new Pipeline.Stage<Job>() {
+            @Override
+            public boolean process(Job job) throws Exception {
+                throw failure;
+            }
+        });
+        mPipeline.submit(new Job(1));
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertSame(failure, reported[0]);
+        assertEquals(1, mPipeline.stats("resolve").failedCount);
+    }
+}
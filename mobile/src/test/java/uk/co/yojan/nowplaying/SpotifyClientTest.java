@@ -0,0 +1,228 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import kaaes.spotify.webapi.android.SpotifyService;
+import kaaes.spotify.webapi.android.models.Track;
+import retrofit.RetrofitError;
+
+import static org.junit.Assert.*;
+
+public class SpotifyClientTest {
+
+    private FakeSpotifyServer mSpotify;
+    private SpotifyService mSpotifyService;
+
+    private final AtomicLong mNow = new AtomicLong(1000);
+    private final AtomicLong mSlept = new AtomicLong();
+    // Once set, sleeps block until interrupted, after counting down the latch.
+    private volatile CountDownLatch mBlockSleeps;
+
+    private final Clock mClock = new Clock() {
+        @Override
+        public long now() {
+            return mNow.get();
+        }
+    };
+
+    // Moves the clock on instead of sleeping.
+    private final SpotifyClient.Sleeper mSleeper = new SpotifyClient.Sleeper() {
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            CountDownLatch blockSleeps = mBlockSleeps;
+            if (blockSleeps != null) {
+                blockSleeps.countDown();
+                new CountDownLatch(1).await();
+            }
+            mSlept.addAndGet(millis);
+            mNow.addAndGet(millis);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mSpotify = new FakeSpotifyServer();
+        mSpotifyService = mSpotify.spotifyService();
+    }
+
+    @After
+    public void tearDown() {
+        mSpotify.stop();
+    }
+
+    private SpotifyClient newClient(int burst, double perSecond, int reserve) {
+        return new SpotifyClient(mSpotifyService, new TokenBucket(burst, perSecond, mClock),
+                reserve, 3, 10, mClock, mSleeper);
+    }
+
+    @Test
+    public void concurrentLookupsOfTheSameTrackShareOneRequest() throws Exception {
+        mSpotify.apiDelayMillis = 300;
+        final SpotifyClient client = newClient(10, 1, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Track>> lookups = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final SpotifyClient.Priority priority = i % 2 == 0
+                    ? SpotifyClient.Priority.CURRENT : SpotifyClient.Priority.SPECULATIVE;
+            lookups.add(executor.submit(new Callable<Track>() {
+                @Override
+                public Track call() throws Exception {
+                    start.await();
+                    return client.getTrack("t1", priority);
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Track> lookup : lookups) {
+            assertEquals("album-t1", lookup.get().album.id);
+        }
+        executor.shutdown();
+
+        assertEquals(1, mSpotify.requests("t1"));
+        assertEquals(7, client.mergedCount());
+    }
+
+    @Test
+    public void currentTrackWaitsOutRetryAfter() throws Exception {
+        mSpotify.fail("t1", 429, 1);
+        SpotifyClient client = newClient(10, 1, 0);
+
+        Track track = client.getTrack("t1", SpotifyClient.Priority.CURRENT);
+
+        assertEquals("album-t1", track.album.id);
+        assertEquals(2, mSpotify.requests("t1"));
+        assertEquals(1, client.tooManyRequestsCount());
+        assertTrue("Retried after " + mSlept + "ms", mSlept.get() >= 1000);
+        // Jitter never adds more than a quarter.
+        assertTrue("Retried after " + mSlept + "ms", mSlept.get() <= 1250);
+    }
+
+    @Test
+    public void speculativeLookupsGiveWayAfter429() throws Exception {
+        mSpotify.fail("t1", 429, 1);
+        SpotifyClient client = newClient(10, 1, 0);
+
+        try {
+            client.getTrack("t1", SpotifyClient.Priority.SPECULATIVE);
+            fail("Speculative lookup retried");
+        } catch (RetrofitError e) {
+            assertEquals(429, e.getResponse().getStatus());
+        }
+        try {
+            client.getTrack("t2", SpotifyClient.Priority.SPECULATIVE);
+            fail("Speculative lookup ignored Retry-After");
+        } catch (SpotifyClient.RateLimitedException e) {
+            // Expected.
+        }
+        assertEquals(0, mSpotify.requests("t2"));
+
+        // The current track still gets through once Retry-After has passed.
+        assertEquals("album-t2",
+                client.getTrack("t2", SpotifyClient.Priority.CURRENT).album.id);
+        assertEquals(1, mSpotify.requests("t2"));
+        assertEquals(1, client.rejectedCount());
+    }
+
+    @Test
+    public void speculativeLookupsLeaveReserveForCurrentTrack() throws Exception {
+        SpotifyClient client = newClient(4, 0.01, 2);
+        client.getTrack("t1", SpotifyClient.Priority.SPECULATIVE);
+        client.getTrack("t2", SpotifyClient.Priority.SPECULATIVE);
+        try {
+            client.getTrack("t3", SpotifyClient.Priority.SPECULATIVE);
+            fail("Speculative lookup took the reserve");
+        } catch (SpotifyClient.RateLimitedException e) {
+            // Expected.
+        }
+        assertEquals("album-t3",
+                client.getTrack("t3", SpotifyClient.Priority.CURRENT).album.id);
+        assertEquals("album-t4",
+                client.getTrack("t4", SpotifyClient.Priority.CURRENT).album.id);
+        assertEquals(4, client.requestCount());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            mSpotify.fail("t1", 503, -1);
+        }
+        SpotifyClient client = newClient(10, 1, 0);
+        try {
+            client.getTrack("t1", SpotifyClient.Priority.CURRENT);
+            fail("Did not give up");
+        } catch (RetrofitError e) {
+            assertEquals(503, e.getResponse().getStatus());
+        }
+        assertEquals(3, mSpotify.requests("t1"));
+    }
+
+    @Test
+    public void lookupsThatJoinedAnInterruptedLookupRetry() throws Exception {
+        mSpotify.fail("t1", 503, -1);
+        mBlockSleeps = new CountDownLatch(1);
+        final SpotifyClient client = newClient(10, 1, 0);
+        final AtomicReference<Throwable> leaderError = new AtomicReference<>();
+        Thread leader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.getTrack("t1", SpotifyClient.Priority.CURRENT);
+                } catch (Throwable t) {
+                    leaderError.set(t);
+                }
+            }
+        });
+        leader.start();
+        // The leader is backing off after the 503.
+        assertTrue(mBlockSleeps.await(10, TimeUnit.SECONDS));
+        mBlockSleeps = null;
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Track> follower = executor.submit(new Callable<Track>() {
+            @Override
+            public Track call() throws Exception {
+                return client.getTrack("t1", SpotifyClient.Priority.CURRENT);
+            }
+        });
+        long deadline = System.currentTimeMillis() + 10000;
+        while (client.mergedCount() == 0) {
+            assertTrue("Never joined", System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+        leader.interrupt();
+        leader.join(10000);
+
+        assertTrue(leaderError.get() instanceof InterruptedException);
+        assertEquals("album-t1", follower.get(10, TimeUnit.SECONDS).album.id);
+        assertEquals(2, mSpotify.requests("t1"));
+        executor.shutdown();
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        mSpotify.fail("t1", 404, -1);
+        SpotifyClient client = newClient(10, 1, 0);
+        try {
+            client.getTrack("t1", SpotifyClient.Priority.CURRENT);
+            fail("Not found was not thrown");
+        } catch (RetrofitError e) {
+            assertEquals(404, e.getResponse().getStatus());
+        }
+        assertEquals(1, mSpotify.requests("t1"));
+    }
+}
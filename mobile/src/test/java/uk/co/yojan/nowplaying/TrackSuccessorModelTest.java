@@ -0,0 +1,79 @@
+package uk.co.yojan.nowplaying;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TrackSuccessorModelTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("successors", "");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void predictsMostFrequentSuccessorsFirst() {
+        TrackSuccessorModel model = new TrackSuccessorModel(mFile, 100, 4);
+        for (String trackId : Arrays.asList("a", "b", "a", "c", "a", "c", "a", "d")) {
+            model.recordPlay(trackId);
+        }
+        assertEquals(Arrays.asList("c", "b"), model.predictNext("a", 2));
+        assertEquals(Collections.singletonList("a"), model.predictNext("c", 3));
+        assertTrue(model.predictNext("unknown", 3).isEmpty());
+    }
+
+    @Test
+    public void ignoresRepeatedPlaysOfSameTrack() {
+        TrackSuccessorModel model = new TrackSuccessorModel(mFile, 100, 4);
+        model.recordPlay("a");
+        model.recordPlay("a");
+        assertTrue(model.predictNext("a", 1).isEmpty());
+    }
+
+    @Test
+    public void successorsPerTrackAreBounded() {
+        TrackSuccessorModel model = new TrackSuccessorModel(mFile, 100, 2);
+        for (String trackId : Arrays.asList("a", "b", "a", "b", "a", "c", "a", "d")) {
+            model.recordPlay(trackId);
+        }
+        // c was the least frequent when d arrived, the latest successor is always kept.
+        assertEquals(Arrays.asList("b", "d"), model.predictNext("a", 5));
+    }
+
+    @Test
+    public void tracksAreBounded() {
+        TrackSuccessorModel model = new TrackSuccessorModel(mFile, 2, 4);
+        for (String trackId : Arrays.asList("a", "b", "c", "d")) {
+            model.recordPlay(trackId);
+        }
+        assertTrue(model.predictNext("a", 1).isEmpty());
+        assertEquals(Collections.singletonList("d"), model.predictNext("c", 1));
+    }
+
+    @Test
+    public void survivesReopening() {
+        TrackSuccessorModel model = new TrackSuccessorModel(mFile, 100, 4);
+        model.recordPlay("a");
+        model.recordPlay("b");
+
+        TrackSuccessorModel reopened = new TrackSuccessorModel(mFile, 100, 4);
+        assertEquals("b", reopened.lastTrackId());
+        assertEquals(Collections.singletonList("b"), reopened.predictNext("a", 1));
+        reopened.recordPlay("c");
+        assertEquals(Collections.singletonList("c"), reopened.predictNext("b", 1));
+    }
+}
@@ -0,0 +1,138 @@
+package uk.co.yojan.nowplaying;
+
+import android.graphics.Bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the art last shown as raw pixels, already sized for the surface, so that a new engine
+ * can draw it within a few frames without waiting for the data layer or decoding an image.
+ */
+public class ArtSnapshotStore {
+
+    private static final int MAGIC = 0x4e504153;
+    private static final int VERSION = 1;
+
+    /**
+     * A copy of a bitmap's pixels, taken before the bitmap is handed to the UI thread.
+     */
+    public static class Pixels {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+        final byte[] data;
+
+        Pixels(int width, int height, Bitmap.Config config, byte[] data) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+            this.data = data;
+        }
+
+        public static Pixels copyOf(Bitmap bitmap) {
+            ByteBuffer buffer = ByteBuffer.allocate(bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(buffer);
+            return new Pixels(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig(),
+                    buffer.array());
+        }
+
+        Bitmap toBitmap() {
+            Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(data));
+            return bitmap;
+        }
+    }
+
+    public static class Snapshot {
+        public final String albumArtHash;
+        public final Bitmap albumArt;
+        public final Bitmap ambientAlbumArt;
+
+        Snapshot(String albumArtHash, Bitmap albumArt, Bitmap ambientAlbumArt) {
+            this.albumArtHash = albumArtHash;
+            this.albumArt = albumArt;
+            this.ambientAlbumArt = ambientAlbumArt;
+        }
+    }
+
+    private final File mFile;
+
+    public ArtSnapshotStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Replaces the snapshot. Blocks on disk, so must not be called on the UI thread.
+     */
+    public synchronized void write(String albumArtHash, Pixels albumArt, Pixels ambientAlbumArt) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(albumArtHash == null ? "" : albumArtHash);
+            writePixels(out, albumArt);
+            writePixels(out, ambientAlbumArt);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Returns the last snapshot written, or null if there is none or it cannot be read. Blocks
+     * on disk, so must not be called on the UI thread.
+     */
+    public synchronized Snapshot read() {
+        if (!mFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String albumArtHash = in.readUTF();
+            Pixels albumArt = readPixels(in);
+            Pixels ambientAlbumArt = readPixels(in);
+            return new Snapshot(albumArtHash.isEmpty() ? null : albumArtHash,
+                    albumArt.toBitmap(), ambientAlbumArt.toBitmap());
+        } catch (IOException | RuntimeException e) {
+            // Truncated or from an older format, the next track replaces it.
+            mFile.delete();
+            return null;
+        }
+    }
+
+    private static void writePixels(DataOutputStream out, Pixels pixels) throws IOException {
+        out.writeInt(pixels.width);
+        out.writeInt(pixels.height);
+        out.writeUTF(pixels.config.name());
+        out.writeInt(pixels.data.length);
+        out.write(pixels.data);
+    }
+
+    private static Pixels readPixels(DataInputStream in) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+        Bitmap.Config config = Bitmap.Config.valueOf(in.readUTF());
+        int length = in.readInt();
+        if (width <= 0 || height <= 0 || length < 0 || length > 16 * 1024 * 1024) {
+            throw new IOException("Corrupt snapshot");
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new Pixels(width, height, config, data);
+    }
+}
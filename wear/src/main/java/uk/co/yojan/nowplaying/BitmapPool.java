@@ -0,0 +1,121 @@
+package uk.co.yojan.nowplaying;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Small pool of mutable bitmaps that decodes can reuse through
+ * {@link BitmapFactory.Options#inBitmap}, so that steady-state playback allocates no new
+ * bitmaps and causes no GC pauses on the watch.
+ */
+public class BitmapPool {
+
+    private final long mMaxBytes;
+    private final List<Bitmap> mBitmaps = new ArrayList<>();
+    private long mSize;
+
+    private long mAllocationCount;
+    private long mReuseCount;
+    private long mEvictionCount;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Removes and returns the smallest pooled bitmap that can hold a width x height decode in
+     * the given config, or null if there is none.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        Bitmap best = null;
+        for (Bitmap bitmap : mBitmaps) {
+            if (bitmap.getAllocationByteCount() >= needed && (best == null
+                    || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best != null) {
+            mBitmaps.remove(best);
+            mSize -= best.getAllocationByteCount();
+        }
+        return best;
+    }
+
+    /**
+     * Returns a bitmap that is no longer drawn to the pool, evicting the oldest pooled bitmaps
+     * if it would go over budget. The caller must not use the bitmap afterwards.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getAllocationByteCount() > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        mBitmaps.add(bitmap);
+        mSize += bitmap.getAllocationByteCount();
+        Iterator<Bitmap> it = mBitmaps.iterator();
+        while (mSize > mMaxBytes && it.hasNext()) {
+            Bitmap eldest = it.next();
+            it.remove();
+            mSize -= eldest.getAllocationByteCount();
+            eldest.recycle();
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Records whether a decode reused the pooled bitmap it was offered.
+     */
+    public synchronized void recordDecode(Bitmap decoded, Bitmap offered) {
+        if (decoded == null) {
+            return;
+        }
+        if (offered != null && decoded == offered) {
+            mReuseCount++;
+        } else {
+            mAllocationCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mSize = 0;
+    }
+
+    public synchronized long allocationCount() {
+        return mAllocationCount;
+    }
+
+    public synchronized long reuseCount() {
+        return mReuseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapPool[pooled=%d, size=%d/%d, allocations=%d, reuses=%d, "
+                        + "evictions=%d]", mBitmaps.size(), mSize, mMaxBytes, mAllocationCount,
+                mReuseCount, mEvictionCount);
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package uk.co.yojan.nowplaying;
+
+/**
+ * Running statistics of how long frames take to draw.
+ */
+public class FrameCostMeter {
+
+    private final String mName;
+    private long mFrames;
+    private long mTotalNanos;
+    private long mMinNanos = Long.MAX_VALUE;
+    private long mMaxNanos;
+
+    public FrameCostMeter(String name) {
+        mName = name;
+    }
+
+    public synchronized void record(long nanos) {
+        mFrames++;
+        mTotalNanos += nanos;
+        mMinNanos = Math.min(mMinNanos, nanos);
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    public synchronized long frames() {
+        return mFrames;
+    }
+
+    public synchronized double averageMillis() {
+        return mFrames == 0 ? 0 : mTotalNanos / 1e6 / mFrames;
+    }
+
+    public synchronized double maxMillis() {
+        return mMaxNanos / 1e6;
+    }
+
+    public synchronized void reset() {
+        mFrames = 0;
+        mTotalNanos = 0;
+        mMinNanos = Long.MAX_VALUE;
+        mMaxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: frames=%d avg=%.3fms min=%.3fms max=%.3fms", mName, mFrames,
+                averageMillis(), mFrames == 0 ? 0 : mMinNanos / 1e6, maxMillis());
+    }
+}
@@ -27,7 +27,8 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.os.AsyncTask;
+import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -36,20 +37,32 @@ import android.support.wearable.watchface.WatchFaceStyle;
 import android.text.format.Time;
 import android.util.Log;
 import android.view.SurfaceHolder;
+import android.view.WindowInsets;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Analog watch face with a ticking second hand. In ambient mode, the second hand isn't shown. On
@@ -59,22 +72,71 @@ import java.util.concurrent.TimeUnit;
 
     private static final String TAG = "NowPlayingWatchface";
 
-    private static final boolean SHOW_SECONDS = false;
+    /**
+     * Second hand to draw in interactive mode, if battery and playback allow it.
+     */
+    private static final FrameScheduler.SecondsMode SECONDS_MODE = FrameScheduler.SecondsMode.NONE;
 
     /**
-     * Update rate in milliseconds for interactive mode. We update once a second to advance the
-     * second hand.
+     * Whether to draw the background from a cached layer. Turn off to compare the frame cost of
+     * drawing everything every frame.
      */
-    private static final long INTERACTIVE_UPDATE_RATE_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final boolean USE_BACKGROUND_LAYER = true;
 
     /**
      * Handler message id for updating the time periodically in interactive mode.
      */
     private static final int MSG_UPDATE_TIME = 0;
 
+    /**
+     * Enough for the album art and its ambient variant of the previous track at full screen.
+     */
+    private static final long BITMAP_POOL_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Encoded art of recently shown albums, so that the phone can sync them by reference.
+     */
+    private static final long ART_STORE_BYTES = 4 * 1024 * 1024;
+
+    private static final int TRACE_WINDOW = 200;
+
+    private static final long ASSET_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Latency of each track change, continued from the trace started on the phone.
+     */
+    private final Tracer mTracer = new Tracer(TRACE_WINDOW);
+    private Engine mEngine;
+
     @Override
     public Engine onCreateEngine() {
-        return new Engine();
+        mEngine = new Engine();
+        return mEngine;
+    }
+
+    /**
+     * Dumps the latency histograms and frame costs, for
+     * adb shell dumpsys activity service uk.co.yojan.nowplaying/.NowPlayingWatchface
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        writer.println("Latency since the track change on the phone, by stage:");
+        writer.print(mTracer.dump());
+        Engine engine = mEngine;
+        if (engine != null) {
+            writer.println(engine.mFrameScheduler);
+            writer.println(engine.mPlaybackState + (engine.mFullArtReleased
+                    ? ", full art released" : ""));
+            writer.println(engine.mInteractiveFrameCost);
+            writer.println(engine.mAmbientFrameCost);
+            writer.println(engine.mDecodeWorker);
+            writer.println(engine.mBitmapPool);
+            writer.println(engine.mArtStore + ", bytes saved=" + engine.mArtBytesSaved);
+            writer.println(engine.mConnection);
+            writer.println("First frame with art " + engine.mFirstArtFrameMillis
+                    + "ms after onCreate, from " + engine.mFirstArtSource);
+        }
     }
 
     @Override
@@ -102,14 +164,89 @@ import java.util.concurrent.TimeUnit;
         }
     }
 
+    /**
+     * Decoded art for a track, handed from the decode worker to the UI thread.
+     */
+    private static class DecodedArt {
+        /** Null to show no art at all. */
+        final Bitmap albumArt;
+        final Bitmap ambientAlbumArt;
+        final long traceId;
+        /** Wall clock time of the track change if this is a placeholder, otherwise 0. */
+        final long placeholderTraceStart;
+
+        DecodedArt(Bitmap albumArt, Bitmap ambientAlbumArt, long traceId,
+                   long placeholderTraceStart) {
+            this.albumArt = albumArt;
+            this.ambientAlbumArt = ambientAlbumArt;
+            this.traceId = traceId;
+            this.placeholderTraceStart = placeholderTraceStart;
+        }
+    }
+
     private class Engine extends CanvasWatchFaceService.Engine implements DataApi.DataListener {
-        private GoogleApiClient mGoogleApiClient;
+        // Held from onCreate to onDestroy, so art synced while invisible is still delivered.
+        private WearableConnection mConnection;
+        private final SharedConnection.Listener mConnectionListener =
+                new SharedConnection.Listener() {
+                    @Override
+                    public void onConnected() {
+                        Wearable.DataApi.addListener(mConnection.client(), Engine.this);
+                        publishDisplay();
+                        reconcileArt(false);
+                        reconcilePlayback();
+                    }
+                };
+        // Only touched on the UI thread.
         private Bitmap currentAlbumArt;
+        // Precomputed on the phone, so entering ambient mode needs no image processing.
+        private Bitmap currentAmbientAlbumArt;
+        // Newest decoded art that has not been drawn yet, swapped in by the next frame.
+        private final AtomicReference<DecodedArt> mDecodedArt = new AtomicReference<>();
+        // Ordered by when the phone sent each item. A null item loads the snapshot, which is
+        // older than anything synced.
+        private final LatestWinsWorker<DataMapItem> mDecodeWorker =
+                new LatestWinsWorker<>("art-decode", new LatestWinsWorker.Task<DataMapItem>() {
+                    @Override
+                    public void run(DataMapItem item, long sentAt) {
+                        if (item == null) {
+                            loadArtSnapshot(sentAt);
+                        } else {
+                            decodeArt(item, sentAt);
+                        }
+                    }
+                });
+        private final BitmapPool mBitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
+        private AlbumArtDiskCache mArtStore;
+        private long mArtBytesSaved;
+        // The art last decoded, drawn on the first frame after a restart.
+        private ArtSnapshotStore mArtSnapshot;
+        private volatile String mArtHash;
+        // Hash of the art in the snapshot, so that art restored on resume is not written again.
+        private String mSnapshotHash;
+        // Cache key of the last full art published, so that a late placeholder never replaces it.
+        private volatile String mFullArtCacheKey;
+        private long mCreatedNanos;
+        private volatile String mFirstArtSource = "sync";
+        private long mFirstArtFrameMillis = -1;
 
         final Handler mUpdateTimeHandler = new EngineHandler(this);
         boolean mRegisteredTimeZoneReceiver = false;
         Paint mBackgroundPaint;
         Paint mHandPaint;
+        Paint mArtScalePaint;
+        Paint mScrimPaint;
+        Bitmap mBackgroundLayer;
+        Canvas mBackgroundLayerCanvas;
+        boolean mBackgroundLayerDirty = true;
+        boolean mBackgroundLayerAmbient;
+        long mBackgroundLayerRebuilds;
+        // Trace of the art swapped in but not drawn yet.
+        long mUndrawnTraceId;
+        long mUndrawnPlaceholderTraceStart;
+        PlaybackState mPlaybackState = PlaybackState.UNKNOWN;
+        // Whether the full colour art was let go while paused, the ambient variant is kept.
+        boolean mFullArtReleased;
         boolean mAmbient;
         Time mTime;
         final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
@@ -119,15 +256,33 @@ import java.util.concurrent.TimeUnit;
                 mTime.setToNow();
             }
         };
+        final FrameScheduler mFrameScheduler = new FrameScheduler(SECONDS_MODE);
+        final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                updateBattery(intent);
+            }
+        };
         /**
          * Whether the display supports fewer bits for each color in ambient mode. When true, we
          * disable anti-aliasing in ambient mode.
          */
         boolean mLowBitAmbient;
+        boolean mBurnInProtection;
+
+        final FrameCostMeter mInteractiveFrameCost = new FrameCostMeter("interactive");
+        final FrameCostMeter mAmbientFrameCost = new FrameCostMeter("ambient");
+
+        int mSurfaceWidth;
+        int mSurfaceHeight;
+        boolean mRound;
+        int mChinHeight;
+        WatchDisplay mPublishedDisplay;
 
         @Override
         public void onCreate(SurfaceHolder holder) {
             Log.d(TAG, "onCreate");
+            mCreatedNanos = System.nanoTime();
             super.onCreate(holder);
 
             setWatchFaceStyle(new WatchFaceStyle.Builder(NowPlayingWatchface.this)
@@ -147,47 +302,227 @@ import java.util.concurrent.TimeUnit;
             mHandPaint.setAntiAlias(true);
             mHandPaint.setStrokeCap(Paint.Cap.ROUND);
 
+            // Only used if the art was not sized for this surface.
+            mArtScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+            mScrimPaint = new Paint();
+            mScrimPaint.setColor(resources.getColor(R.color.art_scrim));
+
             mTime = new Time();
 
-            initializeGoogleApiClient();
+            mArtStore = new AlbumArtDiskCache(new File(getCacheDir(), "albumart"), ART_STORE_BYTES);
+            mArtSnapshot = new ArtSnapshotStore(new File(getFilesDir(), "last_art"));
+            mDecodeWorker.submit(null, 0);
+
+            mConnection = WearableConnection.get(NowPlayingWatchface.this);
+            mConnection.addListener(mConnectionListener);
+            mConnection.acquire();
+            if (mConnection.isConnected()) {
+                // Still up from an earlier engine, so there will be no callback.
+                mConnectionListener.onConnected();
+            }
         }
 
-        private void initializeGoogleApiClient() {
-            if (mGoogleApiClient == null) {
-                mGoogleApiClient = new GoogleApiClient.Builder(NowPlayingWatchface.this)
-                        .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
-                            @Override
-                            public void onConnected(Bundle connectionHint) {
-                                Wearable.DataApi.addListener(mGoogleApiClient, Engine.this);
-                            }
+        /**
+         * Shows the art from before the restart, on the decode worker, unless art synced since
+         * has superseded it. A few hundred kilobytes of raw pixels read faster than the data
+         * layer can connect.
+         */
+        private void loadArtSnapshot(long sentAt) {
+            long start = System.nanoTime();
+            ArtSnapshotStore.Snapshot snapshot = mArtSnapshot.read();
+            if (snapshot == null) {
+                return;
+            }
+            if (!mDecodeWorker.isCurrent(sentAt)) {
+                snapshot.albumArt.recycle();
+                snapshot.ambientAlbumArt.recycle();
+                return;
+            }
+            mArtHash = snapshot.albumArtHash;
+            mSnapshotHash = snapshot.albumArtHash;
+            mFirstArtSource = "snapshot";
+            publish(new DecodedArt(snapshot.albumArt, snapshot.ambientAlbumArt, 0, 0));
+            Log.d(TAG, String.format("Loaded art snapshot in %.1fms",
+                    (System.nanoTime() - start) / 1e6));
+        }
 
-                            @Override
-                            public void onConnectionSuspended(int cause) {
-                                Log.d(TAG, "onConnectionSuspended: " + cause);
+        /**
+         * Catches up with art synced while the watch face was not listening, such as during a
+         * restart, if it differs from the art already shown or if forced. The newest item goes
+         * through the decode worker like a live one, so it is dropped if art sent later has
+         * already arrived.
+         */
+        private void reconcileArt(final boolean force) {
+            Uri uri = new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME)
+                    .path(AlbumArtItem.PATH).build();
+            Wearable.DataApi.getDataItems(mConnection.client(), uri, DataApi.FILTER_PREFIX)
+                    .setResultCallback(new ResultCallback<DataItemBuffer>() {
+                        @Override
+                        public void onResult(DataItemBuffer dataItems) {
+                            DataMapItem newest = null;
+                            try {
+                                for (DataItem dataItem : dataItems) {
+                                    DataMapItem item = DataMapItem.fromDataItem(dataItem);
+                                    if (newest == null || sentAt(item) > sentAt(newest)) {
+                                        newest = item;
+                                    }
+                                }
+                            } finally {
+                                dataItems.release();
+                            }
+                            if (newest == null) {
+                                return;
+                            }
+                            String hash = newest.getDataMap()
+                                    .getString(AlbumArtItem.KEY_ALBUM_ART_HASH);
+                            if (force || hash == null || !hash.equals(mArtHash)) {
+                                Log.d(TAG, "Reconciling art with " + newest.getUri());
+                                mDecodeWorker.submit(newest, sentAt(newest));
                             }
-                        })
-                        .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
-                            @Override
-                            public void onConnectionFailed(ConnectionResult result) {
-                                Log.d(TAG, "onConnectionFailed: " + result);
+                        }
+                    });
+        }
+
+        /**
+         * Catches up with the playback state, which may have changed while not listening.
+         */
+        private void reconcilePlayback() {
+            Uri uri = new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME)
+                    .path(PlaybackState.PATH).build();
+            Wearable.DataApi.getDataItems(mConnection.client(), uri, DataApi.FILTER_PREFIX)
+                    .setResultCallback(new ResultCallback<DataItemBuffer>() {
+                        @Override
+                        public void onResult(DataItemBuffer dataItems) {
+                            try {
+                                for (DataItem dataItem : dataItems) {
+                                    updatePlayback(
+                                            DataMapItem.fromDataItem(dataItem).getDataMap());
+                                }
+                            } finally {
+                                dataItems.release();
                             }
-                        })
-                        // Request access only to the Wearable API
-                        .addApi(Wearable.API)
-                        .build();
+                        }
+                    });
+        }
+
+        /**
+         * Idles while paused: no second hand, and only the ambient variant of the art is kept in
+         * memory. The full art is restored from the local store on resume.
+         */
+        private void updatePlayback(DataMap dataMap) {
+            PlaybackState state = new PlaybackState(
+                    dataMap.getBoolean(PlaybackState.KEY_PLAYING, true),
+                    dataMap.getLong(PlaybackState.KEY_POSITION),
+                    dataMap.getLong(PlaybackState.KEY_UPDATED_AT));
+            if (state.updatedAtMillis < mPlaybackState.updatedAtMillis) {
+                return;
             }
+            boolean changed = state.playing != mPlaybackState.playing;
+            mPlaybackState = state;
+            if (!changed) {
+                return;
+            }
+            Log.d(TAG, state.toString());
+            mFrameScheduler.setPlaying(state.playing);
+            updateTimer();
+            if (!state.playing) {
+                releaseFullArt();
+            } else if (mFullArtReleased) {
+                // Decoded from the local store, as the phone sent it by reference.
+                reconcileArt(true);
+            }
+            invalidate();
+        }
+
+        /**
+         * Lets go of the full colour art and any pooled bitmaps, drawing the ambient variant in
+         * its place. Placeholders, which have no ambient variant, are small enough to keep.
+         */
+        private void releaseFullArt() {
+            if (currentAlbumArt == null || currentAmbientAlbumArt == null) {
+                return;
+            }
+            currentAlbumArt.recycle();
+            currentAlbumArt = null;
+            mBitmapPool.clear();
+            mFullArtReleased = true;
+            mBackgroundLayerDirty = true;
+            Log.d(TAG, "Released full art, " + mBitmapPool);
+        }
+
+        private long sentAt(DataMapItem item) {
+            return item.getDataMap().getLong(AlbumArtItem.KEY_SENT_AT);
         }
 
         @Override
         public void onDestroy() {
             mUpdateTimeHandler.removeMessages(MSG_UPDATE_TIME);
+            mDecodeWorker.shutdown();
+            mDecodedArt.set(null);
+            mBitmapPool.clear();
+            if (mBackgroundLayer != null) {
+                mBackgroundLayer.recycle();
+                mBackgroundLayer = null;
+            }
+            mConnection.removeListener(mConnectionListener);
+            if (mConnection.isConnected()) {
+                Wearable.DataApi.removeListener(mConnection.client(), this);
+            }
+            mConnection.release();
             super.onDestroy();
         }
 
+        @Override
+        public void onApplyWindowInsets(WindowInsets insets) {
+            super.onApplyWindowInsets(insets);
+            mRound = insets.isRound();
+            mChinHeight = insets.getSystemWindowInsetBottom();
+            publishDisplay();
+        }
+
+        @Override
+        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            super.onSurfaceChanged(holder, format, width, height);
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+            publishDisplay();
+        }
+
+        /**
+         * Tells the phone the size and shape of the surface, so that it sends album art that can
+         * be drawn as is.
+         */
+        private void publishDisplay() {
+            if (mSurfaceWidth == 0 || mSurfaceHeight == 0) {
+                return;
+            }
+            WatchDisplay display = new WatchDisplay(mSurfaceWidth, mSurfaceHeight, mRound,
+                    mChinHeight, getResources().getDisplayMetrics().densityDpi, mLowBitAmbient,
+                    mBurnInProtection);
+            if (display.equals(mPublishedDisplay) || !mConnection.isConnected()) {
+                return;
+            }
+            PutDataMapRequest request = PutDataMapRequest.create(WatchDisplay.PATH);
+            DataMap dataMap = request.getDataMap();
+            dataMap.putInt(WatchDisplay.KEY_WIDTH, display.width);
+            dataMap.putInt(WatchDisplay.KEY_HEIGHT, display.height);
+            dataMap.putBoolean(WatchDisplay.KEY_ROUND, display.round);
+            dataMap.putInt(WatchDisplay.KEY_CHIN_HEIGHT, display.chinHeight);
+            dataMap.putInt(WatchDisplay.KEY_DENSITY_DPI, display.densityDpi);
+            dataMap.putBoolean(WatchDisplay.KEY_LOW_BIT_AMBIENT, display.lowBitAmbient);
+            dataMap.putBoolean(WatchDisplay.KEY_BURN_IN_PROTECTION, display.burnInProtection);
+            Wearable.DataApi.putDataItem(mConnection.client(), request.asPutDataRequest());
+            mPublishedDisplay = display;
+            Log.d(TAG, "Published " + display);
+        }
+
         @Override
         public void onPropertiesChanged(Bundle properties) {
             super.onPropertiesChanged(properties);
             mLowBitAmbient = properties.getBoolean(PROPERTY_LOW_BIT_AMBIENT, false);
+            mBurnInProtection = properties.getBoolean(PROPERTY_BURN_IN_PROTECTION, false);
+            publishDisplay();
         }
 
         @Override
@@ -200,6 +535,9 @@ import java.util.concurrent.TimeUnit;
         public void onAmbientModeChanged(boolean inAmbientMode) {
             super.onAmbientModeChanged(inAmbientMode);
             if (mAmbient != inAmbientMode) {
+                Log.d(TAG, (mAmbient ? mAmbientFrameCost : mInteractiveFrameCost)
+                        + ", background layer rebuilds=" + mBackgroundLayerRebuilds
+                        + ", " + mFrameScheduler);
                 mAmbient = inAmbientMode;
                 if (mLowBitAmbient) {
                     mHandPaint.setAntiAlias(!inAmbientMode);
@@ -214,17 +552,28 @@ import java.util.concurrent.TimeUnit;
 
         @Override
         public void onDraw(Canvas canvas, Rect bounds) {
-            mTime.setToNow();
+            long frameStart = System.nanoTime();
+            // One reading for the whole frame, so a sweeping hand's second and millis agree.
+            long nowMillis = System.currentTimeMillis();
+            mTime.set(nowMillis);
+
+            DecodedArt decoded = mDecodedArt.getAndSet(null);
+            if (decoded != null) {
+                swapInArt(decoded);
+            }
 
             // Draw the background.
-            if (isInAmbientMode()) {
-                canvas.drawColor(Color.BLACK);
-            } else {
-                if (currentAlbumArt != null) {
-                    canvas.drawBitmap(currentAlbumArt, 0, 0, null);
-                } else {
-                    canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), mBackgroundPaint);
+            boolean ambient = isInAmbientMode();
+            if (USE_BACKGROUND_LAYER) {
+                if (mBackgroundLayerDirty || mBackgroundLayerAmbient != ambient
+                        || mBackgroundLayer == null
+                        || mBackgroundLayer.getWidth() != bounds.width()
+                        || mBackgroundLayer.getHeight() != bounds.height()) {
+                    rebuildBackgroundLayer(bounds, ambient);
                 }
+                canvas.drawBitmap(mBackgroundLayer, 0, 0, null);
+            } else {
+                drawBackground(canvas, bounds, ambient);
             }
 
             // Find the center. Ignore the window insets so that, on round watches with a
@@ -233,29 +582,123 @@ import java.util.concurrent.TimeUnit;
             float centerX = bounds.width() / 2f;
             float centerY = bounds.height() / 2f;
 
-            if (SHOW_SECONDS) {
-                float secRot = mTime.second / 30f * (float) Math.PI;
+            FrameScheduler.SecondsMode secondsMode = mFrameScheduler.effectiveMode();
+            if (!mAmbient && secondsMode != FrameScheduler.SecondsMode.NONE) {
                 float secLength = centerX - 20;
-                if (!mAmbient) {
-                    float secX = (float) Math.sin(secRot) * secLength;
-                    float secY = (float) -Math.cos(secRot) * secLength;
-                    canvas.drawLine(centerX, centerY, centerX + secX, centerY + secY, mHandPaint);
+                float secX;
+                float secY;
+                if (secondsMode == FrameScheduler.SecondsMode.SWEEPING) {
+                    int millis = (int) (nowMillis % 1000);
+                    secX = HandGeometry.sweepX(mTime.second, millis) * secLength;
+                    secY = HandGeometry.sweepY(mTime.second, millis) * secLength;
+                } else {
+                    secX = HandGeometry.minuteX(mTime.second) * secLength;
+                    secY = HandGeometry.minuteY(mTime.second) * secLength;
                 }
+                canvas.drawLine(centerX, centerY, centerX + secX, centerY + secY, mHandPaint);
             }
-            int minutes = mTime.minute;
-            float minRot = minutes / 30f * (float) Math.PI;
-            float hrRot = ((mTime.hour + (minutes / 60f)) / 6f) * (float) Math.PI;
-
             float minLength = centerX - 40;
             float hrLength = centerX - 80;
 
-            float minX = (float) Math.sin(minRot) * minLength;
-            float minY = (float) -Math.cos(minRot) * minLength;
+            float minX = HandGeometry.minuteX(mTime.minute) * minLength;
+            float minY = HandGeometry.minuteY(mTime.minute) * minLength;
             canvas.drawLine(centerX, centerY, centerX + minX, centerY + minY, mHandPaint);
 
-            float hrX = (float) Math.sin(hrRot) * hrLength;
-            float hrY = (float) -Math.cos(hrRot) * hrLength;
+            float hrX = HandGeometry.hourX(mTime.hour, mTime.minute) * hrLength;
+            float hrY = HandGeometry.hourY(mTime.hour, mTime.minute) * hrLength;
             canvas.drawLine(centerX, centerY, centerX + hrX, centerY + hrY, mHandPaint);
+
+            FrameCostMeter frameCost = ambient ? mAmbientFrameCost : mInteractiveFrameCost;
+            frameCost.record(System.nanoTime() - frameStart);
+            mFrameScheduler.recordFrame(System.currentTimeMillis());
+
+            if (mFirstArtFrameMillis < 0 && currentAlbumArt != null) {
+                mFirstArtFrameMillis = (System.nanoTime() - mCreatedNanos) / 1000000;
+                Log.d(TAG, "First frame with art " + mFirstArtFrameMillis
+                        + "ms after onCreate, from " + mFirstArtSource);
+            }
+
+            if (mUndrawnTraceId != 0) {
+                long now = System.currentTimeMillis();
+                mTracer.mark(mUndrawnTraceId, "drawn", now);
+                mTracer.end(mUndrawnTraceId, now);
+                mUndrawnTraceId = 0;
+                Log.d(TAG, "Album art latency:\n" + mTracer.dump());
+            }
+            if (mUndrawnPlaceholderTraceStart != 0) {
+                // Perceived latency, the art itself is traced separately.
+                mTracer.histogram("placeholder shown").record(
+                        Math.max(0, System.currentTimeMillis() - mUndrawnPlaceholderTraceStart));
+                mUndrawnPlaceholderTraceStart = 0;
+            }
+        }
+
+        /**
+         * Makes the decoded art current. Called on the UI thread between frames, so a bitmap is
+         * never returned to the pool mid-draw.
+         */
+        private void swapInArt(DecodedArt decoded) {
+            mBitmapPool.put(currentAlbumArt);
+            mBitmapPool.put(currentAmbientAlbumArt);
+            currentAlbumArt = decoded.albumArt;
+            currentAmbientAlbumArt = decoded.ambientAlbumArt;
+            mBackgroundLayerDirty = true;
+            mUndrawnTraceId = decoded.traceId;
+            mUndrawnPlaceholderTraceStart = decoded.placeholderTraceStart;
+            mFullArtReleased = false;
+            if (!mPlaybackState.playing) {
+                // Decoded before the pause reached us.
+                releaseFullArt();
+            }
+            Log.d(TAG, mBitmapPool.toString());
+        }
+
+        /**
+         * Renders everything below the hands into an offscreen layer, which is then reused every
+         * frame until the art, ambient mode or surface size changes.
+         */
+        private void rebuildBackgroundLayer(Rect bounds, boolean ambient) {
+            if (mBackgroundLayer == null
+                    || mBackgroundLayer.getWidth() != bounds.width()
+                    || mBackgroundLayer.getHeight() != bounds.height()) {
+                if (mBackgroundLayer != null) {
+                    mBackgroundLayer.recycle();
+                }
+                mBackgroundLayer = Bitmap.createBitmap(bounds.width(), bounds.height(),
+                        Bitmap.Config.ARGB_8888);
+                mBackgroundLayerCanvas = new Canvas(mBackgroundLayer);
+            }
+            drawBackground(mBackgroundLayerCanvas, bounds, ambient);
+            mBackgroundLayerAmbient = ambient;
+            mBackgroundLayerDirty = false;
+            mBackgroundLayerRebuilds++;
+        }
+
+        private void drawBackground(Canvas canvas, Rect bounds, boolean ambient) {
+            if (ambient) {
+                if (currentAmbientAlbumArt != null) {
+                    drawArt(canvas, currentAmbientAlbumArt, bounds);
+                } else {
+                    canvas.drawColor(Color.BLACK);
+                }
+            } else {
+                Bitmap art = mFullArtReleased ? currentAmbientAlbumArt : currentAlbumArt;
+                if (art != null) {
+                    drawArt(canvas, art, bounds);
+                    // Keeps the hands readable over bright covers.
+                    canvas.drawRect(0, 0, bounds.width(), bounds.height(), mScrimPaint);
+                } else {
+                    canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), mBackgroundPaint);
+                }
+            }
+        }
+
+        private void drawArt(Canvas canvas, Bitmap art, Rect bounds) {
+            if (art.getWidth() == bounds.width() && art.getHeight() == bounds.height()) {
+                canvas.drawBitmap(art, 0, 0, null);
+            } else {
+                canvas.drawBitmap(art, null, bounds, mArtScalePaint);
+            }
         }
 
         @Override
@@ -263,18 +706,14 @@ import java.util.concurrent.TimeUnit;
             super.onVisibilityChanged(visible);
 
             if (visible) {
-                mGoogleApiClient.connect();
                 registerReceiver();
 
                 // Update time zone in case it changed while we weren't visible.
                 mTime.clear(TimeZone.getDefault().getID());
                 mTime.setToNow();
             } else {
+                // Stays connected and listening, so the art is current when next visible.
                 unregisterReceiver();
-                if (mGoogleApiClient != null && mGoogleApiClient.isConnected()) {
-                    Wearable.DataApi.removeListener(mGoogleApiClient, this);
-                    mGoogleApiClient.disconnect();
-                }
             }
 
             // Whether the timer should be running depends on whether we're visible (as well as
@@ -289,6 +728,9 @@ import java.util.concurrent.TimeUnit;
             mRegisteredTimeZoneReceiver = true;
             IntentFilter filter = new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED);
             NowPlayingWatchface.this.registerReceiver(mTimeZoneReceiver, filter);
+            // Sticky, so the current level is known straight away.
+            updateBattery(NowPlayingWatchface.this.registerReceiver(mBatteryReceiver,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
         }
 
         private void unregisterReceiver() {
@@ -297,6 +739,25 @@ import java.util.concurrent.TimeUnit;
             }
             mRegisteredTimeZoneReceiver = false;
             NowPlayingWatchface.this.unregisterReceiver(mTimeZoneReceiver);
+            NowPlayingWatchface.this.unregisterReceiver(mBatteryReceiver);
+        }
+
+        private void updateBattery(Intent batteryStatus) {
+            if (batteryStatus == null) {
+                return;
+            }
+            int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level < 0 || scale <= 0) {
+                return;
+            }
+            boolean charging = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            FrameScheduler.SecondsMode before = mFrameScheduler.effectiveMode();
+            mFrameScheduler.setBattery(level * 100 / scale, charging);
+            if (mFrameScheduler.effectiveMode() != before) {
+                updateTimer();
+                invalidate();
+            }
         }
 
         /**
@@ -312,10 +773,11 @@ import java.util.concurrent.TimeUnit;
 
         /**
          * Returns whether the {@link #mUpdateTimeHandler} timer should be running. The timer should
-         * only run when we're visible and in interactive mode.
+         * only run when we're visible and in interactive mode, and only if a second hand is shown,
+         * otherwise onTimeTick is frequent enough.
          */
         private boolean shouldTimerBeRunning() {
-            return isVisible() && !isInAmbientMode();
+            return isVisible() && !isInAmbientMode() && mFrameScheduler.intervalMillis() > 0;
         }
 
         /**
@@ -324,9 +786,7 @@ import java.util.concurrent.TimeUnit;
         private void handleUpdateTimeMessage() {
             invalidate();
             if (shouldTimerBeRunning()) {
-                long timeMs = System.currentTimeMillis();
-                long delayMs = INTERACTIVE_UPDATE_RATE_MS
-                        - (timeMs % INTERACTIVE_UPDATE_RATE_MS);
+                long delayMs = mFrameScheduler.delayMillis(System.currentTimeMillis());
                 mUpdateTimeHandler.sendEmptyMessageDelayed(MSG_UPDATE_TIME, delayMs);
             }
         }
@@ -334,41 +794,261 @@ import java.util.concurrent.TimeUnit;
         @Override
         public void onDataChanged(DataEventBuffer dataEvents) {
             for (DataEvent event : dataEvents) {
-                if (event.getType() == DataEvent.TYPE_CHANGED &&
-                        event.getDataItem().getUri().getPath().startsWith("/albumart")) {
-                    DataMapItem dataMapItem = DataMapItem.fromDataItem(event.getDataItem());
-                    Asset asset = dataMapItem.getDataMap().getAsset("albumArt");
-                    new UpdateWatchfaceTask().execute(asset);
+                String path = event.getDataItem().getUri().getPath();
+                if (event.getType() == DataEvent.TYPE_CHANGED
+                        && PlaybackState.PATH.equals(path)) {
+                    updatePlayback(DataMapItem.fromDataItem(event.getDataItem()).getDataMap());
+                } else if (event.getType() == DataEvent.TYPE_CHANGED
+                        && (path.startsWith(AlbumArtItem.PATH)
+                        || path.equals(AlbumArtItem.PLACEHOLDER_PATH))) {
+                    DataMapItem item = DataMapItem.fromDataItem(event.getDataItem());
+                    if (mDecodeWorker.submit(item, sentAt(item))) {
+                        traceDelivered(item.getDataMap());
+                    }
                 }
             }
         }
-        private class UpdateWatchfaceTask extends AsyncTask<Asset, Void, Void> {
-            @Override
-            protected Void doInBackground(Asset... asset) {
-                currentAlbumArt = loadBitmapFromAsset(asset[0]);
+
+        /**
+         * Continues the phone's trace of the track change, if the item carries one.
+         */
+        private void traceDelivered(DataMap dataMap) {
+            long traceId = dataMap.getLong(AlbumArtItem.KEY_TRACE_ID);
+            if (traceId == 0) {
+                return;
+            }
+            mTracer.begin(traceId, dataMap.getLong(AlbumArtItem.KEY_TRACE_START));
+            mTracer.mark(traceId, "synced", dataMap.getLong(AlbumArtItem.KEY_SENT_AT));
+            mTracer.mark(traceId, "delivered", System.currentTimeMillis());
+        }
+
+        /**
+         * Loads and decodes the item's art on the decode worker, then publishes it for the next
+         * frame. Stops as soon as an item sent later supersedes this one, so art never goes back
+         * to an older track.
+         */
+        private void decodeArt(DataMapItem item, long sentAt) {
+            if (AlbumArtItem.PLACEHOLDER_PATH.equals(item.getUri().getPath())) {
+                showPlaceholder(item.getDataMap(), sentAt);
+                return;
+            }
+            DataMap dataMap = item.getDataMap();
+            long traceId = dataMap.getLong(AlbumArtItem.KEY_TRACE_ID);
+            byte[] albumArt = loadArt(dataMap, AlbumArtItem.KEY_ALBUM_ART,
+                    AlbumArtItem.KEY_ALBUM_ART_HASH);
+            byte[] ambientAlbumArt = loadArt(dataMap, AlbumArtItem.KEY_AMBIENT_ALBUM_ART,
+                    AlbumArtItem.KEY_AMBIENT_ALBUM_ART_HASH);
+            if (albumArt == null || ambientAlbumArt == null) {
+                if (!mConnection.isConnected()) {
+                    // Reconciled once connected again, meanwhile the current art stays.
+                    return;
+                }
+                // A reference to art we no longer have, ask the phone that sent it.
+                requestArt(item.getUri().getHost(), dataMap.getString(AlbumArtItem.KEY_CACHE_KEY));
+                // Better no art than the previous track's until it arrives.
+                if (mDecodeWorker.isCurrent(sentAt)) {
+                    mArtHash = null;
+                    publish(new DecodedArt(null, null, 0, 0));
+                }
+                return;
+            }
+            Log.d(TAG, mArtStore + ", bytes saved=" + mArtBytesSaved);
+            if (!mDecodeWorker.isCurrent(sentAt)) {
+                return;
+            }
+            Bitmap albumArtBitmap = decodeIntoPooledBitmap(albumArt, Bitmap.Config.ARGB_8888);
+            if (albumArtBitmap == null || !mDecodeWorker.isCurrent(sentAt)) {
+                mBitmapPool.put(albumArtBitmap);
+                return;
+            }
+            // Greyscale with few levels, so half the memory loses nothing visible.
+            Bitmap ambientAlbumArtBitmap =
+                    decodeIntoPooledBitmap(ambientAlbumArt, Bitmap.Config.RGB_565);
+            if (!mDecodeWorker.isCurrent(sentAt)) {
+                mBitmapPool.put(albumArtBitmap);
+                mBitmapPool.put(ambientAlbumArtBitmap);
+                return;
+            }
+            mTracer.mark(traceId, "decoded", System.currentTimeMillis());
+            String hash = dataMap.getString(AlbumArtItem.KEY_ALBUM_ART_HASH);
+            ArtSnapshotStore.Pixels snapshotArt = null;
+            ArtSnapshotStore.Pixels snapshotAmbientArt = null;
+            if (ambientAlbumArtBitmap != null && (hash == null || !hash.equals(mSnapshotHash))) {
+                // Copied before the UI thread can return the bitmaps to the pool.
+                snapshotArt = ArtSnapshotStore.Pixels.copyOf(albumArtBitmap);
+                snapshotAmbientArt = ArtSnapshotStore.Pixels.copyOf(ambientAlbumArtBitmap);
+            }
+            mArtHash = hash;
+            mFullArtCacheKey = dataMap.getString(AlbumArtItem.KEY_CACHE_KEY);
+            publish(new DecodedArt(albumArtBitmap, ambientAlbumArtBitmap, traceId, 0));
+
+            if (snapshotArt != null) {
+                mArtSnapshot.write(hash, snapshotArt, snapshotAmbientArt);
+                mSnapshotHash = hash;
+            }
+        }
+
+        /**
+         * Shows the placeholder the phone sends ahead of newly encoded art, scaled up and blurred
+         * by filtering, unless that art has already arrived.
+         */
+        private void showPlaceholder(DataMap dataMap, long sentAt) {
+            String cacheKey = dataMap.getString(AlbumArtItem.KEY_CACHE_KEY);
+            if (cacheKey == null || cacheKey.equals(mFullArtCacheKey)) {
+                return;
+            }
+            int color = dataMap.getInt(AlbumArtItem.KEY_COLOR);
+            ArtPlaceholder placeholder;
+            try {
+                placeholder = new ArtPlaceholder(color,
+                        dataMap.getInt(AlbumArtItem.KEY_THUMBNAIL_WIDTH),
+                        dataMap.getInt(AlbumArtItem.KEY_THUMBNAIL_HEIGHT),
+                        dataMap.getByteArray(AlbumArtItem.KEY_THUMBNAIL));
+            } catch (IllegalArgumentException e) {
+                // No usable thumbnail, fall back on the dominant colour alone.
+                placeholder = ArtPlaceholder.solid(color);
+            }
+            Bitmap thumbnail = Bitmap.createBitmap(placeholder.width, placeholder.height,
+                    Bitmap.Config.ARGB_8888);
+            thumbnail.setPixels(placeholder.toPixels(), 0, placeholder.width, 0, 0,
+                    placeholder.width, placeholder.height);
+            if (!mDecodeWorker.isCurrent(sentAt)) {
+                thumbnail.recycle();
+                return;
+            }
+            mArtHash = null;
+            // Nothing in ambient mode, where a colourful placeholder would defeat burn in
+            // protection.
+            publish(new DecodedArt(thumbnail, null, 0,
+                    dataMap.getLong(AlbumArtItem.KEY_TRACE_START)));
+        }
+
+        /**
+         * Hands the art to the next frame and asks for that frame straight away. Decodes run one
+         * at a time and items sent earlier than one already submitted are dropped, so this is
+         * never older than art already published. Art published but not drawn yet is simply
+         * replaced.
+         */
+        private void publish(DecodedArt art) {
+            DecodedArt replaced = mDecodedArt.getAndSet(art);
+            if (replaced != null) {
+                mBitmapPool.put(replaced.albumArt);
+                mBitmapPool.put(replaced.ambientAlbumArt);
+            }
+            postInvalidate();
+        }
+
+        /**
+         * Returns the encoded art from the local store if the item references art we have
+         * already been sent, otherwise from the item's asset, which is then stored.
+         *
+         * @return the encoded art, or null if the item is a reference to art we do not have
+         */
+        private byte[] loadArt(DataMap dataMap, String assetKey, String hashKey) {
+            String hash = dataMap.getString(hashKey);
+            Asset asset = dataMap.getAsset(assetKey);
+            byte[] data = null;
+            if (hash != null && (data = mArtStore.get(hash)) != null) {
+                if (asset == null) {
+                    mArtBytesSaved += data.length;
+                }
+                return data;
+            }
+            if (asset == null) {
                 return null;
             }
+            data = loadAsset(asset);
+            if (data != null && hash != null) {
+                mArtStore.put(hash, data);
+            }
+            return data;
         }
 
-        private Bitmap loadBitmapFromAsset(Asset asset) {
+        private void requestArt(String nodeId, String cacheKey) {
+            if (nodeId == null || cacheKey == null || !mConnection.isConnected()) {
+                return;
+            }
+            Wearable.MessageApi.sendMessage(mConnection.client(), nodeId, AlbumArtItem.REQUEST_PATH,
+                    cacheKey.getBytes(Charset.forName("UTF-8")));
+        }
+
+        private byte[] loadAsset(Asset asset) {
             if (asset == null) {
                 throw new IllegalArgumentException("Asset must be non-null");
             }
-            ConnectionResult result =
-                    mGoogleApiClient.blockingConnect(5, TimeUnit.SECONDS);
-            if (!result.isSuccess()) {
+            // Never waits for the connection, only for an asset while connected.
+            if (!mConnection.isConnected()) {
                 return null;
             }
-            // convert asset into a file descriptor and block until it's ready
-            InputStream assetInputStream = Wearable.DataApi.getFdForAsset(
-                    mGoogleApiClient, asset).await().getInputStream();
+            DataApi.GetFdForAssetResult result = mConnection.await(
+                    Wearable.DataApi.getFdForAsset(mConnection.client(), asset),
+                    ASSET_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            InputStream assetInputStream = result.getStatus().isSuccess()
+                    ? result.getInputStream() : null;
 
             if (assetInputStream == null) {
                 Log.w(TAG, "Requested an unknown Asset.");
                 return null;
             }
-            // decode the stream into a bitmap
-            return BitmapFactory.decodeStream(assetInputStream);
+            try {
+                return readFully(assetInputStream);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read asset", e);
+                return null;
+            }
+        }
+
+        /**
+         * Decodes the image, reusing a pooled bitmap where possible. The phone sizes art for this
+         * surface, but anything larger is subsampled by the nearest power of two.
+         */
+        private Bitmap decodeIntoPooledBitmap(byte[] data, Bitmap.Config config) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            int sampleSize = ImageSelection.sampleSize(options.outWidth, options.outHeight,
+                    mSurfaceWidth, mSurfaceHeight);
+            int width = (options.outWidth + sampleSize - 1) / sampleSize;
+            int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            options.inMutable = true;
+            options.inBitmap = mBitmapPool.get(width, height, config);
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap could not be reused for this image after all.
+                mBitmapPool.put(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+            if (bitmap == null) {
+                mBitmapPool.put(options.inBitmap);
+                return null;
+            }
+            mBitmapPool.recordDecode(bitmap, options.inBitmap);
+            return bitmap;
+        }
+
+        private byte[] readFully(InputStream in) throws IOException {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
         }
     }
 }
@@ -0,0 +1,172 @@
+package uk.co.yojan.nowplaying;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.Result;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process wide {@link SharedConnection} to the wearable data layer. The watch face engine
+ * holds a reference for as long as it exists, visible or not, so that art synced while the
+ * screen is off is still delivered. Retries and lingering disconnects run on the main thread.
+ *
+ * Mirrors the phone's wrapper, which lingers for minutes rather than seconds and never waits
+ * on a result. Everything beyond wiring up the GoogleApiClient is in {@link SharedConnection}
+ * in core, which cannot depend on Play Services itself.
+ */
+public class WearableConnection {
+
+    private static final String TAG = "WearableConnection";
+
+    // Long enough for an engine that is recreated, such as after a configuration change.
+    private static final long LINGER_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long RETRY_MIN_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long RETRY_MAX_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static WearableConnection sInstance;
+
+    private final GoogleApiClient mClient;
+    private final SharedConnection mConnection;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            mConnection.connect();
+        }
+    };
+
+    private final Runnable mDisconnectIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnection.disconnectIfIdle()) {
+                Log.d(TAG, "Disconnected, " + mConnection);
+            }
+        }
+    };
+
+    public static synchronized WearableConnection get(Context context) {
+        if (sInstance == null) {
+            sInstance = new WearableConnection(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WearableConnection(Context context) {
+        mClient = new GoogleApiClient.Builder(context)
+                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+                    @Override
+                    public void onConnected(Bundle connectionHint) {
+                        mHandler.removeCallbacks(mRetry);
+                        mConnection.onConnected();
+                    }
+
+                    @Override
+                    public void onConnectionSuspended(int cause) {
+                        // The client reconnects by itself.
+                        Log.d(TAG, "onConnectionSuspended: " + cause);
+                        mConnection.onConnectionSuspended();
+                    }
+                })
+                .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
+                    @Override
+                    public void onConnectionFailed(ConnectionResult result) {
+                        Log.d(TAG, "onConnectionFailed: " + result);
+                        long delay = mConnection.onConnectionFailed();
+                        if (delay >= 0) {
+                            mHandler.postDelayed(mRetry, delay);
+                        }
+                    }
+                })
+                // Request access only to the Wearable API
+                .addApi(Wearable.API)
+                .build();
+        mConnection = new SharedConnection(new SharedConnection.Client() {
+            @Override
+            public boolean isConnected() {
+                return mClient.isConnected();
+            }
+
+            @Override
+            public boolean isConnecting() {
+                return mClient.isConnecting();
+            }
+
+            @Override
+            public void connect() {
+                mClient.connect();
+            }
+
+            @Override
+            public void disconnect() {
+                mClient.disconnect();
+            }
+        }, LINGER_MS, RETRY_MIN_MS, RETRY_MAX_MS, Clock.SYSTEM);
+    }
+
+    /**
+     * Returns the client, for api calls made while connected.
+     */
+    public GoogleApiClient client() {
+        return mClient;
+    }
+
+    public void acquire() {
+        mHandler.removeCallbacks(mDisconnectIfIdle);
+        mConnection.acquire();
+    }
+
+    public void release() {
+        long linger = mConnection.release();
+        if (linger >= 0) {
+            mHandler.removeCallbacks(mDisconnectIfIdle);
+            mHandler.postDelayed(mDisconnectIfIdle, linger);
+        }
+    }
+
+    public boolean isConnected() {
+        return mConnection.isConnected();
+    }
+
+    /**
+     * Starts connecting if referenced and not already, without blocking.
+     */
+    public void connect() {
+        mConnection.connect();
+    }
+
+    public void addListener(SharedConnection.Listener listener) {
+        mConnection.addListener(listener);
+    }
+
+    public void removeListener(SharedConnection.Listener listener) {
+        mConnection.removeListener(listener);
+    }
+
+    /**
+     * Waits for the result of a call made while connected, on a worker thread, counting the
+     * wait as time blocked. There is no waiting for the connection itself.
+     */
+    public <R extends Result> R await(PendingResult<R> result, long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        try {
+            return result.await(timeout, unit);
+        } finally {
+            mConnection.recordBlocked((System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mConnection.toString();
+    }
+}